@@ -0,0 +1,469 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.simulator;
+
+import android.annotation.SuppressLint;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSession;
+
+import okhttp3.Dns;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+import pw.thedrhax.mosmetro.httpclient.Headers;
+import pw.thedrhax.mosmetro.httpclient.clients.OkHttp;
+
+/**
+ * Local captive portal for reproducible login benchmarks.
+ *
+ * Two MockWebServers are installed as an HTTP proxy for every OkHttp client
+ * (see OkHttp.setCustomizer()). The first one receives plain HTTP requests,
+ * the second one accepts CONNECT and terminates TLS with a self-signed
+ * certificate. Responses are generated by a scripted portal, so the real
+ * Provider code runs unmodified.
+ *
+ * Until the client is authorized, generate_204 is redirected to the portal of
+ * the selected Scenario and HTTPS is available only for the portal hosts.
+ */
+public class PortalSimulator {
+    public enum Scenario {
+        V1, V2, V2MCC, V3, MAINET, UNKNOWN
+    }
+
+    private static final String MAC = "aa-bb-cc-dd-ee-ff";
+    private static final String CSRF = "c5e8b7d2a1f04e69b3a0";
+
+    private static final String HTML = "text/html; charset=utf-8";
+    private static final String JSON = "application/json; charset=utf-8";
+
+    private final MockWebServer http = new MockWebServer();
+    private final MockWebServer https = new MockWebServer();
+    private final HeldCertificate certificate = new HeldCertificate.Builder()
+            .commonName("PortalSimulator")
+            .build();
+    private final Random random = new Random();
+
+    private int latency = 0;
+    private int loss = 0;
+    private int bandwidth = 0;
+
+    private volatile Scenario scenario = Scenario.V2;
+    private volatile boolean authorized = false;
+
+    private final AtomicInteger requests = new AtomicInteger(0);
+    private final AtomicLong bytes_in = new AtomicLong(0);
+    private final AtomicLong bytes_out = new AtomicLong(0);
+
+    /**
+     * @param ms Delay before the headers of every response
+     */
+    public PortalSimulator setLatency(int ms) {
+        this.latency = ms; return this;
+    }
+
+    /**
+     * @param percent Probability of the connection being closed without response
+     */
+    public PortalSimulator setLoss(int percent) {
+        this.loss = percent; return this;
+    }
+
+    /**
+     * @param bytes_per_second Response body speed limit, 0 means unlimited
+     */
+    public PortalSimulator setBandwidth(int bytes_per_second) {
+        this.bandwidth = bytes_per_second; return this;
+    }
+
+    /**
+     * Start the servers and route all OkHttp clients through them.
+     */
+    public void start() throws IOException {
+        HandshakeCertificates server = new HandshakeCertificates.Builder()
+                .heldCertificate(certificate)
+                .build();
+
+        https.useHttps(server.sslSocketFactory(), true);
+        http.setDispatcher(new PortalDispatcher(false));
+        https.setDispatcher(new PortalDispatcher(true));
+        http.start();
+        https.start();
+
+        final HandshakeCertificates client = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(certificate.certificate())
+                .build();
+
+        final ProxySelector selector = new ProxySelector() {
+            @Override
+            public List<Proxy> select(URI uri) {
+                MockWebServer server = "https".equals(uri.getScheme()) ? https : http;
+                return Collections.singletonList(new Proxy(Proxy.Type.HTTP,
+                        new InetSocketAddress(server.getHostName(), server.getPort())));
+            }
+
+            @Override
+            public void connectFailed(URI uri, SocketAddress sa, IOException ex) {}
+        };
+
+        final HostnameVerifier verifier = new HostnameVerifier() {
+            @SuppressLint("BadHostnameVerifier")
+            @Override
+            public boolean verify(String hostname, SSLSession session) {
+                return true; // one certificate for all simulated hosts
+            }
+        };
+
+        OkHttp.setCustomizer(new OkHttp.Customizer() {
+            @Override
+            public void customize(OkHttpClient.Builder builder) {
+                builder.proxySelector(selector)
+                        .sslSocketFactory(client.sslSocketFactory(), client.trustManager())
+                        .hostnameVerifier(verifier)
+                        .dns(Dns.SYSTEM);
+            }
+        });
+    }
+
+    public void shutdown() {
+        OkHttp.setCustomizer(null);
+
+        try {
+            http.shutdown();
+            https.shutdown();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Switch to another portal and forget the authorization.
+     */
+    public void reset(Scenario scenario) {
+        this.scenario = scenario;
+        this.authorized = false;
+        requests.set(0);
+        bytes_in.set(0);
+        bytes_out.set(0);
+    }
+
+    public boolean isAuthorized() {
+        return authorized;
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return Total size of request bodies
+     */
+    public long getBytesIn() {
+        return bytes_in.get();
+    }
+
+    /**
+     * @return Total size of response bodies
+     */
+    public long getBytesOut() {
+        return bytes_out.get();
+    }
+
+    /*
+     * Responses
+     */
+
+    private static MockResponse html(String head, String body) {
+        return new MockResponse()
+                .setHeader(Headers.CONTENT_TYPE, HTML)
+                .setBody("<html><head>" + head + "</head><body>" + body + "</body></html>");
+    }
+
+    private static MockResponse json(String body) {
+        return new MockResponse()
+                .setHeader(Headers.CONTENT_TYPE, JSON)
+                .setBody(body);
+    }
+
+    private static MockResponse location(String url) {
+        return new MockResponse()
+                .setResponseCode(302)
+                .setHeader(Headers.LOCATION, url);
+    }
+
+    private static MockResponse meta(String url) {
+        return html("<meta http-equiv=\"refresh\" content=\"0; URL=" + url + "\">", "");
+    }
+
+    private void authorize(Scenario scenario) {
+        if (this.scenario == scenario) authorized = true;
+    }
+
+    private static boolean isPortal(String host) {
+        return host.endsWith("wi-fi.ru") || host.equals("wifi.mai.ru")
+                || host.equals("hotspot.maximatelecom") || host.equals("10.0.0.1")
+                || host.equals("portal.local");
+    }
+
+    /**
+     * Response to any request intercepted by the portal.
+     */
+    private MockResponse redirect() {
+        switch (scenario) {
+            case V1:
+                return meta("http://login.wi-fi.ru/am/UI/Login?org=mac&client_mac=" + MAC);
+
+            case V2:
+                return meta("http://auth.wi-fi.ru/?segment=metro&client_mac=" + MAC);
+
+            case V2MCC:
+                return location("http://10.0.0.1/www/login.chi?mac=" + MAC)
+                        .setBody("<h2>Browser error!</h2>");
+
+            case V3:
+                String url = "http://welcome.wi-fi.ru/?client_mac=" + MAC;
+                return meta(url).setResponseCode(302).setHeader(Headers.LOCATION, url);
+
+            case MAINET:
+                return location("https://wifi.mai.ru/login.html");
+
+            default:
+                return location("http://portal.local/start");
+        }
+    }
+
+    /**
+     * Scripted pages of the supported portals.
+     * @return Response or null if URL doesn't belong to any portal
+     */
+    private MockResponse portal(HttpUrl url, RecordedRequest request) {
+        String host = url.host();
+        String path = url.encodedPath();
+        boolean post = "POST".equals(request.getMethod());
+
+        switch (host) {
+            case "login.wi-fi.ru": // MosMetroV1
+                if (!path.equals("/am/UI/Login")) break;
+
+                if (post) {
+                    authorize(Scenario.V1);
+                    return html("", "OK");
+                }
+
+                return html("", "<form method=\"post\" action=\"\">" +
+                        "<input type=\"hidden\" name=\"IDToken1\" value=\"" + MAC + "\">" +
+                        "<input type=\"hidden\" name=\"org\" value=\"mac\">" +
+                        "<input type=\"submit\" value=\"Войти\">" +
+                        "</form>");
+
+            case "auth.wi-fi.ru": // MosMetroV2
+                if (path.equals("/")) {
+                    return location("/new?segment=metro");
+                }
+
+                if (path.equals("/new") || path.equals("/auth") || path.equals("/metro")) {
+                    return html("<meta name=\"csrf-token\" content=\"" + CSRF + "\">", "");
+                }
+
+                if (path.equals("/gapi/auth/start")) {
+                    String after_auth = scenario == Scenario.V2MCC
+                            ? "http://hotspot.maximatelecom/login?username=" + MAC + "&password=placeholder"
+                            : "https://wi-fi.ru/";
+
+                    return json("{\"result\":true,\"data\":{\"segmentParams\":{" +
+                            "\"common\":{\"redirectUrl\":{\"afterAuth\":\"" + after_auth + "\"}}," +
+                            "\"auth\":{}},\"userParams\":{}}}");
+                }
+
+                if (path.equals("/gapi/auth/init") && post) {
+                    if (!CSRF.equals(request.getHeader(Headers.CSRF))) {
+                        return json("{\"result\":false,\"auth_status\":\"fail\"}");
+                    }
+
+                    authorize(Scenario.V2);
+                    return json("{\"result\":true,\"auth_status\":\"ok\"}");
+                }
+
+                if (path.equals("/gapi/auth/check")) {
+                    return json("{\"result\":" + authorized + "}");
+                }
+
+                break;
+
+            case "10.0.0.1": // MosMetroV2mcc
+                if (path.equals("/www/login.chi")) {
+                    return location("http://auth.wi-fi.ru/?segment=metro&client_mac=" + MAC);
+                }
+                break;
+
+            case "hotspot.maximatelecom": // MosMetroV2mcc
+                if (path.equals("/login")) {
+                    authorize(Scenario.V2MCC);
+                    return location("/status");
+                }
+
+                if (path.equals("/status")) {
+                    return html("", "OK");
+                }
+
+                break;
+
+            case "welcome.wi-fi.ru": // MosMetroV3
+                if (path.equals("/")) {
+                    return html("<meta name=\"csrf-token\" content=\"" + CSRF + "\">", "");
+                }
+
+                if (path.equals("/auth/init") && post) {
+                    if (!request.getUtf8Body().contains(CSRF)) {
+                        return json("{\"result\":false}");
+                    }
+
+                    authorize(Scenario.V3);
+                    return json("{\"result\":true,\"user_mac\":\"" + MAC + "\",\"auth_status\":\"initial\"}");
+                }
+
+                if (path.equals("/auth/check")) {
+                    return json("{\"result\":" + authorized + "}");
+                }
+
+                if (path.equals("/success")) {
+                    return location("http://google.com/");
+                }
+
+                break;
+
+            case "wifi.mai.ru": // MAInet
+                if (!path.equals("/login.html")) break;
+
+                if (post) {
+                    authorize(Scenario.MAINET);
+                    return html("", "OK");
+                }
+
+                return html("", "<form method=\"post\"></form>");
+
+            case "portal.local": // Unknown: click-through portal
+                if (path.equals("/start")) return location("/splash");
+                if (path.equals("/splash")) return location("/accept");
+
+                if (path.equals("/accept")) {
+                    authorize(Scenario.UNKNOWN);
+                    return html("", "Welcome!");
+                }
+
+                break;
+        }
+
+        return null;
+    }
+
+    private MockResponse route(HttpUrl url, RecordedRequest request) {
+        String path = url.encodedPath();
+
+        if (path.endsWith("/generate_204") || path.endsWith("/gen_204")) {
+            return authorized ? new MockResponse().setResponseCode(204) : redirect();
+        }
+
+        MockResponse response = portal(url, request);
+        if (response != null) return response;
+
+        return authorized ? html("", "") : redirect();
+    }
+
+    private class PortalDispatcher extends Dispatcher {
+        private final boolean tunnel;
+
+        PortalDispatcher(boolean tunnel) {
+            this.tunnel = tunnel;
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            MockResponse response;
+
+            requests.incrementAndGet();
+            bytes_in.addAndGet(request.getBodySize());
+
+            if (loss > 0 && random.nextInt(100) < loss) {
+                return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+            }
+
+            // Proxied requests contain absolute URL, tunneled ones contain only path
+            String target = request.getRequestLine().split(" ")[1];
+
+            if ("CONNECT".equals(request.getMethod())) {
+                String host = target.split(":")[0];
+
+                if (authorized || isPortal(host)) {
+                    response = new MockResponse().setSocketPolicy(SocketPolicy.UPGRADE_TO_SSL_AT_END);
+                } else {
+                    response = new MockResponse().setResponseCode(403);
+                }
+            } else {
+                HttpUrl url = HttpUrl.parse(target.startsWith("/")
+                        ? "https://" + request.getHeader("Host") + target
+                        : target);
+
+                response = url != null ? route(url, request) : new MockResponse().setResponseCode(400);
+            }
+
+            if (latency > 0) {
+                response.setHeadersDelay(latency, TimeUnit.MILLISECONDS);
+            }
+
+            if (bandwidth > 0) {
+                response.throttleBody(Math.max(1, bandwidth / 10), 100, TimeUnit.MILLISECONDS);
+            }
+
+            if (response.getBody() != null) {
+                bytes_out.addAndGet(response.getBody().size());
+            }
+
+            return response;
+        }
+
+        /**
+         * Every connection to the HTTPS server starts with CONNECT
+         */
+        @Override
+        public MockResponse peek() {
+            if (tunnel) {
+                return new MockResponse().setSocketPolicy(SocketPolicy.UPGRADE_TO_SSL_AT_END);
+            }
+            return super.peek();
+        }
+    }
+}
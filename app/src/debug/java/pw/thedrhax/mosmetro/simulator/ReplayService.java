@@ -0,0 +1,151 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.simulator;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+import pw.thedrhax.mosmetro.authenticator.Gen204;
+import pw.thedrhax.mosmetro.authenticator.Provider;
+import pw.thedrhax.mosmetro.httpclient.Recording;
+import pw.thedrhax.mosmetro.httpclient.clients.Playback;
+import pw.thedrhax.util.Listener;
+import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Metrics;
+
+/**
+ * Replays a session saved with pref_debug_record through the same providers
+ * without network access. Available only in debug builds:
+ *
+ *   adb push 1600000000000.mmr /data/data/pw.thedrhax.mosmetro/files/recordings/
+ *   adb shell am startservice -n pw.thedrhax.mosmetro/.simulator.ReplayService \
+ *       --es recording 1600000000000.mmr --ei runs 10 --ez timing true
+ *
+ * Extras (all optional):
+ *   recording - file name in files/recordings, the latest one by default
+ *   runs      - number of replays (1)
+ *   timing    - delay responses for the recorded duration (false)
+ *
+ * Every run is written to the log, all results are saved to files/replay.json.
+ * Without timing the result shows the time spent by the app itself.
+ */
+public class ReplayService extends IntentService {
+    private static final String RESULTS = "replay.json";
+
+    private final Listener<Boolean> running = new Listener<>(true);
+
+    public ReplayService() {
+        super("ReplayService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent == null) return;
+
+        int runs = Math.max(1, intent.getIntExtra("runs", 1));
+        boolean timing = intent.getBooleanExtra("timing", false);
+
+        Recording recording;
+        try {
+            recording = Recording.load(find(intent.getStringExtra("recording")));
+        } catch (IOException ex) {
+            Logger.log(this, "Unable to load recording: " + ex.toString());
+            return;
+        }
+
+        for (Recording.Exchange exchange : recording.getExchanges()) {
+            Logger.log(Logger.LEVEL.DEBUG, exchange.toString());
+        }
+
+        JSONArray results = new JSONArray();
+
+        for (int i = 0; i < runs && running.get(); i++) {
+            recording.rewind();
+            results.add(run(recording, timing));
+        }
+
+        try (FileOutputStream out = new FileOutputStream(new File(getFilesDir(), RESULTS))) {
+            out.write(results.toJSONString().getBytes("UTF-8"));
+        } catch (IOException ex) {
+            Logger.log(this, "Unable to save results: " + ex.toString());
+        }
+    }
+
+    private File find(String name) throws IOException {
+        File[] files = Recording.list(this);
+
+        if (name == null || name.isEmpty()) {
+            if (files.length == 0) throw new IOException("No recordings found");
+            return files[0];
+        }
+
+        for (File file : files) {
+            if (file.getName().equals(name)) return file;
+        }
+
+        throw new IOException("Recording not found: " + name);
+    }
+
+    private JSONObject run(Recording recording, boolean timing) {
+        Metrics.reset();
+
+        long start = SystemClock.elapsedRealtime();
+
+        Gen204 gen_204 = new Gen204(this, running,
+                new Playback(this, recording).setTiming(timing));
+
+        Provider provider = Provider.find(this, gen_204.check().getResponse())
+                .setRunningListener(running)
+                .setClient(new Playback(this, recording).setTiming(timing))
+                .setGen204(gen_204);
+
+        Provider.RESULT result = provider.start();
+
+        long time = SystemClock.elapsedRealtime() - start;
+
+        JSONObject json = new JSONObject();
+        json.put("recording", recording.getTimestamp());
+        json.put("provider", provider.getName());
+        json.put("result", result.name());
+        json.put("timing", timing);
+        json.put("time", time);
+        json.put("metrics", Metrics.toJSON());
+
+        Logger.log(this, String.format(Locale.ENGLISH, "%d | %s | %s | %d ms",
+                recording.getTimestamp(), provider.getName(), result.name(), time
+        ));
+
+        return json;
+    }
+
+    @Override
+    public void onDestroy() {
+        running.set(false);
+        super.onDestroy();
+    }
+}
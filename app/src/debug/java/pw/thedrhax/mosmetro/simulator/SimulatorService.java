@@ -0,0 +1,159 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.simulator;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import pw.thedrhax.mosmetro.authenticator.Provider;
+import pw.thedrhax.mosmetro.simulator.PortalSimulator.Scenario;
+import pw.thedrhax.util.Listener;
+import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Metrics;
+
+/**
+ * Runs the providers against PortalSimulator and measures login time, number
+ * of requests and traffic. Available only in debug builds:
+ *
+ *   adb shell am startservice -n pw.thedrhax.mosmetro/.simulator.SimulatorService \
+ *       --es scenarios V2,V3 --ei runs 10 --ei latency 150 --ei loss 5 --ei bandwidth 32
+ *
+ * Extras (all optional):
+ *   scenarios - comma-separated PortalSimulator.Scenario names, all by default
+ *   runs      - number of logins per scenario (3)
+ *   latency   - response delay in ms (0)
+ *   loss      - percent of dropped connections (0)
+ *   bandwidth - response speed limit in KB/s (0 = unlimited)
+ *
+ * Every run is written to the log, all results are saved to files/simulator.json.
+ * Random delays (pref_random_delay_min/max) are a part of the login time,
+ * so they should be set to 0 before measuring. MAInet needs credentials to be
+ * set in the settings.
+ */
+public class SimulatorService extends IntentService {
+    private static final String RESULTS = "simulator.json";
+
+    private final Listener<Boolean> running = new Listener<>(true);
+
+    public SimulatorService() {
+        super("SimulatorService");
+    }
+
+    private static List<Scenario> parse(String scenarios) {
+        if (scenarios == null || scenarios.isEmpty() || "all".equalsIgnoreCase(scenarios)) {
+            return Arrays.asList(Scenario.values());
+        }
+
+        List<Scenario> result = new LinkedList<>();
+
+        for (String name : scenarios.split(",")) {
+            try {
+                result.add(Scenario.valueOf(name.trim().toUpperCase(Locale.ENGLISH)));
+            } catch (IllegalArgumentException ex) {
+                Logger.log(Logger.LEVEL.DEBUG, "Unknown scenario: " + name);
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent == null) return;
+
+        int runs = Math.max(1, intent.getIntExtra("runs", 3));
+        List<Scenario> scenarios = parse(intent.getStringExtra("scenarios"));
+
+        PortalSimulator simulator = new PortalSimulator()
+                .setLatency(intent.getIntExtra("latency", 0))
+                .setLoss(intent.getIntExtra("loss", 0))
+                .setBandwidth(intent.getIntExtra("bandwidth", 0) * 1024);
+
+        JSONArray results = new JSONArray();
+
+        try {
+            simulator.start();
+
+            for (Scenario scenario : scenarios) {
+                for (int i = 0; i < runs && running.get(); i++) {
+                    results.add(run(simulator, scenario));
+                }
+            }
+        } catch (IOException ex) {
+            Logger.log(this, "Unable to start simulator: " + ex.toString());
+        } finally {
+            simulator.shutdown();
+        }
+
+        try (FileOutputStream out = new FileOutputStream(new File(getFilesDir(), RESULTS))) {
+            out.write(results.toJSONString().getBytes("UTF-8"));
+        } catch (IOException ex) {
+            Logger.log(this, "Unable to save results: " + ex.toString());
+        }
+    }
+
+    private JSONObject run(PortalSimulator simulator, Scenario scenario) {
+        simulator.reset(scenario);
+        Metrics.reset();
+
+        long start = SystemClock.elapsedRealtime();
+
+        Provider provider = Provider.find(this, running).setRunningListener(running);
+        Provider.RESULT result = provider.start();
+
+        long time = SystemClock.elapsedRealtime() - start;
+
+        JSONObject json = new JSONObject();
+        json.put("scenario", scenario.name());
+        json.put("provider", provider.getName());
+        json.put("result", result.name());
+        json.put("authorized", simulator.isAuthorized());
+        json.put("time", time);
+        json.put("requests", simulator.getRequests());
+        json.put("bytes_in", simulator.getBytesIn());
+        json.put("bytes_out", simulator.getBytesOut());
+        json.put("metrics", Metrics.toJSON());
+
+        Logger.log(this, String.format(Locale.ENGLISH,
+                "%s | %s | %s | %d ms | %d requests | %d B in | %d B out",
+                scenario.name(), provider.getName(), result.name(), time,
+                simulator.getRequests(), simulator.getBytesIn(), simulator.getBytesOut()
+        ));
+
+        return json;
+    }
+
+    @Override
+    public void onDestroy() {
+        running.set(false);
+        super.onDestroy();
+    }
+}
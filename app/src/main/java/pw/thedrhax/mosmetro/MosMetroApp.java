@@ -28,6 +28,7 @@ import org.acra.annotation.AcraCore;
 
 import pw.thedrhax.mosmetro.acra.CustomHttpSenderFactory;
 import pw.thedrhax.mosmetro.services.BackendWorker;
+import pw.thedrhax.util.EventLog;
 import pw.thedrhax.util.Logger;
 
 import static org.acra.ReportField.*;
@@ -66,6 +67,7 @@ public class MosMetroApp extends Application {
 
         if (!ACRA.isACRASenderServiceProcess()) {
             Logger.configure(base);
+            EventLog.configure(base);
         }
     }
 }
@@ -30,7 +30,9 @@ import android.graphics.Color;
 import android.graphics.Typeface;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.PreferenceManager;
+import androidx.core.view.ViewCompat;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import android.view.Menu;
@@ -42,11 +44,16 @@ import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.TextView;
 
-import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import pw.thedrhax.mosmetro.R;
 import pw.thedrhax.mosmetro.services.ConnectionService;
+import pw.thedrhax.util.EventLog;
+import pw.thedrhax.util.LogCursor;
 import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Metrics;
 
 public class DebugActivity extends Activity {
     public static final String INTENT_VIEW_ONLY = "view_only";
@@ -63,8 +70,20 @@ public class DebugActivity extends Activity {
     private BroadcastReceiver service_state;
     private IntentFilter service_filter;
 
+    // Log pages are read from disk by this thread
+    private final ExecutorService log_reader = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler();
+
     // Callbacks
     private Logger.Callback logger_callback;
+    private boolean update_scheduled = false;
+    private final Runnable update_log = new Runnable() {
+        @Override
+        public void run() {
+            update_scheduled = false;
+            text_messages_adapter.update();
+        }
+    };
 
     /** Called when the activity is first created. */
     @Override
@@ -102,7 +121,11 @@ public class DebugActivity extends Activity {
         logger_callback = new Logger.Callback() {
             @Override
             public void log(Logger.LEVEL level, String message) {
-                text_messages_adapter.refresh();
+                // Apply all messages received during one frame at once
+                if (!update_scheduled) {
+                    update_scheduled = true;
+                    ViewCompat.postOnAnimation(text_messages, update_log);
+                }
             }
         };
 
@@ -118,6 +141,14 @@ public class DebugActivity extends Activity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        text_messages.removeCallbacks(update_log);
+        log_reader.shutdownNow();
+        handler.removeCallbacksAndMessages(null);
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
@@ -130,7 +161,7 @@ public class DebugActivity extends Activity {
         super.onResume();
         registerReceiver(service_state, service_filter);
         Logger.registerCallback(this, logger_callback);
-        text_messages_adapter.refresh();
+        text_messages_adapter.update();
 
         // Get initial ConnectionService state (not very accurate)
         service_state.onReceive(this,
@@ -186,6 +217,14 @@ public class DebugActivity extends Activity {
                 onBackPressed();
                 return true;
 
+            case R.id.action_metrics:
+                new AlertDialog.Builder(this)
+                        .setTitle(R.string.metrics)
+                        .setMessage(Metrics.snapshot())
+                        .setPositiveButton(R.string.ok, null)
+                        .show();
+                return true;
+
             case R.id.action_clear:
                 new AlertDialog.Builder(this)
                         .setTitle(R.string.log_wipe_confirmation)
@@ -193,7 +232,8 @@ public class DebugActivity extends Activity {
                             @Override
                             public void onClick(DialogInterface dialog, int which) {
                                 Logger.wipe();
-                                text_messages_adapter.refresh();
+                                EventLog.wipe();
+                                text_messages_adapter.update();
                             }
                         })
                         .setNeutralButton(R.string.cancel, new DialogInterface.OnClickListener() {
@@ -234,9 +274,33 @@ public class DebugActivity extends Activity {
     }
 
     public class LogAdapter extends RecyclerView.Adapter<LogAdapter.ViewHolder> {
-        private boolean show_debug = false;
+        private LogCursor cursor = cursor(Logger.LEVEL.INFO);
         private boolean autoscroll = true;
 
+        private final LogCursor.Observer observer = new LogCursor.Observer() {
+            @Override
+            public void onRemoved(int count) {
+                notifyItemRangeRemoved(0, count);
+            }
+
+            @Override
+            public void onInserted(int position, int count) {
+                notifyItemRangeInserted(position, count);
+                scroll();
+            }
+
+            @Override
+            public void onChanged(int position, int count) {
+                notifyItemRangeChanged(position, count);
+            }
+
+            @Override
+            public void onReset() {
+                notifyDataSetChanged();
+                scroll();
+            }
+        };
+
         class ViewHolder extends RecyclerView.ViewHolder {
             TextView mTextView;
 
@@ -257,28 +321,37 @@ public class DebugActivity extends Activity {
 
         @Override
         public void onBindViewHolder(ViewHolder holder, int position) {
-            holder.mTextView.setText(getDataset().get(position));
+            holder.mTextView.setText(cursor.get(position));
         }
 
         @Override
         public int getItemCount() {
-            return getDataset().size();
+            return cursor.size();
         }
 
-        private LinkedList<String> getDataset() {
-            return Logger.read(show_debug ? Logger.LEVEL.DEBUG : Logger.LEVEL.INFO);
+        private LogCursor cursor(Logger.LEVEL level) {
+            return new LogCursor(level, log_reader, new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            });
         }
 
         void showDebug(boolean enabled) {
-            show_debug = enabled;
-            refresh();
+            cursor.close();
+            cursor = cursor(enabled ? Logger.LEVEL.DEBUG : Logger.LEVEL.INFO);
+            notifyDataSetChanged();
+            update();
         }
 
-        void refresh() {
-            notifyDataSetChanged();
+        void update() {
+            cursor.update(observer);
+        }
 
-            if (autoscroll) {
-                text_messages.scrollToPosition(text_messages_adapter.getItemCount() - 1);
+        private void scroll() {
+            if (autoscroll && cursor.size() > 0) {
+                text_messages.scrollToPosition(cursor.size() - 1);
             }
         }
     }
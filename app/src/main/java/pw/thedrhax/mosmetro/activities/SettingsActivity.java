@@ -64,6 +64,7 @@ import pw.thedrhax.mosmetro.services.ConnectionService;
 import pw.thedrhax.mosmetro.services.ReceiverService;
 import pw.thedrhax.mosmetro.updater.UpdateChecker;
 import pw.thedrhax.util.Listener;
+import pw.thedrhax.util.Logger;
 import pw.thedrhax.util.PermissionUtils;
 import pw.thedrhax.util.Version;
 
@@ -358,6 +359,7 @@ public class SettingsActivity extends Activity {
                     .addToBackStack(id)
                     .commit();
         } catch (IllegalStateException ex) { // https://stackoverflow.com/q/7575921
+            Logger.flush();
             ACRA.getErrorReporter().handleException(ex);
         }
     }
@@ -479,7 +481,7 @@ public class SettingsActivity extends Activity {
             public boolean onPreferenceClick(Preference preference) {
                 Map<String, UpdateChecker.Branch> branch_list = branches.get();
                 if (branch_list != null) {
-                    replaceFragment("branch", new BranchFragment().branches(branch_list));
+                    replaceFragment("branch", new BranchFragment().branches(branch_list).updater(updater));
                 } else {
                     preference.setEnabled(false);
                 }
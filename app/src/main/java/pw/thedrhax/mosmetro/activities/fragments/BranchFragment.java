@@ -37,12 +37,18 @@ import pw.thedrhax.util.Version;
 
 public class BranchFragment extends NestedFragment {
     private Map<String, UpdateChecker.Branch> branches;
+    private UpdateChecker updater;
 
     public BranchFragment branches(@NonNull Map<String, UpdateChecker.Branch> branches) {
         this.branches = branches;
         return this;
     }
 
+    public BranchFragment updater(@NonNull UpdateChecker updater) {
+        this.updater = updater;
+        return this;
+    }
+
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -59,7 +65,7 @@ public class BranchFragment extends NestedFragment {
         experimental.setTitle(R.string.pref_updater_branch_experimental);
         screen.addPreference(experimental);
 
-        if (branches == null)
+        if (branches == null || updater == null)
             return;
         final SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(getActivity());
         for (final UpdateChecker.Branch branch : branches.values()) {
@@ -84,7 +90,7 @@ public class BranchFragment extends NestedFragment {
                     ((CheckBoxPreference) preference).setChecked(same);
                     if (!same) {
                         settings.edit().putInt("pref_updater_ignore", 0).apply();
-                        branch.dialog().show();
+                        updater.dialog(branch).show();
                     }
                     getActivity().onBackPressed();
                     return true;
@@ -28,8 +28,10 @@ import javax.net.ssl.SSLPeerUnverifiedException;
 import pw.thedrhax.mosmetro.httpclient.Client;
 import pw.thedrhax.mosmetro.httpclient.HttpResponse;
 import pw.thedrhax.mosmetro.httpclient.clients.OkHttp;
+import pw.thedrhax.util.EventLog;
 import pw.thedrhax.util.Listener;
 import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Metrics;
 import pw.thedrhax.util.Randomizer;
 import pw.thedrhax.util.Util;
 
@@ -61,6 +63,9 @@ public class Gen204 {
             "www.google.com/generate_204"
     };
 
+    private static final Metrics.Histogram CHECK = Metrics.histogram("gen204.check");
+    private static final Metrics.Histogram QUICK_CHECK = Metrics.histogram("gen204.quick");
+
     private final Listener<Boolean> running = new Listener<Boolean>(true);
     private final Client client;
     private final Randomizer random;
@@ -68,9 +73,18 @@ public class Gen204 {
     private Gen204Result last_result = null;
 
     public Gen204(Context context, Listener<Boolean> running) {
+        this(context, running, new OkHttp(context));
+    }
+
+    /**
+     * @param client Client used instead of OkHttp, for example Playback.
+     *               Should not be shared with Provider, because redirects
+     *               are not followed here.
+     */
+    public Gen204(Context context, Listener<Boolean> running, Client client) {
         this.running.subscribe(running);
 
-        client = new OkHttp(context)
+        this.client = client
                 .customDnsEnabled(true)
                 .setFollowRedirects(false)
                 .setRunningListener(this.running);
@@ -158,11 +172,56 @@ public class Gen204 {
     }
 
     public Gen204Result check() {
+        long start = System.nanoTime();
         Gen204Result res = tripleCheck();
         last_result = res;
+        CHECK.since(start);
+
+        String verdict;
+        if (res.isFalseNegative()) {
+            verdict = "false negative";
+        } else if (res.isConnected()) {
+            verdict = "connected";
+        } else if (res.getResponse().getUrl().isEmpty()) {
+            verdict = "unreachable";
+        } else {
+            verdict = "not connected";
+        }
+
+        EventLog.gen204(res.getResponse().getResponseCode(), verdict,
+                (int) ((System.nanoTime() - start) / 1000000));
+
         return res;
     }
 
+    /**
+     * Lightweight check for routine use while connected: a single HTTPS probe
+     * to one of URL_RELIABLE, which a captive portal can't spoof (unlike plain
+     * HTTP, see tripleCheck()). Only 204 is trusted, any other result is
+     * verified by check().
+     */
+    public Gen204Result quickCheck() {
+        long start = System.nanoTime();
+        String url = "https://" + random.choose(URL_RELIABLE);
+
+        try {
+            HttpResponse res = client.get(url).execute();
+            Logger.log(this, url + " | " + res.getResponseCode());
+
+            if (res.getResponseCode() == 204) {
+                last_result = new Gen204Result(res);
+                QUICK_CHECK.since(start);
+                EventLog.gen204(204, "connected (quick)",
+                        (int) ((System.nanoTime() - start) / 1000000));
+                return last_result;
+            }
+        } catch (IOException ex) {
+            Logger.log(this, url + " | " + ex.toString());
+        }
+
+        return check();
+    }
+
     public Gen204Result getLastResult() {
         return last_result != null ? last_result : check();
     }
@@ -51,7 +51,7 @@ public abstract class InitialConnectionCheckTask implements Task {
             return false;
         }
 
-        Logger.log(Logger.LEVEL.DEBUG, response.toString());
+        Logger.log(Logger.LEVEL.DEBUG, response.dump());
         return handle_response(vars, response);
     }
 
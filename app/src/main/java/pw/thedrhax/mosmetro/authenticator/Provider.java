@@ -20,12 +20,16 @@ package pw.thedrhax.mosmetro.authenticator;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 import androidx.annotation.NonNull;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import pw.thedrhax.mosmetro.R;
 import pw.thedrhax.mosmetro.authenticator.providers.MAInet;
@@ -35,11 +39,16 @@ import pw.thedrhax.mosmetro.authenticator.providers.MosMetroV2WV;
 import pw.thedrhax.mosmetro.authenticator.providers.MosMetroV2mcc;
 import pw.thedrhax.mosmetro.authenticator.providers.MosMetroV3;
 import pw.thedrhax.mosmetro.authenticator.providers.Unknown;
+import pw.thedrhax.mosmetro.httpclient.Blocklist;
 import pw.thedrhax.mosmetro.httpclient.Client;
 import pw.thedrhax.mosmetro.httpclient.HttpResponse;
 import pw.thedrhax.mosmetro.httpclient.clients.OkHttp;
+import pw.thedrhax.util.Deadline;
+import pw.thedrhax.util.EventLog;
 import pw.thedrhax.util.Listener;
 import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Metrics;
+import pw.thedrhax.util.Preferences;
 import pw.thedrhax.util.Randomizer;
 
 /**
@@ -70,6 +79,30 @@ public abstract class Provider extends LinkedList<Task> implements Task {
     protected Gen204 gen_204;
     private boolean nested = false;
 
+    /**
+     * Failed Task and variables of the previous start(). The next start()
+     * skips Tasks marked by skipOnResume() until it reaches this Task.
+     */
+    private final ResumePoint resume = new ResumePoint();
+
+    /**
+     * Deadline of the whole sequence and of the current Task. Requests of
+     * the Task are limited by the latter (see Client.setDeadline()).
+     */
+    private Deadline deadline = Deadline.NONE;
+    private Deadline task_deadline = Deadline.NONE;
+
+    /**
+     * Tasks limited only by the deadline of the Provider, see unlimited()
+     */
+    private final Set<Task> unlimited =
+            Collections.newSetFromMap(new IdentityHashMap<Task, Boolean>());
+
+    /**
+     * Duration histograms of Tasks by their names, looked up once per Task
+     */
+    private final Map<Task,Metrics.Histogram> task_metrics = new IdentityHashMap<>();
+
     /**
      * Default Client used for all network operations
      */
@@ -84,7 +117,7 @@ public abstract class Provider extends LinkedList<Task> implements Task {
      * @see Client
      */
     @NonNull public static Provider find(Context context, HttpResponse response) {
-        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences settings = Preferences.shared(context);
 
         if (MosMetroV3.match(response, settings)) return new MosMetroV3(context, response);
         else if (MosMetroV2WV.match(response, settings)) return new MosMetroV2WV(context, response);
@@ -129,7 +162,7 @@ public abstract class Provider extends LinkedList<Task> implements Task {
      */
     public Provider(Context context) {
         this.context = context;
-        this.settings = PreferenceManager.getDefaultSharedPreferences(context);
+        this.settings = Preferences.shared(context);
         this.random = new Randomizer(context);
         this.gen_204 = new Gen204(context, running);
         setClient(new OkHttp(context));
@@ -172,12 +205,7 @@ public abstract class Provider extends LinkedList<Task> implements Task {
      * @return true on success, false on error
      */
     protected boolean init() {
-        for (Task task : this) {
-            if (task instanceof InterceptorTask && !client.interceptors.contains(task)) {
-                client.interceptors.add((InterceptorTask) task);
-            }
-        }
-
+        setInterceptorsEnabled(true);
         return true;
     }
 
@@ -185,9 +213,20 @@ public abstract class Provider extends LinkedList<Task> implements Task {
      * Reverse effect of init().
      */
     protected void deinit() {
+        setInterceptorsEnabled(false);
+    }
+
+    /**
+     * Register or remove all InterceptorTasks of this Provider in the Client.
+     */
+    protected void setInterceptorsEnabled(boolean enabled) {
         for (Task task : this) {
-            if (task instanceof InterceptorTask) {
+            if (!(task instanceof InterceptorTask)) continue;
+
+            if (!enabled) {
                 client.interceptors.remove(task);
+            } else if (!client.interceptors.contains(task)) {
+                client.interceptors.add((InterceptorTask) task);
             }
         }
     }
@@ -198,8 +237,13 @@ public abstract class Provider extends LinkedList<Task> implements Task {
     public RESULT start(HashMap<String,Object> vars) {
         ProviderMetrics metrics = new ProviderMetrics(this);
 
+        boolean resumed = !nested && isResumable() && resume.begin(this, vars);
+        if (resumed) Logger.log(this, "Resuming after the failed Task");
+
         if (!nested) {
             metrics.start();
+            Blocklist.get(context).reset();
+            Logger.resetDumpStats();
             vars.put("result", RESULT.ERROR);
             Logger.date(">> ");
         }
@@ -216,6 +260,11 @@ public abstract class Provider extends LinkedList<Task> implements Task {
                 break;
             }
 
+            if (deadline.isExpired()) {
+                Logger.log(this, "Time limit exceeded before Task #" + i);
+                break;
+            }
+
             final int progress = (i + 1) * 100 / size();
             Task task = get(i);
 
@@ -224,6 +273,8 @@ public abstract class Provider extends LinkedList<Task> implements Task {
 
                 nested.setNested(true);
                 nested.setClient(client);
+                nested.setGen204(gen_204);
+                nested.setDeadline(deadline);
                 nested.setRunningListener(running);
                 nested.setCallback(new ICallback() {
                     @Override
@@ -238,6 +289,7 @@ public abstract class Provider extends LinkedList<Task> implements Task {
                 });
 
                 Logger.log(context.getString(R.string.auth_algorithm_switch, nested.getName()));
+                EventLog.providerSwitch(nested.getName());
                 vars.put("switch", nested.getName());
 
                 nested.start(vars);
@@ -246,17 +298,57 @@ public abstract class Provider extends LinkedList<Task> implements Task {
 
             if (nested && task instanceof FinalConnectionCheckTask) continue;
 
+            if (resumed && resume.skip(task)) {
+                Logger.log(this, "Skipping Task #" + i);
+                continue;
+            }
+
+            String name;
             if (task instanceof NamedTask) {
-                Logger.log(((NamedTask) task).getName());
-                callback.onProgressUpdate(progress, ((NamedTask) task).getName());
+                name = ((NamedTask) task).getName();
+                Logger.log(name);
+                callback.onProgressUpdate(progress, name);
             } else {
+                name = getName() + " #" + i;
                 callback.onProgressUpdate(progress);
             }
 
-            if (!task.run(vars)) break;
+            task_deadline = TaskBudget.deadline(deadline, budget(task));
+            client.setDeadline(task_deadline);
+
+            HashMap<String,Object> before = !nested && isResumable()
+                    ? new HashMap<>(vars) : null;
+
+            EventLog.Span event = EventLog.task(name);
+            long start = System.nanoTime();
+            boolean success = task.run(vars);
+            histogram(task, name).since(start);
+            event.end(success ? 1 : 0, 0);
+
+            if (task_deadline.isExpired()) {
+                Metrics.counter("task.overrun." + name).inc();
+                Logger.log(this, String.format(Locale.ENGLISH,
+                        "Task %s exceeded its time limit (%d ms)",
+                        name, (System.nanoTime() - start) / 1000000
+                ));
+            }
+
+            if (!success) {
+                if (canResume(task, vars)) {
+                    resume.fail(this, task, before);
+                }
+                break;
+            }
         }
 
-        if (!nested) metrics.end(vars);
+        task_deadline = Deadline.NONE;
+        if (!nested) client.setDeadline(Deadline.NONE);
+
+        if (!nested) {
+            metrics.end(vars);
+            Logger.log(Logger.LEVEL.DEBUG, Blocklist.get(context).report());
+            Logger.log(Logger.LEVEL.DEBUG, Logger.resetDumpStats());
+        }
 
         deinit();
 
@@ -269,6 +361,35 @@ public abstract class Provider extends LinkedList<Task> implements Task {
         return start(new HashMap<>());
     }
 
+    /**
+     * Failed connection check means that the whole sequence didn't work.
+     * See ResumePoint.fail() for other conditions.
+     */
+    private boolean canResume(Task task, HashMap<String,Object> vars) {
+        return !nested && isResumable()
+                && !isStopped()
+                && vars.get("result") == RESULT.ERROR
+                && !(task instanceof FinalConnectionCheckTask);
+    }
+
+    /**
+     * @return false if the state of this Provider can't be restored by
+     *         running the Tasks that are not marked by skipOnResume()
+     */
+    protected boolean isResumable() {
+        return true;
+    }
+
+    /**
+     * Mark the Task that can be skipped when start() is resumed after a
+     * failure of one of the next Tasks. Use only for Tasks that don't change
+     * anything except vars, cookies and Client headers.
+     */
+    protected <T extends Task> T skipOnResume(T task) {
+        resume.markSkippable(task);
+        return task;
+    }
+
     @Override
     public boolean run(HashMap<String, Object> vars) {
         throw new RuntimeException("Provider is a special type of Task");
@@ -283,6 +404,56 @@ public abstract class Provider extends LinkedList<Task> implements Task {
         return nested;
     }
 
+    /**
+     * Limit the time of the next start(). Every Task gets its own share of
+     * this time, see budget().
+     */
+    public Provider setDeadline(Deadline deadline) {
+        this.deadline = deadline; return this;
+    }
+
+    protected Deadline getTaskDeadline() {
+        return task_deadline;
+    }
+
+    private Metrics.Histogram histogram(Task task, String name) {
+        Metrics.Histogram result = task_metrics.get(task);
+        if (result == null) {
+            task_metrics.put(task, result = Metrics.histogram("task." + name));
+        }
+        return result;
+    }
+
+    /**
+     * Mark the Task that runs nested Providers or loops over several requests,
+     * so it doesn't fit into the budget of a single request.
+     */
+    protected <T extends Task> T unlimited(T task) {
+        unlimited.add(task);
+        return task;
+    }
+
+    /**
+     * Time limit of a single Task in ms: three tries of a request with delays
+     * between them, or the timeout of a WaitTask if it's longer.
+     * @return Budget in ms, 0 if the Task is limited only by the Provider's deadline
+     */
+    protected long budget(Task task) {
+        if (unlimited.contains(task)) return 0;
+
+        Preferences prefs = Preferences.get(context);
+
+        long budget = TaskBudget.requests(
+                prefs.timeout, prefs.delay_always ? prefs.random_delay_max : 0
+        );
+
+        if (task instanceof WaitTask) {
+            budget = TaskBudget.waiting(budget, ((WaitTask) task).getTimeout());
+        }
+
+        return budget;
+    }
+
     /**
      * Listener used to stop Provider immediately after
      * variable is changed by another thread
@@ -303,7 +474,8 @@ public abstract class Provider extends LinkedList<Task> implements Task {
         this.client = client
                 .customDnsEnabled(true)
                 .setRunningListener(running)
-                .setDelaysEnabled(settings.getBoolean("pref_delay_always", false));
+                .setBlocklist(Blocklist.get(context))
+                .setDelaysEnabled(Preferences.get(context).delay_always);
         return this;
     }
 
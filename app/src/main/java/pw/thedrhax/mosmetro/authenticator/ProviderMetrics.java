@@ -18,21 +18,19 @@
 
 package pw.thedrhax.mosmetro.authenticator;
 
-import android.annotation.SuppressLint;
-import android.os.AsyncTask;
 import android.os.Build;
 
-import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
 
-import pw.thedrhax.mosmetro.BuildConfig;
-import pw.thedrhax.mosmetro.httpclient.clients.OkHttp;
-import pw.thedrhax.mosmetro.updater.BackendRequest;
+import pw.thedrhax.mosmetro.services.BackendWorker;
+import pw.thedrhax.mosmetro.updater.StatisticsQueue;
+import pw.thedrhax.util.Metrics;
 import pw.thedrhax.util.UUID;
 import pw.thedrhax.util.Version;
 import pw.thedrhax.util.WifiUtils;
 
-class ProviderMetrics {
+public class ProviderMetrics {
     private final Provider p;
 
     ProviderMetrics(Provider provider) {
@@ -46,7 +44,6 @@ class ProviderMetrics {
         return this;
     }
 
-    @SuppressLint("StaticFieldLeak")
     public boolean end(HashMap<String, Object> vars) {
         boolean connected;
 
@@ -56,16 +53,43 @@ class ProviderMetrics {
             default: return false;
         }
 
-        WifiUtils wifi = new WifiUtils(p.context);
+        Long duration = null;
 
-        final HashMap<String, String> params = new HashMap<>();
+        if (start_ts != null) {
+            duration = System.currentTimeMillis() - start_ts;
+            Metrics.histogram("provider.login").record(duration * 1000);
+            Metrics.gauge("provider.last_login_ms").set(duration);
+        }
+
+        HashMap<String, String> params = params(
+                UUID.get(p.context), Build.VERSION.SDK_INT,
+                new WifiUtils(p.context).getSSID(), p.getName(),
+                connected, duration, vars
+        );
+
+        new StatisticsQueue(p.context).add(params);
+        BackendWorker.sync(p.context);
 
-        params.put("uuid", UUID.get(p.context));
+        return false;
+    }
+
+    /**
+     * Build a statistics record. Doesn't depend on Android, so the same
+     * records can be generated on JVM (see BackendLoad in :benchmark).
+     *
+     * @param duration Login duration in ms or null if unknown
+     */
+    public static HashMap<String, String> params(String uuid, int api_level, String ssid,
+                                                 String provider, boolean connected,
+                                                 Long duration, Map<String, Object> vars) {
+        HashMap<String, String> params = new HashMap<>();
+
+        params.put("uuid", uuid);
         params.put("version_name", Version.getVersionName());
         params.put("version_code", "" + Version.getVersionCode());
         params.put("build_branch", Version.getBranch());
         params.put("build_number", "" + Version.getBuildNumber());
-        params.put("api_level", "" + Build.VERSION.SDK_INT);
+        params.put("api_level", "" + api_level);
 
         if (vars.containsKey("midsession")) {
             params.put("success", "midsession");
@@ -73,18 +97,15 @@ class ProviderMetrics {
             params.put("success", connected ? "true" : "false");
         }
 
-        params.put("ssid", wifi.getSSID());
-        params.put("provider", p.getName());
-
-        String provider = p.getName();
+        params.put("ssid", ssid);
+        params.put("provider", provider);
 
-        if (start_ts != null) {
-            params.put("duration", "" + (System.currentTimeMillis() - start_ts));
+        if (duration != null) {
+            params.put("duration", "" + duration);
         }
 
         if (vars.containsKey("switch")) {
-            provider = (String) vars.get("switch");
-            params.put("switch", provider);
+            params.put("switch", (String) vars.get("switch"));
         }
 
         if (vars.containsKey("segment")) {
@@ -95,28 +116,6 @@ class ProviderMetrics {
             params.put("branch", (String) vars.get("branch"));
         }
 
-        new AsyncTask<Void,Void,Void>() {
-            @Override
-            protected Void doInBackground(Void... none) {
-                if (!p.random.delay(p.running)) return null;
-
-                String STATISTICS_URL = p.settings.getString(
-                        BackendRequest.PREF_BACKEND_URL,
-                        BuildConfig.API_URL_DEFAULT
-                ) + BuildConfig.API_REL_STATISTICS;
-
-                try {
-                    new OkHttp(p.context).post(STATISTICS_URL, params).execute();
-                } catch (IOException ignored) {}
-
-                return null;
-            }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-
-        if (System.currentTimeMillis() - 6*60*60*1000 > p.settings.getLong("pref_worker_timestamp", 0)) {
-            new BackendRequest(p.context).run();
-        }
-
-        return false;
+        return params;
     }
 }
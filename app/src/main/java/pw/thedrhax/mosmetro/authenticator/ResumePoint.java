@@ -0,0 +1,119 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pw.thedrhax.mosmetro.authenticator;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Failed Task of the previous start() and variables right before it.
+ *
+ * A resumed start() runs the whole sequence again, except for the Tasks
+ * before the failed one that are explicitly marked as skippable. Tasks
+ * that set up the state of the Provider (fields, interceptors, WebView)
+ * must not be marked.
+ *
+ * @see Provider#skipOnResume(Task)
+ */
+class ResumePoint {
+    private final Set<Task> skippable =
+            Collections.newSetFromMap(new IdentityHashMap<Task, Boolean>());
+
+    private Task failed = null;
+    private HashMap<String,Object> vars = null;
+
+    // State of the current start()
+    private Task resumed = null;
+    private boolean reached = false;
+
+    void markSkippable(Task task) {
+        skippable.add(task);
+    }
+
+    /**
+     * Start the sequence. Restores variables if the previous one has failed.
+     * @return true if this start() is resumed
+     */
+    boolean begin(List<Task> tasks, HashMap<String,Object> vars) {
+        resumed = null;
+        reached = false;
+
+        if (failed != null && indexOf(tasks, failed) != -1) {
+            resumed = failed;
+            vars.putAll(this.vars);
+        }
+
+        clear();
+        return resumed != null;
+    }
+
+    /**
+     * @return true if the Task can be skipped in the current start()
+     */
+    boolean skip(Task task) {
+        if (resumed == null || reached) return false;
+
+        if (task == resumed) {
+            reached = true;
+            return false;
+        }
+
+        return skippable.contains(task);
+    }
+
+    /**
+     * Remember the failed Task if resuming from it makes sense: at least one
+     * Task before it can be skipped and it hasn't failed right after the
+     * previous resume.
+     * @param before Variables right before the failed Task
+     * @return true if the next start() will be resumed
+     */
+    boolean fail(List<Task> tasks, Task task, HashMap<String,Object> before) {
+        clear();
+
+        if (task == resumed) return false;
+
+        int index = indexOf(tasks, task);
+        for (int i = 0; i < index; i++) {
+            if (skippable.contains(tasks.get(i))) {
+                failed = task;
+                vars = before;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    void clear() {
+        failed = null;
+        vars = null;
+    }
+
+    private static int indexOf(List<Task> tasks, Task task) {
+        for (int i = 0; i < tasks.size(); i++) {
+            if (tasks.get(i) == task) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pw.thedrhax.mosmetro.authenticator;
+
+import pw.thedrhax.util.Deadline;
+
+/**
+ * Time limits of Tasks inside the deadline of a Provider.
+ *
+ * @see Provider#budget(Task)
+ */
+final class TaskBudget {
+    // Client.setTimeout(0) keeps the default timeouts of OkHttp
+    private static final int DEFAULT_TIMEOUT = 10;
+
+    private TaskBudget() {}
+
+    /**
+     * @param timeout    Timeout of a single request in seconds, 0 for default
+     * @param delay_max  Maximum random delay before each request in seconds
+     * @return Three tries of a request with delays between them in ms
+     */
+    static long requests(int timeout, int delay_max) {
+        if (timeout == 0) timeout = DEFAULT_TIMEOUT;
+        return ((Math.max(timeout, 5) + delay_max) * 3 + 5) * 1000L;
+    }
+
+    /**
+     * @param budget   Budget of requests in ms, see requests()
+     * @param timeout  Timeout of a WaitTask in ms, 0 if not limited
+     * @return Budget of a WaitTask in ms, 0 if not limited
+     */
+    static long waiting(long budget, int timeout) {
+        if (timeout == 0) return 0;
+        return Math.max(budget, timeout + budget / 3);
+    }
+
+    /**
+     * @param deadline  Deadline of the Provider
+     * @param budget    Budget of the Task in ms, 0 if not limited
+     * @return Deadline of the Task, never later than the Provider's one
+     */
+    static Deadline deadline(Deadline deadline, long budget) {
+        return budget > 0 ? deadline.within(budget) : deadline;
+    }
+}
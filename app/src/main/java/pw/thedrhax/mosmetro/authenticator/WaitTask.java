@@ -37,6 +37,10 @@ public abstract class WaitTask extends NamedTask {
                 return true;
             }
 
+            if (p.getTaskDeadline().isExpired()) {
+                return false;
+            }
+
             if (!p.running.sleep(interval)) {
                 return false;
             }
@@ -56,6 +60,13 @@ public abstract class WaitTask extends NamedTask {
         tries(timeout / interval); return this;
     }
 
+    /**
+     * @return Maximum time of waiting in ms, 0 if not limited
+     */
+    public int getTimeout() {
+        return tries > 0 ? tries * interval : 0;
+    }
+
     protected void stop() {
         tries(-1);
     }
@@ -24,6 +24,9 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.IBinder;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import pw.thedrhax.mosmetro.services.WebViewService;
 import pw.thedrhax.util.Listener;
 import pw.thedrhax.util.Logger;
@@ -42,56 +45,98 @@ public abstract class WebViewProvider extends Provider {
         super(context);
     }
 
-    private boolean initialized = false;
+    private static final long ATTACH_TIMEOUT = 30 * 1000;
 
-    @Override
-    public boolean init() {
-        if (!super.init()) return false;
-
-        if (!initialized) {
-            Intent intent = new Intent(
-                    context, WebViewService.class
-            ).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-
-            if (!context.bindService(intent, connection, Context.BIND_AUTO_CREATE)) {
-                Logger.log(this, "Can't connect to WebViewService");
-                deinit();
-                return false;
+    private boolean bound = false;
+
+    /**
+     * Attach to WebViewService and wait until WebView is ready. The service is
+     * created and kept alive by ConnectionService, this Provider never creates
+     * or destroys it. Subclasses attach right before WebView is needed.
+     * @return true on success, false on error, timeout or interruption
+     */
+    protected boolean bindWebView() {
+        if (bound) return true;
+
+        Intent intent = new Intent(
+                context, WebViewService.class
+        ).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+
+        connected = new CountDownLatch(1);
+
+        // Release the latch if Provider is stopped before the service is connected
+        Listener<Boolean> cancel = new Listener<Boolean>(true) {
+            @Override
+            public void onChange(Boolean new_value) {
+                if (!new_value) connected.countDown();
             }
+        };
+        cancel.subscribe(running);
 
-            while (wv == null) {
-                if (!running.sleep(100)) {
-                    deinit();
-                    return false;
-                }
+        if (!context.bindService(intent, connection, 0)) {
+            Logger.log(this, "Can't connect to WebViewService");
+            cancel.unsubscribe();
+            return false;
+        }
+
+        // Unbind even if service is not connected yet
+        bound = true;
+
+        try {
+            long timeout = Math.min(getTaskDeadline().remaining(), ATTACH_TIMEOUT);
+            if (running.get() && !connected.await(timeout, TimeUnit.MILLISECONDS)) {
+                Logger.log(this, "WebViewService is not running");
             }
+        } catch (InterruptedException ex) {
+            Logger.log(Logger.LEVEL.DEBUG, ex);
+        }
+
+        cancel.unsubscribe();
+
+        if (wv == null || !running.get()) {
+            unbindWebView();
+            return false;
         }
 
-        initialized = true;
         return true;
     }
 
-    @Override
-    public void deinit() {
-        if (initialized) {
-            Logger.log(this, "Stopping WebViewService");
+    /**
+     * Reset WebView and detach from WebViewService. The service and its
+     * WebView stay alive for the next Provider.
+     */
+    protected void unbindWebView() {
+        if (!bound) return;
 
-            Listener<Boolean> destroyed = wv.onDestroyListener();
+        Logger.log(this, "Detaching from WebViewService");
 
-            try {
-                context.unbindService(connection);
-            } catch (IllegalArgumentException ex) {
-                Logger.log(Logger.LEVEL.DEBUG, ex);
-            }
+        if (wv != null) {
+            wv.reset();
+        }
 
-            while (running.sleep(50) && !destroyed.sleep(50));
+        try {
+            context.unbindService(connection);
+        } catch (IllegalArgumentException ex) {
+            Logger.log(Logger.LEVEL.DEBUG, ex);
+        }
 
-            wv = null;
-            initialized = false;
+        wv = null;
+        bound = false;
 
-            Logger.log(this, "WebViewService disconnected");
-        }
+        Logger.log(this, "WebViewService detached");
+    }
 
+    /**
+     * WebView is released in deinit(), so the Tasks that use it can't be skipped.
+     */
+    @Override
+    protected boolean isResumable() {
+        return false;
+    }
+
+    @Override
+    public void deinit() {
+        unbindWebView();
         super.deinit();
     }
 
@@ -100,6 +145,7 @@ public abstract class WebViewProvider extends Provider {
      */
 
     protected WebViewService wv = null;
+    private CountDownLatch connected = new CountDownLatch(1);
 
     private ServiceConnection connection = new ServiceConnection() {
         @Override
@@ -111,6 +157,8 @@ public abstract class WebViewProvider extends Provider {
             } else {
                 running.set(false);
             }
+
+            connected.countDown();
         }
 
         @Override
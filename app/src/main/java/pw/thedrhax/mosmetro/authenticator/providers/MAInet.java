@@ -99,7 +99,7 @@ public class MAInet extends Provider {
                         put("password", password);
                     }}).retry().execute();
 
-                    Logger.log(Logger.LEVEL.DEBUG, response.toString());
+                    Logger.log(Logger.LEVEL.DEBUG, response.dump());
                 } catch (IOException ex) {
                     Logger.log(Logger.LEVEL.DEBUG, ex);
                     Logger.log(context.getString(R.string.error,
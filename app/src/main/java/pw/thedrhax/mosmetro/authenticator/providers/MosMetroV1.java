@@ -83,7 +83,7 @@ public class MosMetroV1 extends Provider {
 
                 try {
                     response = client.get(redirect).retry().execute();
-                    Logger.log(Logger.LEVEL.DEBUG, response.getPageContent().outerHtml());
+                    Logger.log(Logger.LEVEL.DEBUG, response.dump());
                 } catch (IOException ex) {
                     Logger.log(Logger.LEVEL.DEBUG, ex);
                     Logger.log(context.getString(R.string.error,
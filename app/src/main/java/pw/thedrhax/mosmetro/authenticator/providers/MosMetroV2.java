@@ -157,7 +157,7 @@ public class MosMetroV2 extends Provider {
 
                     try {
                         HttpResponse response = client.get(redirect).retry().execute();
-                        Logger.log(Logger.LEVEL.DEBUG, response.toString());
+                        Logger.log(Logger.LEVEL.DEBUG, response.dump());
                     } catch (IOException ex) {
                         Logger.log(Logger.LEVEL.DEBUG, ex);
                     }
@@ -178,7 +178,7 @@ public class MosMetroV2 extends Provider {
          * ⇒ GET http://auth.wi-fi.ru/?segment=... < redirect, segment
          * ⇐ JavaScript Redirect: http://auth.wi-fi.ru/auth?segment=...
          */
-        add(new NamedTask(context.getString(R.string.auth_redirect)) {
+        add(skipOnResume(new NamedTask(context.getString(R.string.auth_redirect)) {
             @Override
             public boolean run(HashMap<String, Object> vars) {
                 try {
@@ -187,7 +187,7 @@ public class MosMetroV2 extends Provider {
                     }
 
                     HttpResponse response = client.get(redirect).retry().execute();
-                    Logger.log(Logger.LEVEL.DEBUG, response.toString());
+                    Logger.log(Logger.LEVEL.DEBUG, response.dump());
 
                     return true;
                 } catch (IOException | ParseException ex) {
@@ -198,7 +198,7 @@ public class MosMetroV2 extends Provider {
                     return false;
                 }
             }
-        });
+        }));
 
         /**
          * Async: https://auth.wi-fi.ru/auth
@@ -230,7 +230,7 @@ public class MosMetroV2 extends Provider {
          * ⇐ Form: method="post" action="/auto_auth" (captcha)
          * ⇐ AJAX: http://auth.wi-fi.ru/auth/init?segment=... (no captcha)
          */
-        add(new NamedTask(context.getString(R.string.auth_auth_page)) {
+        add(skipOnResume(new NamedTask(context.getString(R.string.auth_auth_page)) {
             @Override
             public boolean run(HashMap<String, Object> vars) {
                 String url = HttpResponse.removePathFromUrl(redirect);
@@ -260,10 +260,15 @@ public class MosMetroV2 extends Provider {
                     if (mosmetro || spb) { // expecting JSON
                         Logger.log(Logger.LEVEL.DEBUG, response.toHeaderString());
 
-                        DocumentContext json = response.jsonpath();
+                        final DocumentContext json = response.jsonpath();
                         json.delete("$.data.segmentParams.auth");
                         json.delete("$.data.userParams");
-                        Logger.log(Logger.LEVEL.DEBUG, json.jsonString());
+                        Logger.log(Logger.LEVEL.DEBUG, new Logger.Supplier() {
+                            @Override
+                            public String get() {
+                                return json.jsonString();
+                            }
+                        });
 
                         String afterAuth = json.read("$.data.segmentParams.common.redirectUrl.afterAuth");
                         if (afterAuth != null) {
@@ -271,7 +276,7 @@ public class MosMetroV2 extends Provider {
                             Logger.log(Logger.LEVEL.DEBUG, "Post-auth redirect: " + afterAuth);
                         }
                     } else {
-                        Logger.log(Logger.LEVEL.DEBUG, response.toString());
+                        Logger.log(Logger.LEVEL.DEBUG, response.dump());
                     }
 
                     return true;
@@ -283,7 +288,7 @@ public class MosMetroV2 extends Provider {
                     return false;
                 }
             }
-        });
+        }));
 
         /**
          * Setting auth token
@@ -303,7 +308,7 @@ public class MosMetroV2 extends Provider {
 
                 try {
                     HttpResponse response = client.get(url).execute();
-                    Logger.log(Logger.LEVEL.DEBUG, response.getPageContent().outerHtml());
+                    Logger.log(Logger.LEVEL.DEBUG, response.dump());
                 } catch (IOException ex) {
                     Logger.log(Logger.LEVEL.DEBUG, ex);
                 }
@@ -312,12 +317,12 @@ public class MosMetroV2 extends Provider {
         });
 
         if (!settings.getBoolean("pref_delay_always", false))
-        add(new NamedTask(context.getString(R.string.notification_progress_waiting)) {
+        add(skipOnResume(new NamedTask(context.getString(R.string.notification_progress_waiting)) {
             @Override
             public boolean run(HashMap<String, Object> vars) {
                 random.delay(running); return true;
             }
-        });
+        }));
 
         /**
          * Sending login form
@@ -347,7 +352,7 @@ public class MosMetroV2 extends Provider {
 
                 try {
                     HttpResponse res = client.post(url, params).retry().execute();
-                    Logger.log(Logger.LEVEL.DEBUG, res.toString());
+                    Logger.log(Logger.LEVEL.DEBUG, res.dump());
 
                     DocumentContext data = res.jsonpath();
 
@@ -401,8 +406,8 @@ public class MosMetroV2 extends Provider {
                 }
 
                 try {
-                    HttpResponse res = client.get(url).retry().execute();
-                    Logger.log(Logger.LEVEL.DEBUG, res.toString());
+                    HttpResponse res = client.get(url).retry().hedge().execute();
+                    Logger.log(Logger.LEVEL.DEBUG, res.dump());
                 } catch (IOException ex) {
                     Logger.log(Logger.LEVEL.DEBUG, ex);
                     Logger.log(context.getString(R.string.error,
@@ -26,7 +26,9 @@ import androidx.annotation.Nullable;
 
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import pw.thedrhax.mosmetro.R;
@@ -44,6 +46,7 @@ import pw.thedrhax.mosmetro.httpclient.Headers;
 import pw.thedrhax.mosmetro.httpclient.HttpRequest;
 import pw.thedrhax.mosmetro.httpclient.HttpResponse;
 import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Preferences;
 import pw.thedrhax.util.Util;
 
 /**
@@ -56,6 +59,10 @@ import pw.thedrhax.util.Util;
  * When pref_mosmetro_v3 is disabled, welcome.wi-fi.ru will be handled and bypassed by MosMetroV2WV
  * in all regions except Saint Petersburg (see MosMetroV3 instead).
  *
+ * Branches listed in pref_mosmetro_v2_wv_headless are first handled by MosMetroV2, which sends
+ * the same gapi/auth requests as the page would do, without WebView. WebView is used only if
+ * this attempt fails.
+ *
  * Overrides: MosMetroV2
  *
  * @author Dmitry Karikh <the.dr.hax@gmail.com>
@@ -63,9 +70,11 @@ import pw.thedrhax.util.Util;
  */
 
 public class MosMetroV2WV extends WebViewProvider {
+    private static final Set<String> HEADLESS_BRANCHES_DEFAULT = Collections.emptySet();
+
     private String redirect = "http://auth.wi-fi.ru/?segment=metro";
 
-    public MosMetroV2WV(Context context, HttpResponse res) {
+    public MosMetroV2WV(Context context, final HttpResponse res) {
         super(context);
 
         /**
@@ -127,7 +136,7 @@ public class MosMetroV2WV extends WebViewProvider {
 
                     try {
                         HttpResponse response = client.get(redirect).retry().execute();
-                        Logger.log(Logger.LEVEL.DEBUG, response.toString());
+                        Logger.log(Logger.LEVEL.DEBUG, response.dump());
                     } catch (IOException ex) {
                         Logger.log(Logger.LEVEL.DEBUG, ex);
                     }
@@ -144,15 +153,50 @@ public class MosMetroV2WV extends WebViewProvider {
         });
 
         /**
-         * Async: Block some URL patterns for performance and stability
+         * Headless mode: try to connect without WebView
+         * branch ∈ pref_mosmetro_v2_wv_headless
          */
-        add(new InterceptorTask(".*(ads\\.adfox\\.ru|mc\\.yandex\\.ru|ac\\.yandex\\.ru|\\.mp4$).*") {
-            @Nullable @Override
-            public HttpResponse request(Client client, HttpRequest request) throws IOException {
-                Logger.log(Logger.LEVEL.DEBUG, "Blocked: " + request.getUrl());
-                return new HttpResponse(request, "");
+        final Set<String> headless = settings.getStringSet(
+                "pref_mosmetro_v2_wv_headless", HEADLESS_BRANCHES_DEFAULT
+        );
+
+        add(unlimited(new Task() {
+            @Override
+            public boolean run(HashMap<String, Object> vars) {
+                if (!headless.contains((String) vars.get("branch"))) return true;
+
+                Provider nested = new MosMetroV2(context, res)
+                        .setNested(true)
+                        .setClient(client)
+                        .setRunningListener(running)
+                        .setGen204(gen_204)
+                        .setDeadline(getTaskDeadline())
+                        .setCallback(callback);
+
+                Logger.log(context.getString(R.string.auth_algorithm_switch, nested.getName()));
+                vars.put("switch", nested.getName());
+
+                // Interceptors of this Provider are meant for WebView only
+                setInterceptorsEnabled(false);
+                nested.start(vars);
+                setInterceptorsEnabled(true);
+                client.setDeadline(getTaskDeadline());
+
+                if (isStopped() || vars.get("result") == RESULT.NOT_REGISTERED) {
+                    return false;
+                }
+
+                if (isConnected()) {
+                    Logger.log(context.getString(R.string.auth_connected));
+                    vars.put("result", RESULT.CONNECTED);
+                    return false;
+                }
+
+                Logger.log(context.getString(R.string.auth_algorithm_switch, getName()));
+                vars.remove("switch");
+                return true;
             }
-        });
+        }));
 
         String key = random.string(25).toLowerCase();
 
@@ -254,6 +298,16 @@ public class MosMetroV2WV extends WebViewProvider {
             }
         });
 
+        /**
+         * Connecting to WebViewService
+         */
+        add(new Task() {
+            @Override
+            public boolean run(HashMap<String, Object> vars) {
+                return bindWebView();
+            }
+        });
+
         /**
          * Opening auth page
          * ⇒ GET https://auth.wi-fi.ru
@@ -284,8 +338,8 @@ public class MosMetroV2WV extends WebViewProvider {
          * Also check internet connection once every internet_check_interval (10 seconds by default)
          */
         add(new WaitTask(this, context.getString(R.string.auth_webview_script)) {
-            private final boolean pref_internet_check = settings.getBoolean("pref_internet_check", true);
-            private final int interval = Util.getIntPreference(context, "pref_internet_check_interval", 10);
+            private final boolean pref_internet_check = Preferences.get(context).internet_check;
+            private final int interval = Preferences.get(context).internet_check_interval;
             private int counter = 0;
 
             @Override
@@ -105,7 +105,7 @@ public class MosMetroV2mcc extends Provider {
                     HttpResponse response = client.get(redirect).retry().execute();
 
                     redirect = response.get300Redirect();
-                    Logger.log(Logger.LEVEL.DEBUG, response.toString());
+                    Logger.log(Logger.LEVEL.DEBUG, response.dump());
 
                     provider = Provider.find(context, response);
                 } catch (IOException|ParseException ex) {
@@ -170,7 +170,7 @@ public class MosMetroV2mcc extends Provider {
                     }
 
                     client.setFollowRedirects(true);
-                    Logger.log(Logger.LEVEL.DEBUG, response.toString());
+                    Logger.log(Logger.LEVEL.DEBUG, response.dump());
                 } catch (IOException ex) {
                     Logger.log(Logger.LEVEL.DEBUG, ex);
                     Logger.log(context.getString(R.string.error,
@@ -214,7 +214,7 @@ public class MosMetroV2mcc extends Provider {
                     HttpResponse response = client.get(redirect).retry().execute();
 
                     redirect = response.get300Redirect();
-                    Logger.log(Logger.LEVEL.DEBUG, response.toString());
+                    Logger.log(Logger.LEVEL.DEBUG, response.dump());
 
                     return false;
                 } catch (IOException ex) {
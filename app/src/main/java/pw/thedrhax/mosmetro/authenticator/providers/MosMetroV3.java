@@ -85,7 +85,7 @@ public class MosMetroV3 extends Provider {
          * ⇐ 200 OK
          * ⇐ Meta csrf-token > token
          */
-        add(new NamedTask(context.getString(R.string.auth_auth_page)) {
+        add(skipOnResume(new NamedTask(context.getString(R.string.auth_auth_page)) {
             @Override
             public boolean run(HashMap<String, Object> vars) {
                 HttpResponse response;
@@ -94,7 +94,7 @@ public class MosMetroV3 extends Provider {
                     Map<String,String> params = new HashMap<>();
                     params.put("client_mac", (String)vars.get("mac"));
                     response = client.get(redirect, params).retry().execute();
-                    Logger.log(Logger.LEVEL.DEBUG, response.getPageContent().outerHtml());
+                    Logger.log(Logger.LEVEL.DEBUG, response.dump());
                 } catch (IOException ex) {
                     Logger.log(Logger.LEVEL.DEBUG, ex);
                     Logger.log(context.getString(R.string.error,
@@ -115,7 +115,7 @@ public class MosMetroV3 extends Provider {
 
                 return true;
             }
-        });
+        }));
 
         /**
          * Initializing auth procedure
@@ -140,7 +140,7 @@ public class MosMetroV3 extends Provider {
                             "application/json; charset=UTF-8"
                     ).retry().execute();
 
-                    Logger.log(Logger.LEVEL.DEBUG, response.toString());
+                    Logger.log(Logger.LEVEL.DEBUG, response.dump());
                 } catch (IOException ex) {
                     Logger.log(Logger.LEVEL.DEBUG, ex);
                     Logger.log(context.getString(R.string.error,
@@ -179,8 +179,8 @@ public class MosMetroV3 extends Provider {
                     params.put("client_mac", (String)vars.get("mac"));
                     params.put("client_ip", "");
 
-                    HttpResponse response = client.get(redirect + "/auth/check", params).retry().execute();
-                    Logger.log(Logger.LEVEL.DEBUG, response.toString());
+                    HttpResponse response = client.get(redirect + "/auth/check", params).retry().hedge().execute();
+                    Logger.log(Logger.LEVEL.DEBUG, response.dump());
                 } catch (IOException ex) {
                     Logger.log(Logger.LEVEL.DEBUG, ex);
                 }
@@ -202,7 +202,7 @@ public class MosMetroV3 extends Provider {
 
                     HttpResponse response = client.get(redirect + "/success", params).retry().execute();
                     vars.put("response", response);
-                    Logger.log(Logger.LEVEL.DEBUG, response.toString());
+                    Logger.log(Logger.LEVEL.DEBUG, response.dump());
                 } catch (IOException ex) {
                     Logger.log(Logger.LEVEL.DEBUG, ex);
                     Logger.log(context.getString(R.string.error,
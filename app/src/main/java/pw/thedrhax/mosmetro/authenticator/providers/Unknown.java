@@ -46,7 +46,8 @@ public class Unknown extends Provider {
     public Unknown(final Context context, final HttpResponse response) {
         super(context);
 
-        add(new InitialConnectionCheckTask(this, response) {
+        // Follows redirects and runs nested Providers in a loop
+        add(unlimited(new InitialConnectionCheckTask(this, response) {
             @Override
             public boolean handle_response(HashMap<String, Object> vars, HttpResponse response) {
                 boolean recheck = false;
@@ -64,10 +65,10 @@ public class Unknown extends Provider {
 
                         if (provider instanceof Unknown) {
                             HttpRequest req = client.get(redirect).retry();
-                            Logger.log(Logger.LEVEL.DEBUG, res.getRequest().toString());
+                            Logger.log(Logger.LEVEL.DEBUG, res.getRequest().dump());
 
                             res = req.execute(); // throws IOException
-                            Logger.log(Logger.LEVEL.DEBUG, res.toString());
+                            Logger.log(Logger.LEVEL.DEBUG, res.dump());
 
                             redirect = res.parseAnyRedirect(); // throws ParseException
                         } else {
@@ -79,8 +80,11 @@ public class Unknown extends Provider {
                             provider.setNested(true)
                                     .setRunningListener(running)
                                     .setClient(client)
+                                    .setDeadline(getTaskDeadline())
                                     .start(vars);
 
+                            client.setDeadline(getTaskDeadline());
+
                             Logger.log(context.getString(R.string.auth_waiting));
                             if (!running.sleep(5000)) return false;
 
@@ -113,6 +117,6 @@ public class Unknown extends Provider {
                 vars.put("result", RESULT.NOT_SUPPORTED);
                 return false;
             }
-        });
+        }));
     }
 }
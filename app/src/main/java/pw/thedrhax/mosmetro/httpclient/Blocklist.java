@@ -0,0 +1,251 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.httpclient;
+
+import android.content.Context;
+import android.net.Uri;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import pw.thedrhax.mosmetro.BuildConfig;
+import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Util;
+
+/**
+ * List of URLs that must never be requested during the authentication.
+ *
+ * Rules are read line by line:
+ *   # comment
+ *   example.com       - block example.com and all of its subdomains
+ *   /\.mp4$/          - block all URLs with path matching this regular expression
+ *
+ * Host rules are compiled into a suffix set and path rules are merged into a single
+ * regular expression, so the cost of a lookup doesn't depend on the number of rules.
+ *
+ * The bundled list is stored in assets/blocklist.txt. Newer version is downloaded
+ * by BackendRequest and stored by CachedRetriever.
+ *
+ * @see Client
+ */
+
+public class Blocklist {
+    private static final String ASSET = "blocklist.txt";
+    private static Blocklist instance = null;
+
+    public static synchronized Blocklist get(Context context) {
+        if (instance == null) {
+            instance = new Blocklist();
+
+            String rules = CachedRetriever.get(context).getCached(BuildConfig.BLOCKLIST_URL);
+
+            if (rules == null || instance.load(rules) == 0) {
+                try {
+                    instance.load(Util.readAsset(context, ASSET));
+                } catch (IOException ex) {
+                    Logger.log(Logger.LEVEL.DEBUG, ex);
+                }
+            }
+        }
+        return instance;
+    }
+
+    private Map<String, Rule> hosts = new HashMap<>();
+    private List<Rule> paths = new LinkedList<>();
+    private Pattern path_pattern = null;
+
+    /**
+     * Replace all rules with the new ones. Current rules are kept if the new
+     * list doesn't contain any valid rules.
+     * @param text  Contents of the blocklist.
+     * @return      Number of valid rules.
+     */
+    public synchronized int load(String text) {
+        Map<String, Rule> hosts = new HashMap<>();
+        List<Rule> paths = new LinkedList<>();
+        StringBuilder combined = new StringBuilder();
+
+        for (String line : text.split("\n")) {
+            line = line.trim();
+
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            if (line.length() > 2 && line.startsWith("/") && line.endsWith("/")) {
+                Rule rule;
+
+                try {
+                    rule = new Rule(line, Pattern.compile(line.substring(1, line.length() - 1)));
+                } catch (PatternSyntaxException ex) {
+                    Logger.log(this, "Invalid rule: " + line);
+                    continue;
+                }
+
+                if (combined.length() > 0) combined.append('|');
+                combined.append("(?:").append(rule.pattern.pattern()).append(')');
+                paths.add(rule);
+            } else {
+                String host = line.toLowerCase();
+                hosts.put(host, new Rule(host, null));
+            }
+        }
+
+        if (hosts.isEmpty() && paths.isEmpty()) {
+            return 0;
+        }
+
+        // Keep counters of the rules that are still present
+        for (Rule rule : this.hosts.values()) {
+            Rule next = hosts.get(rule.source);
+            if (next != null) next.add(rule);
+        }
+        for (Rule rule : this.paths) {
+            for (Rule next : paths) {
+                if (next.source.equals(rule.source)) {
+                    next.add(rule); break;
+                }
+            }
+        }
+
+        this.hosts = hosts;
+        this.paths = paths;
+        this.path_pattern = combined.length() > 0 ? Pattern.compile(combined.toString()) : null;
+
+        Logger.log(Logger.LEVEL.DEBUG,
+                "Blocklist: " + hosts.size() + " hosts, " + paths.size() + " paths"
+        );
+
+        return hosts.size() + paths.size();
+    }
+
+    /**
+     * Find the first rule that matches the request and count it as a hit.
+     * @return Matching rule or null if request is allowed.
+     */
+    @Nullable
+    public synchronized Rule match(HttpRequest request) {
+        Uri uri = Uri.parse(request.getUrl());
+        Rule rule = null;
+
+        String host = uri.getHost();
+        if (host != null) {
+            host = host.toLowerCase();
+
+            while (rule == null) {
+                rule = hosts.get(host);
+
+                int dot = host.indexOf('.');
+                if (dot == -1) break;
+                host = host.substring(dot + 1);
+            }
+        }
+
+        String path = uri.getPath();
+        if (rule == null && path != null && path_pattern != null) {
+            if (path_pattern.matcher(path).find()) {
+                for (Rule r : paths) {
+                    if (r.pattern.matcher(path).find()) {
+                        rule = r; break;
+                    }
+                }
+            }
+        }
+
+        if (rule != null) {
+            rule.hits++;
+            rule.bytes += request.size();
+        }
+
+        return rule;
+    }
+
+    /**
+     * Reset hit counters of all rules.
+     */
+    public synchronized void reset() {
+        for (Rule rule : hosts.values()) rule.reset();
+        for (Rule rule : paths) rule.reset();
+    }
+
+    /**
+     * @return Human-readable summary of all rules with non-zero hit counters.
+     */
+    public synchronized String report() {
+        StringBuilder result = new StringBuilder();
+        int hits = 0; long bytes = 0;
+
+        List<Rule> rules = new LinkedList<>(hosts.values());
+        rules.addAll(paths);
+
+        for (Rule rule : rules) {
+            if (rule.hits == 0) continue;
+
+            result.append('\n').append(rule.toString());
+            hits += rule.hits; bytes += rule.bytes;
+        }
+
+        return "Blocked " + hits + " requests (" + bytes + " bytes)" + result.toString();
+    }
+
+    public static class Rule {
+        private final String source;
+        private final Pattern pattern;
+
+        private int hits = 0;
+        private long bytes = 0;
+
+        private Rule(String source, Pattern pattern) {
+            this.source = source;
+            this.pattern = pattern;
+        }
+
+        private void reset() {
+            hits = 0; bytes = 0;
+        }
+
+        private void add(Rule other) {
+            hits += other.hits; bytes += other.bytes;
+        }
+
+        public int getHits() {
+            return hits;
+        }
+
+        /**
+         * Blocked requests are never answered, so the size of the response is
+         * unknown. The estimate only includes requests that were not sent.
+         *
+         * @return Total size of requests which were not sent because of this rule.
+         * @see HttpRequest#size()
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return source + ": " + hits + " requests (" + bytes + " bytes)";
+        }
+    }
+}
@@ -28,121 +28,368 @@ import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.LinkedList;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import pw.thedrhax.mosmetro.httpclient.clients.OkHttp;
 import pw.thedrhax.util.Logger;
 
+/**
+ * Small HTTP cache for the backend resources (branches, blocklist, news).
+ *
+ * Every entry is stored in two files named after the SHA-1 of its URL:
+ * <key>.body contains the content, <key>.meta contains the URL, the time of
+ * the last successful request and validators (ETag and Last-Modified). Meta
+ * files are read once per process into an in-memory index, bodies are read
+ * only when requested. Updating an entry never touches other entries.
+ *
+ * Expired entries are revalidated with a conditional request, so unchanged
+ * content is not downloaded again.
+ */
 public class CachedRetriever {
-    private SharedPreferences settings;
-    private JSONArray cache_storage;
-    private Client client;
+    private static final String DIRECTORY = "http-cache";
+    private static final String PREF_LEGACY = "CachedRetriever";
+
+    private static CachedRetriever instance = null;
+
+    public static synchronized CachedRetriever get(Context context) {
+        if (instance == null) {
+            instance = new CachedRetriever(context.getApplicationContext());
+        }
+        return instance;
+    }
 
     public enum Type {
-        URL, JSON
+        URL, JSON, TEXT
     }
 
-    public CachedRetriever (Context context) {
-        this.settings = PreferenceManager.getDefaultSharedPreferences(context);
+    private final Context context;
+    private final File dir;
+    private final Map<String,Entry> index = new HashMap<>();
+    private final Set<String> revalidating = new HashSet<>();
 
-        try {
-            cache_storage = (JSONArray)new JSONParser().parse(settings.getString("CachedRetriever", "[]"));
-        } catch (ParseException ex) {
-            cache_storage = new JSONArray();
+    private static class Entry {
+        final String key;
+        final String url;
+        long timestamp;
+        String etag;
+        String last_modified;
+
+        Entry(String key, String url, long timestamp, String etag, String last_modified) {
+            this.key = key;
+            this.url = url;
+            this.timestamp = timestamp;
+            this.etag = etag;
+            this.last_modified = last_modified;
+        }
+    }
+
+    private CachedRetriever(Context context) {
+        this.context = context;
+        this.dir = new File(context.getFilesDir(), DIRECTORY);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Logger.log(this, "Unable to create " + dir.getPath());
         }
 
-        client = new OkHttp(context);
+        load();
+        migrate(PreferenceManager.getDefaultSharedPreferences(context));
     }
 
-    private long getTimestamp () {
+    private static long getTimestamp() {
         return System.currentTimeMillis() / 1000L;
     }
 
-    private JSONObject findCachedUrl (String url) {
-        for (Object object : cache_storage) {
-            JSONObject json = (JSONObject)object;
+    private static String key(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder result = new StringBuilder();
+
+            for (byte b : digest.digest(url.getBytes("UTF-8"))) {
+                result.append(String.format(Locale.ENGLISH, "%02x", b));
+            }
 
-            if (json.get("url").equals(url)) return json;
+            return result.toString();
+        } catch (NoSuchAlgorithmException | IOException ex) {
+            return Integer.toHexString(url.hashCode());
         }
-        return null;
     }
 
-    public void remove(String url) {
-        Collection<Object> remove = new LinkedList<Object>();
-        for (Object object : cache_storage)
-            if (((JSONObject)object).get("url").equals(url))
-                remove.add(object);
-        cache_storage.removeAll(remove);
+    /*
+     * Storage
+     */
 
-        // Write cache to preferences
-        settings.edit().putString("CachedRetriever", cache_storage.toString()).apply();
+    private File body(String key) {
+        return new File(dir, key + ".body");
     }
 
-    private void writeCachedUrl (String url, String content) {
-        // Remove old entries
-        remove(url);
+    private File meta(String key) {
+        return new File(dir, key + ".meta");
+    }
 
-        // Create new entry
-        JSONObject result = new JSONObject();
-        result.put("url", url);
-        result.put("content", content);
-        result.put("timestamp", getTimestamp());
+    private void load() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
 
-        // Add entry to cache
-        cache_storage.add(result);
+        for (File file : files) {
+            String name = file.getName();
 
-        // Write cache to preferences
-        settings.edit().putString("CachedRetriever", cache_storage.toString()).apply();
-    }
+            if (name.endsWith(".tmp")) {
+                file.delete(); continue;
+            }
 
-    public String get (String url, int ttl, String default_value, Type type) {
-        JSONObject cached_url = findCachedUrl(url);
-        String result = null;
+            if (!name.endsWith(".meta")) continue;
 
-        // Get content from cache if it isn't expired
-        if (cached_url != null) {
-            long timestamp = (Long) cached_url.get("timestamp");
-            if (timestamp + ttl > getTimestamp())
-                return cached_url.get("content").toString();
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                Entry entry = new Entry(
+                        name.substring(0, name.length() - 5),
+                        in.readUTF(), in.readLong(), in.readUTF(), in.readUTF()
+                );
+                index.put(entry.url, entry);
+            } catch (IOException ex) {
+                file.delete();
+            }
         }
+    }
+
+    /**
+     * Import entries stored by the previous versions in SharedPreferences.
+     */
+    private void migrate(SharedPreferences settings) {
+        if (!settings.contains(PREF_LEGACY)) return;
 
-        // Try to retrieve content from server
         try {
-            HttpResponse response = client.get(url).execute();
+            JSONArray entries = (JSONArray) new JSONParser()
+                    .parse(settings.getString(PREF_LEGACY, "[]"));
 
-            if (response.getResponseCode() != 200) {
-                throw new IOException("Invalid response: " + response.getResponseCode());
+            for (Object object : entries) {
+                JSONObject json = (JSONObject) object;
+
+                write(new Entry(
+                        key((String) json.get("url")), (String) json.get("url"),
+                        (Long) json.get("timestamp"), "", ""
+                ), (String) json.get("content"));
             }
+        } catch (ParseException | ClassCastException | NullPointerException | IOException ex) {
+            Logger.log(this, "Unable to migrate old cache: " + ex.toString());
+        }
+
+        settings.edit().remove(PREF_LEGACY).apply();
+    }
+
+    private static void replace(File file, byte[] data) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data);
+            out.getFD().sync();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + file.getName());
+        }
+    }
+
+    private void writeMeta(Entry entry) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeUTF(entry.url);
+        out.writeLong(entry.timestamp);
+        out.writeUTF(entry.etag);
+        out.writeUTF(entry.last_modified);
+        replace(meta(entry.key), buffer.toByteArray());
+    }
 
-            result = response.getPage().trim();
+    private synchronized void write(Entry entry, String content) throws IOException {
+        // Meta is written last, so an entry without a body never gets into the index
+        replace(body(entry.key), content.getBytes("UTF-8"));
+        writeMeta(entry);
+        index.put(entry.url, entry);
+    }
 
-            // Validate answer
-            if (type == Type.URL && !Patterns.WEB_URL.matcher(result).matches()) {
-                throw new Exception("Invalid URL: " + result);
+    private synchronized Entry find(String url) {
+        return index.get(url);
+    }
+
+    private String read(Entry entry) {
+        File file = body(entry.key);
+
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) file.length());
+            byte[] chunk = new byte[8192];
+            int count;
+
+            while ((count = in.read(chunk)) != -1) {
+                buffer.write(chunk, 0, count);
             }
-            if (type == Type.JSON) {
-                new JSONParser().parse(result); // throws ParseException
+
+            return buffer.toString("UTF-8");
+        } catch (IOException ex) {
+            Logger.log(this, "Unable to read cached " + entry.url + ": " + ex.toString());
+            remove(entry.url);
+            return null;
+        }
+    }
+
+    public synchronized void remove(String url) {
+        Entry entry = index.remove(url);
+        if (entry == null) return;
+
+        meta(entry.key).delete();
+        body(entry.key).delete();
+    }
+
+    /*
+     * Network
+     */
+
+    /**
+     * Retrieve content from server, revalidating the cached entry if possible.
+     * @return Retrieved or revalidated content
+     */
+    private String fetch(String url, Entry cached, Type type) throws Exception {
+        HttpRequest request = new OkHttp(context).get(url);
+
+        if (cached != null) {
+            request.ifChanged(cached.etag, cached.last_modified);
+        }
+
+        HttpResponse response = request.execute();
+
+        if (cached != null && response.isNotModified()) {
+            String content = read(cached);
+
+            if (content != null) {
+                synchronized (this) {
+                    cached.timestamp = getTimestamp();
+                    writeMeta(cached);
+                }
+                return content;
             }
 
-            // Write new content to cache
-            writeCachedUrl(url, result);
+            // Body is lost, request it again without validators
+            return fetch(url, null, type);
+        }
+
+        if (response.getResponseCode() != 200) {
+            throw new IOException("Invalid response: " + response.getResponseCode());
+        }
+
+        String result = response.getPage().trim();
+
+        // Validate answer
+        if (type == Type.URL && !Patterns.WEB_URL.matcher(result).matches()) {
+            throw new Exception("Invalid URL: " + result);
+        }
+        if (type == Type.JSON) {
+            new JSONParser().parse(result); // throws ParseException
+        }
+
+        String etag = response.headers.getFirst(Headers.ETAG);
+        String last_modified = response.headers.getFirst(Headers.LAST_MODIFIED);
+
+        // Write new content to cache
+        write(new Entry(
+                key(url), url, getTimestamp(),
+                etag != null ? etag : "",
+                last_modified != null ? last_modified : ""
+        ), result);
+
+        return result;
+    }
+
+    private void revalidate(final String url, final Type type) {
+        synchronized (revalidating) {
+            if (!revalidating.add(url)) return;
+        }
+
+        new Thread("CachedRetriever") {
+            @Override
+            public void run() {
+                try {
+                    fetch(url, find(url), type);
+                } catch (Exception ex) {  // Exception type doesn't matter here
+                    Logger.log(CachedRetriever.this, ex.toString());
+                } finally {
+                    synchronized (revalidating) {
+                        revalidating.remove(url);
+                    }
+                }
+            }
+        }.start();
+    }
+
+    /*
+     * Public API
+     */
+
+    /**
+     * Get cached content without making any network requests.
+     * @return Cached content (even if expired) or null if URL was never retrieved.
+     */
+    public String getCached(String url) {
+        Entry entry = find(url);
+        return entry != null ? read(entry) : null;
+    }
+
+    /**
+     * @param ttl    Time in seconds during which cached content is returned as is
+     * @param stale  Time in seconds after ttl during which cached content is
+     *               returned immediately and revalidated in background
+     */
+    public String get(String url, int ttl, int stale, String default_value, Type type) {
+        Entry cached = find(url);
+        String result = null;
+
+        if (cached != null) {
+            long age = getTimestamp() - cached.timestamp;
+
+            if (age < ttl + stale) {
+                result = read(cached);
+
+                if (result != null) {
+                    if (age >= ttl) revalidate(url, type);
+                    return result;
+                }
+
+                cached = null;
+            }
+        }
+
+        // Try to retrieve content from server
+        try {
+            result = fetch(url, cached, type);
         } catch (Exception ex) {  // Exception type doesn't matter here
             Logger.log(this, ex.toString());
 
             // Get expired cache if can't retrieve content
-            if (cached_url != null) {
-                result = cached_url.get("content").toString();
-            } else {
-                result = null;
+            if (cached != null) {
+                result = read(cached);
             }
         }
 
         return result != null ? result : default_value;
     }
 
-    public String get (String url, String default_value, Type type) {
+    public String get(String url, int ttl, String default_value, Type type) {
+        return get(url, ttl, 0, default_value, type);
+    }
+
+    public String get(String url, String default_value, Type type) {
         return get(url, 24*60*60, default_value, type);
     }
 }
@@ -20,28 +20,81 @@ package pw.thedrhax.mosmetro.httpclient;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 import androidx.annotation.NonNull;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 import java.net.URLEncoder;
+import java.net.UnknownHostException;
 import java.text.ParseException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.ssl.SSLException;
 
 import pw.thedrhax.mosmetro.authenticator.InterceptorTask;
+import pw.thedrhax.util.Deadline;
+import pw.thedrhax.util.EventLog;
 import pw.thedrhax.util.Listener;
 import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Metrics;
+import pw.thedrhax.util.Preferences;
 import pw.thedrhax.util.Randomizer;
-import pw.thedrhax.util.Util;
 
 public abstract class Client {
     public enum METHOD { GET, POST }
 
+    private static final Metrics.Histogram EXECUTE = Metrics.histogram("client.execute");
+    private static final Metrics.Counter BLOCKED = Metrics.counter("client.blocked");
+    private static final Metrics.Histogram HEDGE_LATENCY = Metrics.histogram("client.hedge.latency");
+    private static final Metrics.Counter HEDGED = Metrics.counter("client.hedged");
+    private static final Metrics.Counter HEDGE_WINS = Metrics.counter("client.hedge.wins");
+
+    /**
+     * Classes of failed requests. Each class has its own delay before the
+     * next try, because they recover at a different pace.
+     */
+    public enum FAILURE {
+        DNS(500),       // DNS server is not ready yet right after connection
+        TIMEOUT(250),   // the request has already waited for a long time
+        CONNECTION(1000),
+        SERVER(2000),   // HTTP 502, 503 and 504: portal is overloaded
+        TLS(0);         // not retried, certificate will not change
+
+        public final int delay; // base delay in ms
+
+        FAILURE(int delay) {
+            this.delay = delay;
+        }
+
+        public static FAILURE of(IOException ex) {
+            if (ex instanceof UnknownHostException) return DNS;
+            if (ex instanceof SocketTimeoutException) return TIMEOUT;
+            if (ex instanceof SSLException) return TLS;
+            return CONNECTION;
+        }
+
+        public static boolean isServerError(int code) {
+            return code == 502 || code == 503 || code == 504;
+        }
+
+        /**
+         * @param attempt Number of the failed attempt starting from 1
+         * @return Exponential delay with jitter in ms
+         */
+        public int backoff(int attempt, Randomizer random) {
+            return random.jitter(delay << Math.min(attempt - 1, 4));
+        }
+    }
+
     public final List<InterceptorTask> interceptors = new LinkedList<>();
     public final Headers headers;
 
@@ -51,12 +104,18 @@ public abstract class Client {
     protected Randomizer random;
     protected SharedPreferences settings;
     protected boolean random_delays = false;
+    protected Blocklist blocklist = null;
+    private volatile FAILURE last_failure = null;
+    private volatile Deadline deadline = Deadline.NONE;
+
+    // Both copies of a hedged request, threads exit when idle
+    private ThreadPoolExecutor hedge_pool = null;
 
     protected Client(Context context) {
         this.context = context;
         this.headers = new Headers();
         this.random = new Randomizer(context);
-        this.settings = PreferenceManager.getDefaultSharedPreferences(context);
+        this.settings = Preferences.shared(context);
     }
 
     // Settings methods
@@ -69,7 +128,7 @@ public abstract class Client {
     }
 
     public Client configure() {
-        setTimeout(Util.getIntPreference(context, "pref_timeout", 5) * 1000);
+        setTimeout(Preferences.get(context).timeout * 1000);
         headers.setHeader(Headers.USER_AGENT, random.cached_useragent());
         headers.setHeader(Headers.ACCEPT_LANGUAGE, "ru-RU,ru;q=0.9,en-US;q=0.8,en;q=0.7");
         return this;
@@ -96,6 +155,10 @@ public abstract class Client {
         this.random_delays = enabled; return this;
     }
 
+    public Client setBlocklist(Blocklist blocklist) {
+        this.blocklist = blocklist; return this;
+    }
+
     public abstract Client setCookie(String url, String name, String value);
     public abstract Map<String,String> getCookies(String url);
 
@@ -108,6 +171,19 @@ public abstract class Client {
 
     public abstract Client setTimeout(int ms);
 
+    /**
+     * Limit the total time of the following requests including retries.
+     * Implementations should also abort requests in progress when it expires.
+     */
+    public Client setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
     // IO methods
     protected abstract HttpResponse request(HttpRequest request) throws IOException;
 
@@ -120,14 +196,202 @@ public abstract class Client {
                         throw new InterruptedIOException();
                     }
                 }
-                return request(request);
+
+                if (deadline.isExpired()) {
+                    throw new SocketTimeoutException("Deadline exceeded: " + request.getUrl());
+                }
+
+                if (request.canHedge()) {
+                    return hedgedRequest(request);
+                }
+
+                return recordedRequest(request);
+            }
+
+            @Override
+            protected FAILURE verify(HttpResponse response) {
+                return FAILURE.isServerError(response.getResponseCode()) ? FAILURE.SERVER : null;
             }
         }.run(request.canRetry() ? 3 : 1); // 1 = try once, 3 = retry twice
     }
 
+    private HttpResponse recordedRequest(HttpRequest request) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            HttpResponse response = request(request);
+            Recording.record(request, response, start);
+            return response;
+        } catch (IOException ex) {
+            Recording.record(request, ex, start);
+            throw ex;
+        }
+    }
+
+    /**
+     * @return Time to wait before sending the second copy of a hedged request:
+     *         90th percentile of previous responses, 1 second if unknown.
+     */
+    private static int hedgeDelay() {
+        if (HEDGE_LATENCY.count() < 20) return 1000;
+        return (int) Math.max(300, Math.min(HEDGE_LATENCY.percentile(90) / 1000, 3000));
+    }
+
+    private synchronized ThreadPoolExecutor hedgePool() {
+        if (hedge_pool == null) {
+            hedge_pool = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            hedge_pool.allowCoreThreadTimeOut(true);
+        }
+        return hedge_pool;
+    }
+
+    private static class HedgeResult {
+        final HttpResponse response;
+        final IOException error;
+        final boolean hedge;
+
+        HedgeResult(HttpResponse response, IOException error, boolean hedge) {
+            this.response = response;
+            this.error = error;
+            this.hedge = hedge;
+        }
+    }
+
+    /**
+     * Send a second copy of the request if the first one is slower than
+     * usual. The first successful response is returned, the other copy is
+     * cancelled.
+     *
+     * Each copy is a separate HttpRequest, because they are sent from
+     * different threads. Interceptors are not called for them, see
+     * interceptedRequest().
+     */
+    private HttpResponse hedgedRequest(final HttpRequest request) throws IOException {
+        final BlockingQueue<HedgeResult> results = new LinkedBlockingQueue<>();
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        class Attempt implements Runnable {
+            private final HttpRequest request;
+            private final boolean hedge;
+
+            Attempt(HttpRequest request, boolean hedge) {
+                this.request = request;
+                this.hedge = hedge;
+            }
+
+            @Override
+            public void run() {
+                if (done.get()) return; // the other copy has already finished
+
+                long start = System.nanoTime();
+
+                try {
+                    HttpResponse response = recordedRequest(request);
+                    HEDGE_LATENCY.since(start);
+
+                    if (done.compareAndSet(false, true)) {
+                        results.add(new HedgeResult(response, null, hedge));
+                    } else {
+                        Logger.log(Logger.LEVEL.DEBUG, "Discarded " + name() + ": " + request.getUrl());
+
+                        if (response.isStream()) {
+                            InputStream stream = response.getInputStream();
+                            if (stream != null) stream.close();
+                        }
+                    }
+                } catch (IOException ex) {
+                    if (done.get()) {
+                        Logger.log(Logger.LEVEL.DEBUG, "Discarded " + name() + ": " + ex);
+                    } else {
+                        results.add(new HedgeResult(null, ex, hedge));
+                    }
+                }
+            }
+
+            private String name() {
+                return hedge ? "hedged copy" : "original request";
+            }
+        }
+
+        ThreadPoolExecutor pool = hedgePool();
+        HttpRequest copy = null;
+        HedgeResult result = null;
+        int pending = 1;
+
+        pool.execute(new Attempt(request, false));
+
+        try {
+            int delay = hedgeDelay();
+            result = poll(results, delay);
+
+            if (result == null) {
+                Logger.log(Logger.LEVEL.DEBUG, "Hedging request after " + delay + " ms: " + request.getUrl());
+                HEDGED.inc();
+                copy = request.copy();
+                pool.execute(new Attempt(copy, true));
+                pending++;
+            }
+
+            while (true) {
+                if (result == null) {
+                    result = poll(results, 0);
+                }
+
+                if (result.response != null) {
+                    if (result.hedge) HEDGE_WINS.inc();
+                    return result.response;
+                }
+
+                if (--pending == 0) {
+                    throw result.error;
+                }
+
+                result = null;
+            }
+        } finally {
+            // Cancel the slower copy or both of them if interrupted
+            done.set(true);
+            if (result == null || result.hedge) cancel(request);
+            if (copy != null && (result == null || !result.hedge)) cancel(copy);
+        }
+    }
+
+    /**
+     * @param timeout Maximum time to wait in ms, 0 means no limit
+     * @return Next result or null on timeout
+     */
+    private HedgeResult poll(BlockingQueue<HedgeResult> results, int timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        try {
+            while (running.get()) {
+                long left = timeout != 0 ? deadline - System.currentTimeMillis() : 100;
+                if (left <= 0) return null;
+
+                HedgeResult result = results.poll(Math.min(left, 100), TimeUnit.MILLISECONDS);
+                if (result != null) return result;
+            }
+        } catch (InterruptedException ignored) {}
+
+        throw new InterruptedIOException();
+    }
+
     private HttpResponse interceptedRequest(HttpRequest request) throws IOException {
         HttpResponse response = null;
 
+        if (blocklist != null) {
+            Blocklist.Rule rule = blocklist.match(request);
+
+            if (rule != null) {
+                Logger.log(Logger.LEVEL.DEBUG, "Blocked: " + request.getUrl());
+                BLOCKED.inc();
+                return new HttpResponse(request, "");
+            }
+        }
+
+        EventLog.Span event = EventLog.request(request.getUrl());
+
         try {
             if (!intercepting) {
                 intercepting = true;
@@ -152,14 +416,21 @@ public abstract class Client {
                     response = i.response(this, request, response);
                 }
             }
+        } catch (IOException ex) {
+            event.end(-1, 0);
+            throw ex;
         } finally {
             intercepting = false;
         }
 
         if (response == null) {
+            event.end(0, 0);
             return new HttpResponse(request, "");
         }
 
+        event.end(response.getResponseCode(),
+                response.isStream() ? 0 : response.getPage().length());
+
         if (response.isHtml() && !response.getUrl().isEmpty()) {
             headers.setHeader(Headers.REFERER, response.getUrl());
         }
@@ -179,12 +450,26 @@ public abstract class Client {
         return new HttpRequest(this, METHOD.POST, link).setBody(body, type);
     }
 
+    public HttpRequest post(String link, byte[] body, String type) {
+        return new HttpRequest(this, METHOD.POST, link).setBody(body, type);
+    }
+
     public HttpRequest post(String link, Map<String,String> form) {
         return new HttpRequest(this, METHOD.POST, link)
                 .setBody(requestToString(form), "application/x-www-form-urlencoded");
     }
 
     public HttpResponse execute(HttpRequest request) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            return followRedirects(request);
+        } finally {
+            EXECUTE.since(start);
+        }
+    }
+
+    private HttpResponse followRedirects(HttpRequest request) throws IOException {
         HttpResponse res = interceptedRequest(request);
 
         if (!followRedirects) {
@@ -219,6 +504,11 @@ public abstract class Client {
     // Cancel current request
     public abstract void stop();
 
+    /**
+     * Cancel the request that is being sent from another thread.
+     */
+    protected void cancel(HttpRequest request) {}
+
     // Convert methods
     protected static String requestToString (Map<String,String> params) {
         StringBuilder params_string = new StringBuilder();
@@ -247,41 +537,63 @@ public abstract class Client {
         running.subscribe(master); return this;
     }
 
+    /**
+     * @return Class of the last failed try since the previous call or null
+     */
+    public FAILURE takeLastFailure() {
+        FAILURE result = last_failure;
+        last_failure = null;
+        return result;
+    }
+
     private abstract class RetryOnException<T> {
         T run(int tries) throws IOException {
-            IOException last_ex;
-
-            try {
-                return body();
-            } catch (IOException ex) {
-                last_ex = ex;
-
-                for (int i = 2; i <= tries; i++) {
-                    Logger.log(Logger.LEVEL.DEBUG, ex.toString());
+            for (int i = 1; ; i++) {
+                FAILURE failure;
+                T result = null;
+                IOException error = null;
+
+                try {
+                    result = body();
+
+                    failure = verify(result);
+                    if (failure == null) return result;
+                } catch (IOException ex) {
+                    error = ex;
+                    failure = FAILURE.of(ex);
+                }
 
-                    if (last_ex instanceof SSLException) {
-                        throw last_ex;
-                    }
+                last_failure = failure;
+                int delay = failure.backoff(i, random);
 
-                    if (!running.sleep(1000)) {
-                        throw new InterruptedIOException();
-                    }
+                // Don't start a try that can't finish before the deadline
+                if (i >= tries || failure == FAILURE.TLS || delay >= deadline.remaining()) {
+                    if (error != null) throw error;
+                    return result;
+                }
 
-                    Logger.log(Client.this,
-                            "Retrying request (try " + i + " out of " + tries + ")"
-                    );
+                if (error != null) {
+                    Logger.log(Logger.LEVEL.DEBUG, error.toString());
+                }
 
-                    try {
-                        return body();
-                    } catch (IOException ex1) {
-                        last_ex = ex1;
-                    }
+                if (!running.sleep(delay)) {
+                    throw new InterruptedIOException();
                 }
-            }
 
-            throw last_ex;
+                Logger.log(Client.this,
+                        "Retrying request after " + failure.name() +
+                        " (try " + (i + 1) + " out of " + tries + ")"
+                );
+            }
         }
 
         public abstract T body() throws IOException;
+
+        /**
+         * @return Class of the failure if the result must be retried, otherwise null
+         */
+        protected FAILURE verify(T result) {
+            return null;
+        }
     }
 }
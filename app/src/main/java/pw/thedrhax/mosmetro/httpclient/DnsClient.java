@@ -38,9 +38,13 @@ import java.util.function.Consumer;
 
 import okhttp3.Dns;
 import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Metrics;
 import pw.thedrhax.util.WifiUtils;
 
 public class DnsClient implements Dns {
+    private static final Metrics.Histogram LOOKUP = Metrics.histogram("dns.lookup");
+    private static final Metrics.Counter ERRORS = Metrics.counter("dns.errors");
+
     private WifiUtils wifi;
     private ExtendedResolver dns;
 
@@ -91,6 +95,19 @@ public class DnsClient implements Dns {
 
     @Override
     public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        long start = System.nanoTime();
+
+        try {
+            return resolve(hostname);
+        } catch (UnknownHostException ex) {
+            ERRORS.inc();
+            throw ex;
+        } finally {
+            LOOKUP.since(start);
+        }
+    }
+
+    private List<InetAddress> resolve(String hostname) throws UnknownHostException {
         if (dns == null) {
             return Dns.SYSTEM.lookup(hostname);
         }
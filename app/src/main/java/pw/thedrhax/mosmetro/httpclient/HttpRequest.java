@@ -21,9 +21,15 @@ package pw.thedrhax.mosmetro.httpclient;
 import android.net.Uri;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
 import java.util.List;
 
+import pw.thedrhax.util.Logger;
+
 public class HttpRequest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     private final Client client;
 
     public final Headers headers = new Headers();
@@ -31,13 +37,22 @@ public class HttpRequest {
     private Client.METHOD method;
     private Uri url;
     private String body;
+    private byte[] raw_body;
     private boolean retries = false;
+    private boolean hedge = false;
 
+    /**
+     * @param client Client used by execute(). Can be null if the request is
+     *               never executed (e.g. to parse a saved response).
+     */
     public HttpRequest(Client client, Client.METHOD method, String url) {
         this.client = client;
         this.method = method;
         this.url = Uri.parse(url);
-        this.headers.putAll(client.headers);
+
+        if (client != null) {
+            this.headers.putAll(client.headers);
+        }
     }
 
     public HttpRequest setMethod(Client.METHOD method) {
@@ -64,6 +79,12 @@ public class HttpRequest {
         return this;
     }
 
+    public HttpRequest setBody(byte[] body, String contentType) {
+        this.raw_body = body;
+        headers.setHeader(Headers.CONTENT_TYPE, contentType);
+        return this;
+    }
+
     public HttpRequest setBody(String body) {
         this.body = body;
         headers.setHeader(Headers.CONTENT_TYPE, "text/plain");
@@ -74,6 +95,28 @@ public class HttpRequest {
         return body;
     }
 
+    /**
+     * @return Binary body set by setBody(byte[], String) or null
+     */
+    public byte[] getRawBody() {
+        return raw_body;
+    }
+
+    /**
+     * Make this request conditional: server will answer with 304 Not Modified
+     * and an empty body if the resource matches validators of the previous
+     * response (see HttpResponse.isNotModified()).
+     * @param etag           Value of the ETag header or null
+     * @param last_modified  Value of the Last-Modified header or null
+     */
+    public HttpRequest ifChanged(String etag, String last_modified) {
+        if (etag != null && !etag.isEmpty())
+            headers.setHeader(Headers.IF_NONE_MATCH, etag);
+        if (last_modified != null && !last_modified.isEmpty())
+            headers.setHeader(Headers.IF_MODIFIED_SINCE, last_modified);
+        return this;
+    }
+
     public HttpRequest retry() {
         return retry(true);
     }
@@ -87,6 +130,66 @@ public class HttpRequest {
         return retries;
     }
 
+    /**
+     * Send a second copy of this request if the first one is slower than
+     * usual. Use only for idempotent GET requests, like status checks.
+     */
+    public HttpRequest hedge() {
+        this.hedge = true;
+        return this;
+    }
+
+    public boolean canHedge() {
+        return hedge && method == Client.METHOD.GET;
+    }
+
+    /**
+     * @return Copy of this request with its own headers, which can be sent
+     *         concurrently with the original one
+     */
+    public HttpRequest copy() {
+        HttpRequest copy = new HttpRequest(client, method, getUrl());
+
+        copy.headers.clear();
+        for (String name : headers.keySet()) {
+            copy.headers.put(name, new LinkedList<>(headers.get(name)));
+        }
+
+        copy.body = body;
+        copy.raw_body = raw_body;
+        copy.retries = retries;
+        copy.hedge = hedge;
+        return copy;
+    }
+
+    /**
+     * @return Estimated size of this request on the wire in bytes: request line,
+     *         headers and full body, without the transport overhead.
+     */
+    public long size() {
+        long size = method.toString().length() + url.toString().length() + 11; // " HTTP/1.1\r\n"
+
+        for (String name : headers.keySet()) {
+            List<String> header = headers.get(name);
+
+            if (header == null) continue;
+
+            for (String value : header) {
+                size += name.length() + value.length() + 4; // ": " + "\r\n"
+            }
+        }
+
+        size += 2;
+
+        if (body != null) {
+            size += body.getBytes(UTF8).length;
+        } else if (raw_body != null) {
+            size += raw_body.length;
+        }
+
+        return size;
+    }
+
     public String toString() {
         StringBuilder result = new StringBuilder();
 
@@ -104,13 +207,31 @@ public class HttpRequest {
 
         if (body != null) {
             result.append("content-type: ").append(headers.getContentType()).append('\n');
-            result.append('\n').append(body);
+            result.append('\n').append(Logger.truncate(body));
+        } else if (raw_body != null) {
+            result.append("content-type: ").append(headers.getContentType()).append('\n');
+            result.append("\n<!-- ").append(raw_body.length).append(" bytes -->");
         }
 
         return result.toString();
     }
 
+    /**
+     * @return Supplier of toString() for Logger.log(LEVEL, Supplier)
+     */
+    public Logger.Supplier dump() {
+        return new Logger.Supplier() {
+            @Override
+            public String get() {
+                return HttpRequest.this.toString();
+            }
+        };
+    }
+
     public HttpResponse execute() throws IOException {
+        if (client == null) {
+            throw new IOException("Request is not bound to a Client");
+        }
         return client.execute(this);
     }
 }
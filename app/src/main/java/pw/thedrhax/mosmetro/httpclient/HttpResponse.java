@@ -140,6 +140,14 @@ public class HttpResponse {
         return code;
     }
 
+    /**
+     * @return true if the conditional request was answered with 304 Not Modified
+     * @see HttpRequest#ifChanged(String, String)
+     */
+    public boolean isNotModified() {
+        return code == 304;
+    }
+
     public String getReason() {
         return reason;
     }
@@ -327,20 +335,11 @@ public class HttpResponse {
     }
 
     public String toBodyString() {
-        if (document != null) {
-            String html = document.outerHtml();
-            if (html.length() <= 2000) {
-                return html;
-            } else {
-                return "<!-- file is too long -->";
-            }
-        } else {
-            try {
-                return json().toJSONString();
-            } catch (org.json.simple.parser.ParseException ignored) {}
+        if (body == null) {
+            return "<!-- format not supported -->";
         }
 
-        return "<!-- format not supported -->";
+        return Logger.truncate(body);
     }
 
     public String toString() {
@@ -349,4 +348,16 @@ public class HttpResponse {
         builder.append(toBodyString());
         return builder.toString();
     }
+
+    /**
+     * @return Supplier of toString() for Logger.log(LEVEL, Supplier)
+     */
+    public Logger.Supplier dump() {
+        return new Logger.Supplier() {
+            @Override
+            public String get() {
+                return HttpResponse.this.toString();
+            }
+        };
+    }
 }
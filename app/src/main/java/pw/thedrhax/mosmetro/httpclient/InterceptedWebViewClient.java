@@ -56,6 +56,7 @@ import java.util.List;
 import pw.thedrhax.mosmetro.authenticator.InterceptorTask;
 import pw.thedrhax.util.Listener;
 import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Metrics;
 import pw.thedrhax.util.Randomizer;
 import pw.thedrhax.util.Util;
 
@@ -64,6 +65,9 @@ import pw.thedrhax.util.Util;
  * Inspired by https://stackoverflow.com/a/25547544
  */
 public class InterceptedWebViewClient extends WebViewClient {
+    private static final Metrics.Histogram INTERCEPT =
+            Metrics.histogram("webview.intercept");
+
     private final Listener<String> currentUrl = new Listener<String>("") {
         @Override
         public void onChange(String new_value) {
@@ -156,6 +160,15 @@ public class InterceptedWebViewClient extends WebViewClient {
         }
     }
 
+    /**
+     * Forget all state collected while loading previous pages.
+     */
+    public void reset() {
+        referer = null;
+        next_referer = null;
+        currentUrl.set("");
+    }
+
     public void onDestroy() {
         webview.stopLoading();
 
@@ -184,7 +197,7 @@ public class InterceptedWebViewClient extends WebViewClient {
 
     private WebResourceResponse webresponse(@NonNull HttpResponse response) {
         if (response.isHtml() && !response.getUrl().isEmpty()) {
-            Logger.log(this, response.toString());
+            Logger.log(this, response.dump());
         }
 
         if (response.isHtml()) {
@@ -282,6 +295,7 @@ public class InterceptedWebViewClient extends WebViewClient {
 
         if ("about:blank".equals(url)) return null;
 
+        long start = System.nanoTime();
         try {
             result = webresponse(getToPost(url));
         } catch (UnknownHostException ex) {
@@ -289,6 +303,8 @@ public class InterceptedWebViewClient extends WebViewClient {
             return result;
         } catch (IOException ex) {
             Logger.log(this, ex.toString());
+        } finally {
+            INTERCEPT.since(start);
         }
 
         // Apply scheduled referer update
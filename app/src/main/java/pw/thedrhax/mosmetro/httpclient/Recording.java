@@ -0,0 +1,500 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.httpclient;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Base64;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.acra.ACRA;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Preferences;
+
+/**
+ * Request/response pairs of one connection session. While a Recording is
+ * started, every request made by any Client is appended to it (see
+ * Client.requestWithRetries). Saved recordings can be replayed by the
+ * Playback client.
+ *
+ * Archive format: gzip stream of DataOutputStream primitives, see
+ * write(OutputStream) and read(InputStream).
+ *
+ * Cookies, credentials and values of submitted forms are replaced with
+ * REDACTED before they are recorded (see redact()).
+ */
+public class Recording {
+    private static final int MAGIC = 0x4D4D5231; // "MMR1"
+    private static final String DIR = "recordings";
+    private static final String EXTENSION = ".mmr";
+
+    private static final int MAX_EXCHANGES = 500;
+    private static final int MAX_BODY = 256 * 1024;
+    private static final int MAX_FILES = 5;
+    private static final int MAX_ACRA = 128 * 1024;
+
+    static final String REDACTED = "<redacted>";
+
+    private static final String[] PRIVATE_HEADERS = {
+            "Cookie", "Set-Cookie", "Authorization", "Proxy-Authorization"
+    };
+
+    private static volatile Recording current = null;
+
+    public static class Exchange {
+        public final Client.METHOD method;
+        public final String url;
+        public final Headers request_headers;
+        @Nullable public final String request_body;
+
+        public final long offset;   // ms since the start of recording
+        public final int duration;  // ms
+
+        public final int code;
+        public final String reason;
+        public final Headers headers;
+        @Nullable public final String body; // null for streams (binary files)
+        @Nullable public final String error; // IOException message
+
+        private Exchange(Client.METHOD method, String url, Headers request_headers,
+                         String request_body, long offset, int duration, int code,
+                         String reason, Headers headers, String body, String error) {
+            this.method = method;
+            this.url = url;
+            this.request_headers = request_headers;
+            this.request_body = request_body;
+            this.offset = offset;
+            this.duration = duration;
+            this.code = code;
+            this.reason = reason;
+            this.headers = headers;
+            this.body = body;
+            this.error = error;
+        }
+
+        @Override
+        @NonNull
+        public String toString() {
+            return method.name() + " " + url + " | " + (error != null ? error : code) +
+                    " | " + duration + " ms";
+        }
+    }
+
+    private final List<Exchange> exchanges = new ArrayList<>();
+    private final long timestamp;
+    private final long started;
+
+    private boolean[] used = null;
+
+    private Recording(long timestamp) {
+        this.timestamp = timestamp;
+        this.started = System.nanoTime();
+    }
+
+    /*
+     * Session
+     */
+
+    /**
+     * Start recording of all requests made by every Client.
+     * Replaces the Recording started before, if any.
+     */
+    public static Recording start() {
+        Recording recording = new Recording(System.currentTimeMillis());
+        current = recording;
+        return recording;
+    }
+
+    /**
+     * Stop recording if this instance is still the active one.
+     */
+    public Recording stop() {
+        if (current == this) {
+            current = null;
+        }
+        return this;
+    }
+
+    static void record(HttpRequest request, HttpResponse response, long start) {
+        Recording recording = current;
+        if (recording == null) return;
+
+        String body = response.isStream() ? null : truncate(response.getPage());
+
+        recording.add(request, start, response.getResponseCode(),
+                response.getReason(), response.headers, body, null);
+    }
+
+    static void record(HttpRequest request, IOException ex, long start) {
+        Recording recording = current;
+        if (recording == null) return;
+
+        recording.add(request, start, 0, "", new Headers(), null, ex.toString());
+    }
+
+    private synchronized void add(HttpRequest request, long start, int code, String reason,
+                                  Headers headers, String body, String error) {
+        if (exchanges.size() >= MAX_EXCHANGES) return;
+
+        long now = System.nanoTime();
+
+        exchanges.add(new Exchange(
+                request.getMethod(), request.getUrl(), redact(request.headers),
+                truncate(redact(request.getBody(), request.headers.getMimeType())),
+                (start - started) / 1000000, (int) ((now - start) / 1000000),
+                code, reason != null ? reason : "", redact(headers), body, error
+        ));
+    }
+
+    /**
+     * @return Copy of headers with values of PRIVATE_HEADERS replaced
+     */
+    static Headers redact(Headers headers) {
+        Headers result = new Headers();
+        result.putAll(headers);
+
+        for (String name : PRIVATE_HEADERS) {
+            if (result.containsKey(name)) {
+                result.setHeader(name, REDACTED);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return Request body with values of form fields replaced. Field names
+     *         are kept to show which form was submitted.
+     */
+    @Nullable
+    static String redact(@Nullable String body, String mime_type) {
+        if (body == null || body.isEmpty()) return body;
+
+        if ("application/x-www-form-urlencoded".equalsIgnoreCase(mime_type)) {
+            StringBuilder result = new StringBuilder();
+
+            for (String field : body.split("&")) {
+                if (result.length() > 0) result.append('&');
+
+                int eq = field.indexOf('=');
+                result.append(eq == -1 ? field : field.substring(0, eq + 1) + REDACTED);
+            }
+
+            return result.toString();
+        }
+
+        if (mime_type.toLowerCase().startsWith("multipart/")) {
+            return REDACTED;
+        }
+
+        return body;
+    }
+
+    @Nullable
+    private static String truncate(@Nullable String body) {
+        if (body == null || body.length() <= MAX_BODY) return body;
+        return body.substring(0, MAX_BODY);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public synchronized List<Exchange> getExchanges() {
+        return Collections.unmodifiableList(new ArrayList<>(exchanges));
+    }
+
+    /*
+     * Playback
+     */
+
+    /**
+     * Find the first unused exchange for this request. If all matching
+     * exchanges are already used, the last one is returned again, so
+     * repeated checks (Gen204, polling) get the final recorded state.
+     *
+     * Requests are compared by method and URL. URLs with random parts
+     * (query parameters, Gen204 hosts) fall back to comparing scheme, host
+     * and path, and then only scheme and path.
+     */
+    @Nullable
+    public synchronized Exchange match(Client.METHOD method, String url) {
+        if (used == null || used.length != exchanges.size()) {
+            used = new boolean[exchanges.size()];
+        }
+
+        for (int level = 0; level < 3; level++) {
+            String key = key(url, level);
+            int last = -1;
+
+            for (int i = 0; i < exchanges.size(); i++) {
+                Exchange exchange = exchanges.get(i);
+
+                if (exchange.method != method) continue;
+                if (!key.equals(key(exchange.url, level))) continue;
+
+                if (!used[i]) {
+                    used[i] = true;
+                    return exchange;
+                }
+
+                last = i;
+            }
+
+            if (last != -1) {
+                return exchanges.get(last);
+            }
+        }
+
+        return null;
+    }
+
+    private static String key(String url, int level) {
+        if (level == 0) return url;
+
+        Uri uri = Uri.parse(url);
+
+        if (level == 1) {
+            return uri.getScheme() + "://" + uri.getHost() + uri.getPath();
+        } else {
+            return uri.getScheme() + "://" + uri.getPath();
+        }
+    }
+
+    /**
+     * Mark all exchanges as unused to replay this Recording again.
+     */
+    public synchronized void rewind() {
+        used = null;
+    }
+
+    /*
+     * Serialization
+     */
+
+    public synchronized void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new GZIPOutputStream(stream)));
+
+        out.writeInt(MAGIC);
+        out.writeLong(timestamp);
+        out.writeInt(exchanges.size());
+
+        for (Exchange exchange : exchanges) {
+            out.writeByte(exchange.method.ordinal());
+            writeString(out, exchange.url);
+            writeHeaders(out, exchange.request_headers);
+            writeString(out, exchange.request_body);
+            out.writeLong(exchange.offset);
+            out.writeInt(exchange.duration);
+            out.writeShort(exchange.code);
+            writeString(out, exchange.reason);
+            writeHeaders(out, exchange.headers);
+            writeString(out, exchange.body);
+            writeString(out, exchange.error);
+        }
+
+        out.close();
+    }
+
+    @NonNull
+    public static Recording read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new GZIPInputStream(stream)));
+
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unsupported recording format");
+            }
+
+            Recording recording = new Recording(in.readLong());
+            int count = in.readInt();
+            Client.METHOD[] methods = Client.METHOD.values();
+
+            for (int i = 0; i < count; i++) {
+                int method = in.readUnsignedByte();
+                if (method >= methods.length) {
+                    throw new IOException("Unknown method: " + method);
+                }
+
+                recording.exchanges.add(new Exchange(
+                        methods[method], readString(in), readHeaders(in), readString(in),
+                        in.readLong(), in.readInt(), in.readShort(), readString(in),
+                        readHeaders(in), readString(in), readString(in)
+                ));
+            }
+
+            return recording;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String value)
+            throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    @Nullable
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) return null;
+        if (length < 0 || length > 4 * MAX_BODY) {
+            throw new IOException("Invalid string length: " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeHeaders(DataOutputStream out, Headers headers) throws IOException {
+        out.writeShort(headers.size());
+
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeShort(entry.getValue().size());
+
+            for (String value : entry.getValue()) {
+                writeString(out, value);
+            }
+        }
+    }
+
+    private static Headers readHeaders(DataInputStream in) throws IOException {
+        Headers headers = new Headers();
+        int count = in.readUnsignedShort();
+
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            int values = in.readUnsignedShort();
+
+            for (int j = 0; j < values; j++) {
+                headers.addHeader(name, readString(in));
+            }
+        }
+
+        return headers;
+    }
+
+    /*
+     * Storage
+     */
+
+    /**
+     * Save this Recording to files/recordings and keep only MAX_FILES
+     * latest ones. If enabled by pref_debug_record_acra, small recordings
+     * are also attached to ACRA reports as custom data "recording" (base64
+     * of the archive).
+     */
+    public File save(Context context) throws IOException {
+        File dir = new File(context.getFilesDir(), DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir.getPath());
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        write(buffer);
+        byte[] archive = buffer.toByteArray();
+
+        File file = new File(dir, timestamp + EXTENSION);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(archive);
+        }
+
+        File[] files = list(context);
+        for (int i = MAX_FILES; i < files.length; i++) {
+            if (!files[i].delete()) {
+                Logger.log(Logger.LEVEL.DEBUG, "Unable to delete " + files[i].getName());
+            }
+        }
+
+        boolean attach = Preferences.shared(context).getBoolean("pref_debug_record_acra", false);
+
+        if (attach && archive.length <= MAX_ACRA) {
+            ACRA.getErrorReporter().putCustomData("recording",
+                    Base64.encodeToString(archive, Base64.NO_WRAP));
+        } else {
+            ACRA.getErrorReporter().removeCustomData("recording");
+        }
+
+        Logger.log(Logger.LEVEL.DEBUG, "Recording saved: " + file.getName() +
+                " | " + exchanges.size() + " requests | " + archive.length + " B");
+
+        return file;
+    }
+
+    /**
+     * @return Saved recordings, newest first.
+     */
+    @NonNull
+    public static File[] list(Context context) {
+        File[] files = new File(context.getFilesDir(), DIR).listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(EXTENSION);
+            }
+        });
+        if (files == null) return new File[0];
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = b.lastModified() - a.lastModified();
+                return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+            }
+        });
+
+        return files;
+    }
+
+    @NonNull
+    public static Recording load(File file) throws IOException {
+        return read(new FileInputStream(file));
+    }
+}
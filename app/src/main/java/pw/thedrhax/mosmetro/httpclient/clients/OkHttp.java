@@ -33,6 +33,7 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -62,19 +63,40 @@ import pw.thedrhax.mosmetro.httpclient.DnsClient;
 import pw.thedrhax.mosmetro.httpclient.Headers;
 import pw.thedrhax.mosmetro.httpclient.HttpRequest;
 import pw.thedrhax.mosmetro.httpclient.HttpResponse;
+import pw.thedrhax.util.Deadline;
 import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Metrics;
 import pw.thedrhax.util.WifiUtils;
 
 public class OkHttp extends Client {
+    private static final Metrics.Histogram REQUEST = Metrics.histogram("okhttp.request");
+    private static final Metrics.Counter ERRORS = Metrics.counter("okhttp.errors");
+
+    /**
+     * Hook for debug tools that need to change the configuration of every
+     * client, for example to send all requests to a local server.
+     */
+    public interface Customizer {
+        void customize(OkHttpClient.Builder builder);
+    }
+
+    private static volatile Customizer customizer = null;
+
+    public static void setCustomizer(Customizer customizer) {
+        OkHttp.customizer = customizer;
+    }
+
     private OkHttpClient client;
     private WifiUtils wifi;
-    private Call last_call = null;
+    private volatile Call last_call = null;
+    private final Map<HttpRequest,Call> active_calls = // hedged requests
+            Collections.synchronizedMap(new IdentityHashMap<HttpRequest,Call>());
 
     public OkHttp(Context context) {
         super(context);
         wifi = new WifiUtils(context);
 
-        client = new OkHttpClient.Builder()
+        client = build(new OkHttpClient.Builder()
                 .followRedirects(false)
                 .followSslRedirects(false)
                 .protocols(Collections.singletonList(Protocol.HTTP_1_1))
@@ -86,12 +108,21 @@ public class OkHttp extends Client {
                             .allEnabledCipherSuites()
                             .build());
                 }})
-                .cookieJar(new InterceptedCookieJar())
-                .build();
+                .cookieJar(new InterceptedCookieJar()));
 
         configure();
     }
 
+    private static OkHttpClient build(OkHttpClient.Builder builder) {
+        Customizer customizer = OkHttp.customizer;
+
+        if (customizer != null) {
+            customizer.customize(builder);
+        }
+
+        return builder.build();
+    }
+
     @Override
     public Client trustAllCerts() {
         X509TrustManager tm = new X509TrustManager() {
@@ -128,10 +159,9 @@ public class OkHttp extends Client {
             }
         };
 
-        client = client.newBuilder()
+        client = build(client.newBuilder()
                 .hostnameVerifier(hostnameVerifier)
-                .sslSocketFactory(socketFactory, tm)
-                .build();
+                .sslSocketFactory(socketFactory, tm));
 
         return this;
     }
@@ -160,11 +190,10 @@ public class OkHttp extends Client {
     public Client setTimeout(int ms) {
         if (ms == 0) return this;
 
-        client = client.newBuilder()
+        client = build(client.newBuilder()
                 .connectTimeout(ms, TimeUnit.MILLISECONDS)
                 .readTimeout(ms, TimeUnit.MILLISECONDS)
-                .writeTimeout(ms, TimeUnit.MILLISECONDS)
-                .build();
+                .writeTimeout(ms, TimeUnit.MILLISECONDS));
 
         return this;
     }
@@ -179,9 +208,7 @@ public class OkHttp extends Client {
             dns = Dns.SYSTEM;
         }
 
-        client = client.newBuilder()
-                 .dns(dns)
-                 .build();
+        client = build(client.newBuilder().dns(dns));
 
         return this;
     }
@@ -197,10 +224,13 @@ public class OkHttp extends Client {
                 builder = builder.get();
                 break;
             case POST:
-                builder = builder.post(RequestBody.create(
-                        MediaType.parse(request.headers.getContentType()),
-                        request.getBody()
-                ));
+                MediaType type = MediaType.parse(request.headers.getContentType());
+
+                if (request.getRawBody() != null) {
+                    builder = builder.post(RequestBody.create(type, request.getRawBody()));
+                } else {
+                    builder = builder.post(RequestBody.create(type, request.getBody()));
+                }
         }
 
         // Populate headers
@@ -233,14 +263,48 @@ public class OkHttp extends Client {
             wifi.bindToWifi();
         }
 
-        last_call = client.newCall(builder.build());
-        return new HttpResponse(request, last_call.execute());
+        Call call = client.newCall(builder.build());
+
+        // Whole call including retries of OkHttp itself must fit into the deadline
+        Deadline deadline = getDeadline();
+        if (deadline.isSet()) {
+            call.timeout().timeout(Math.max(deadline.remaining(), 1), TimeUnit.MILLISECONDS);
+        }
+
+        last_call = call;
+        active_calls.put(request, call);
+
+        long start = System.nanoTime();
+        try {
+            return new HttpResponse(request, call.execute());
+        } catch (IOException ex) {
+            ERRORS.inc();
+            throw ex;
+        } finally {
+            active_calls.remove(request);
+            REQUEST.since(start);
+        }
     }
 
     @Override
     public void stop() {
-        if (last_call != null) {
-            last_call.cancel();
+        Call call = last_call;
+        if (call != null) {
+            call.cancel();
+        }
+
+        synchronized (active_calls) {
+            for (Call active : active_calls.values()) {
+                active.cancel();
+            }
+        }
+    }
+
+    @Override
+    protected void cancel(HttpRequest request) {
+        Call call = active_calls.get(request);
+        if (call != null) {
+            call.cancel();
         }
     }
 
@@ -0,0 +1,125 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.httpclient.clients;
+
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import pw.thedrhax.mosmetro.httpclient.Client;
+import pw.thedrhax.mosmetro.httpclient.HttpRequest;
+import pw.thedrhax.mosmetro.httpclient.HttpResponse;
+import pw.thedrhax.mosmetro.httpclient.Recording;
+import pw.thedrhax.util.Logger;
+
+/**
+ * Client that serves responses from a Recording instead of the network.
+ * Several Playback instances of the same Recording share the list of
+ * used exchanges, so Gen204 and Provider can have separate clients.
+ */
+public class Playback extends Client {
+    private final Recording recording;
+    private final Map<String, Map<String, String>> cookies = new HashMap<>();
+
+    private boolean timing = false;
+
+    public Playback(Context context, Recording recording) {
+        super(context);
+        this.recording = recording;
+    }
+
+    /**
+     * Delay every response for the recorded duration of the request.
+     */
+    public Playback setTiming(boolean enabled) {
+        this.timing = enabled; return this;
+    }
+
+    @Override
+    public Client trustAllCerts() {
+        return this;
+    }
+
+    @Override
+    public Client customDnsEnabled(boolean enabled) {
+        return this;
+    }
+
+    @Override
+    public Client setCookie(String url, String name, String value) {
+        String host = Uri.parse(url).getHost();
+
+        synchronized (cookies) {
+            if (!cookies.containsKey(host)) {
+                cookies.put(host, new HashMap<String, String>());
+            }
+            cookies.get(host).put(name, value);
+        }
+
+        return this;
+    }
+
+    @Override
+    public Map<String, String> getCookies(String url) {
+        String host = Uri.parse(url).getHost();
+
+        synchronized (cookies) {
+            Map<String, String> result = cookies.get(host);
+            return result != null ? new HashMap<>(result) : new HashMap<String, String>();
+        }
+    }
+
+    @Override
+    public Client setTimeout(int ms) {
+        return this;
+    }
+
+    @Override
+    protected HttpResponse request(HttpRequest request) throws IOException {
+        Recording.Exchange exchange = recording.match(request.getMethod(), request.getUrl());
+
+        if (exchange == null) {
+            Logger.log(Logger.LEVEL.DEBUG, "Not recorded: " + request.getUrl());
+            throw new IOException("Not recorded: " + request.getUrl());
+        }
+
+        if (timing && exchange.duration > 0) {
+            if (!running.sleep(exchange.duration)) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        if (exchange.error != null) {
+            throw new IOException(exchange.error);
+        }
+
+        return new HttpResponse(request,
+                exchange.body != null ? exchange.body : "",
+                exchange.code, exchange.reason, exchange.headers);
+    }
+
+    @Override
+    public void stop() {
+        // Delays are interrupted by the running Listener
+    }
+}
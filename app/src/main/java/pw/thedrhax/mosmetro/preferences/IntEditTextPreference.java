@@ -0,0 +1,71 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.preferences;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.preference.EditTextPreference;
+import android.util.AttributeSet;
+
+import pw.thedrhax.util.Preferences;
+
+/**
+ * EditTextPreference that stores its value as int instead of string.
+ * Invalid input resets the preference to its default value.
+ */
+public class IntEditTextPreference extends EditTextPreference {
+
+    @TargetApi(21)
+    public IntEditTextPreference(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
+        super(context, attrs, defStyleAttr, defStyleRes);
+    }
+
+    public IntEditTextPreference(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    public IntEditTextPreference(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public IntEditTextPreference(Context context) {
+        super(context);
+    }
+
+    @Override
+    protected String getPersistedString(String defaultReturnValue) {
+        if (!shouldPersist() || !getSharedPreferences().contains(getKey())) {
+            return defaultReturnValue;
+        }
+
+        return "" + Preferences.getInt(getSharedPreferences(), getKey(), 0);
+    }
+
+    @Override
+    protected boolean persistString(String value) {
+        if (!shouldPersist()) return false;
+
+        try {
+            return persistInt(Integer.parseInt(value.trim()));
+        } catch (NumberFormatException | NullPointerException ex) {
+            getEditor().remove(getKey()).apply();
+            return true;
+        }
+    }
+}
@@ -21,18 +21,28 @@ package pw.thedrhax.mosmetro.services;
 import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 
 import androidx.annotation.NonNull;
+import androidx.work.BackoffPolicy;
 import androidx.work.Constraints;
+import androidx.work.Data;
 import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
 import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
 import androidx.work.PeriodicWorkRequest;
 import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 import pw.thedrhax.mosmetro.updater.BackendRequest;
+import pw.thedrhax.mosmetro.updater.StatisticsQueue;
+import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Preferences;
 
 public class BackendWorker extends Worker {
+    private static final String EXTRA_STATISTICS_ONLY = "statistics_only";
+
     private final Context context;
 
     public BackendWorker(Context context, WorkerParameters params) {
@@ -42,19 +52,45 @@ public class BackendWorker extends Worker {
 
     @Override @NonNull
     public Result doWork() {
-        BackendRequest task = new BackendRequest(context);
-        if (task.run()) {
+        boolean success = new StatisticsQueue(context).upload();
+
+        // Periodic and one-time runs share the timestamp, so the data fetched
+        // by one of them is not requested again by another
+        if (!getInputData().getBoolean(EXTRA_STATISTICS_ONLY, false)) {
+            if (isStale(context, getFreshness(context) / 2)) {
+                BackendRequest task = new BackendRequest(context);
+                success = task.run() && success;
+            } else {
+                Logger.log(this, "Backend data is fresh, skipping");
+            }
+        }
+
+        if (success) {
             return Result.success();
         } else {
             return Result.retry();
         }
     }
 
+    /**
+     * @return Maximum age of backend data in ms (pref_backend_freshness in hours)
+     */
+    private static long getFreshness(Context context) {
+        return Math.max(Preferences.get(context).backend_freshness, 1) * 60 * 60 * 1000L;
+    }
+
+    private static boolean isStale(Context context, long max_age) {
+        SharedPreferences settings = Preferences.shared(context);
+        return System.currentTimeMillis() - settings.getLong("pref_worker_timestamp", 0) > max_age;
+    }
+
     public static void configure(Context context) {
         Constraints constraints = new Constraints();
         constraints.setRequiredNetworkType(NetworkType.UNMETERED);
 
-        PeriodicWorkRequest request = new PeriodicWorkRequest.Builder(BackendWorker.class, 3, TimeUnit.HOURS)
+        long interval = Math.max(getFreshness(context) / 2, TimeUnit.HOURS.toMillis(1));
+
+        PeriodicWorkRequest request = new PeriodicWorkRequest.Builder(BackendWorker.class, interval, TimeUnit.MILLISECONDS)
                 .setConstraints(constraints)
                 .setInitialDelay(10, TimeUnit.MINUTES)
                 .addTag("BackendWorker")
@@ -68,4 +104,46 @@ public class BackendWorker extends Worker {
             request
         );
     }
+
+    /**
+     * Request backend sync after a connection attempt. Never blocks the caller.
+     *
+     * Nothing is scheduled if backend data is fresh and there are no queued
+     * statistics. Repeated requests are merged into one pending run.
+     */
+    public static void sync(Context context) {
+        boolean stale = isStale(context, getFreshness(context));
+
+        if (!stale && new StatisticsQueue(context).isEmpty()) return;
+
+        runOnce(context, !stale);
+    }
+
+    /**
+     * Schedule a single low priority run when network is available.
+     * @param statistics_only Only upload queued statistics (see StatisticsQueue)
+     */
+    private static void runOnce(Context context, boolean statistics_only) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .setRequiresBatteryNotLow(true)
+                .build();
+
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(BackendWorker.class)
+                .setConstraints(constraints)
+                .setInitialDelay(1, TimeUnit.MINUTES)
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 5, TimeUnit.MINUTES)
+                .setInputData(new Data.Builder()
+                        .putBoolean(EXTRA_STATISTICS_ONLY, statistics_only)
+                        .build())
+                .addTag("BackendWorker")
+                .build();
+
+        // Full run also uploads statistics, so it replaces the pending one
+        WorkManager.getInstance(context).enqueueUniqueWork(
+                "BackendWorker.once",
+                statistics_only ? ExistingWorkPolicy.KEEP : ExistingWorkPolicy.REPLACE,
+                request
+        );
+    }
 }
@@ -20,10 +20,14 @@ package pw.thedrhax.mosmetro.services;
 
 import android.app.IntentService;
 import android.app.PendingIntent;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.os.Build;
-import android.preference.PreferenceManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
 
 import java.io.IOException;
 import java.text.ParseException;
@@ -40,11 +44,15 @@ import pw.thedrhax.mosmetro.authenticator.Task;
 import pw.thedrhax.mosmetro.authenticator.providers.Unknown;
 import pw.thedrhax.mosmetro.httpclient.Client;
 import pw.thedrhax.mosmetro.httpclient.HttpResponse;
+import pw.thedrhax.mosmetro.httpclient.Recording;
+import pw.thedrhax.util.Deadline;
 import pw.thedrhax.util.Listener;
+import pw.thedrhax.util.EventLog;
 import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.NetworkMonitor;
 import pw.thedrhax.util.Notify;
+import pw.thedrhax.util.Preferences;
 import pw.thedrhax.util.Randomizer;
-import pw.thedrhax.util.Util;
 import pw.thedrhax.util.Version;
 import pw.thedrhax.util.WifiUtils;
 
@@ -58,6 +66,10 @@ public class ConnectionService extends IntentService {
     public static final String EXTRA_FORCE = "force"; // boolean
     public static final String EXTRA_RUNNING = "RUNNING"; // boolean
     public static final String EXTRA_STOP = "stop"; // boolean
+    public static final String EXTRA_DISCONNECTED = "disconnected"; // boolean
+
+    // Time to wait for the next access point of the same network
+    private static final int ROAMING_GRACE = 15 * 1000;
 
     private static final ReentrantLock lock = new ReentrantLock();
     private static final Listener<Boolean> running = new Listener<>(false);
@@ -79,6 +91,29 @@ public class ConnectionService extends IntentService {
     // Notifications
     private Notify notify;
 
+    // Wi-Fi network state, active while the main loop is running
+    private NetworkMonitor monitor;
+
+    // Roaming between access points of the connected network
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private volatile boolean monitoring = false; // internet access is confirmed
+    private volatile boolean roaming = false; // disconnected, waiting for the next access point
+    private boolean roaming_failed = false; // session is lost after the handoff
+
+    private final Runnable roaming_timeout = new Runnable() {
+        @Override
+        public void run() {
+            if (!roaming) return;
+            roaming = false;
+
+            if (running.get() && lock.isLocked()) {
+                Logger.log(ConnectionService.this, "Roaming | No access point in " +
+                        ROAMING_GRACE / 1000 + " s, stopping");
+                running.set(false);
+            }
+        }
+    };
+
     public ConnectionService () {
 		super("ConnectionService");
 	}
@@ -93,14 +128,15 @@ public class ConnectionService extends IntentService {
                 return from_shortcut || super.isConnected(SSID);
             }
         };
-        settings = PreferenceManager.getDefaultSharedPreferences(this);
-        pref_retry_count = Util.getIntPreference(this, "pref_retry_count", 3);
-        pref_ip_wait = Util.getIntPreference(this, "pref_ip_wait", 0);
+        settings = Preferences.shared(this);
+        Preferences prefs = Preferences.get(this);
+        pref_retry_count = prefs.retry_count;
+        pref_ip_wait = prefs.ip_wait;
         pref_notify_foreground = settings.getBoolean("pref_notify_foreground", true);
-        pref_internet_check = settings.getBoolean("pref_internet_check", true);
+        pref_internet_check = prefs.internet_check;
         pref_manual_connection_monitoring = settings.getBoolean("pref_manual_connection_monitoring", true);
-        pref_midsession = settings.getBoolean("pref_internet_midsession", false);
-        pref_internet_check_interval = Util.getIntPreference(this, "pref_internet_check_interval", 10);
+        pref_midsession = prefs.internet_midsession;
+        pref_internet_check_interval = prefs.internet_check_interval;
 
         final PendingIntent stop_intent = PendingIntent.getService(
                 this, 0,
@@ -213,37 +249,56 @@ public class ConnectionService extends IntentService {
     private boolean waitForIP() {
         if (wifi.getIP() != 0) return true;
 
-        int count = 0;
+        long start = System.currentTimeMillis();
 
         Logger.log(getString(R.string.ip_wait));
         notify.title(getString(R.string.ip_wait))
                 .progress(0, true)
                 .show();
 
-        while (wifi.getIP() == 0) {
-            if (!running.sleep(1000)) return false;
-
-            if (pref_ip_wait != 0 && count++ == pref_ip_wait) {
+        if (!monitor.awaitAddress(pref_ip_wait * 1000, running)) {
+            if (running.get()) {
                 Logger.log(getString(R.string.error,
                         getString(R.string.ip_wait_result,
                             " " + getString(R.string.not), pref_ip_wait
                         )
                 ));
-                return false;
             }
+            return false;
         }
 
-        Logger.log(getString(R.string.ip_wait_result, "", count/2));
+        Logger.log(getString(R.string.ip_wait_result, "",
+                (System.currentTimeMillis() - start) / 1000));
         return true;
     }
 
+    /**
+     * Delay before the next attempt depends on the last failed request:
+     * DNS errors and timeouts pass quickly, while an overloaded portal
+     * needs more time after every attempt.
+     */
+    private int retryDelay(Client.FAILURE failure, int attempt, Randomizer random) {
+        int delay = Preferences.get(this).retry_delay * 1000;
+
+        if (failure == Client.FAILURE.SERVER) {
+            delay <<= Math.min(attempt - 1, 2);
+        } else if (failure == Client.FAILURE.DNS || failure == Client.FAILURE.TIMEOUT) {
+            delay /= 2;
+        }
+
+        return random.jitter(delay);
+    }
+
     private Provider.RESULT connect(Provider provider) {
         Provider.RESULT result;
         int count = 0;
-        int pref_retry_delay = Util.getIntPreference(this, "pref_retry_delay", 5) * 1000;
+        Randomizer random = new Randomizer(this);
 
         do {
             if (count > 0) {
+                Client.FAILURE failure = provider.getClient().takeLastFailure();
+                int delay = retryDelay(failure, count, random);
+
                 String msg = String.format("%s (%s)",
                                 getString(R.string.notification_progress_waiting),
                                 getString(R.string.try_out_of, count + 1, pref_retry_count)
@@ -252,12 +307,20 @@ public class ConnectionService extends IntentService {
                 Logger.log(msg);
                 notify.text(msg).progress(0, true).show();
 
-                if (!running.sleep(pref_retry_delay)) {
+                Logger.log(Logger.LEVEL.DEBUG, "Next attempt in " + delay + " ms" +
+                        (failure != null ? " after " + failure.name() : ""));
+
+                if (!running.sleep(delay)) {
                     result = Provider.RESULT.INTERRUPTED;
                     break;
                 }
             }
 
+            // Every attempt has its own time limit, split between Tasks by Provider
+            int budget = Preferences.get(this).login_budget;
+            provider.setDeadline(budget > 0 ? Deadline.in(budget * 1000) : Deadline.NONE);
+
+            provider.getClient().takeLastFailure();
             result = provider.start();
 
             if (result == Provider.RESULT.NOT_REGISTERED) break;
@@ -274,8 +337,18 @@ public class ConnectionService extends IntentService {
         // Stop by intent
         if (ACTION_STOP.equals(intent.getAction()) || intent.getBooleanExtra(EXTRA_STOP, false)) {
             if (running.get() && lock.isLocked()) {
-                Logger.log(this, "Stopping by Intent");
-                running.set(false);
+                // Stations are separate access points, keep the session for a while
+                if (monitoring && intent.getBooleanExtra(EXTRA_DISCONNECTED, false)) {
+                    if (!roaming) {
+                        Logger.log(this, "Roaming | Disconnected, waiting for the next access point");
+                        roaming = true;
+                        handler.postDelayed(roaming_timeout, ROAMING_GRACE);
+                    }
+                } else {
+                    Logger.log(this, "Stopping by Intent");
+                    handler.removeCallbacks(roaming_timeout);
+                    running.set(false);
+                }
             }
             return START_NOT_STICKY;
         }
@@ -295,10 +368,24 @@ public class ConnectionService extends IntentService {
             from_debug = false;
         }
 
-        SSID = wifi.getSSID(intent);
+        String new_ssid = wifi.getSSID(intent);
 
         // Ignore if service is already running
         if (lock.isLocked()) {
+            if (roaming) {
+                roaming = false;
+                handler.removeCallbacks(roaming_timeout);
+
+                if (!SSID.equals(new_ssid)) {
+                    Logger.log(this, "Roaming | Switched to another network (" + new_ssid + ")");
+                    SSID = new_ssid;
+                    running.set(false);
+                    return START_NOT_STICKY;
+                }
+
+                Logger.log(this, "Roaming | Connected to " + wifi.getBSSID());
+            }
+
             // Service is shutting down. Trying to interrupt
             if (!running.get()) { 
                 running.set(true);
@@ -307,6 +394,8 @@ public class ConnectionService extends IntentService {
             return START_NOT_STICKY;
         }
 
+        SSID = new_ssid;
+
         if (!Provider.isSSIDSupported(SSID) && !from_shortcut) {
             Logger.log(this, "Not starting: SSID is not supported (" + SSID + ")");
             return START_NOT_STICKY;
@@ -317,6 +406,21 @@ public class ConnectionService extends IntentService {
         return START_NOT_STICKY;
     }
 
+    /**
+     * Keep WebViewService alive while this service is running, so WebView
+     * providers don't have to wait for a new WebView to be created. Providers
+     * only attach to it (see WebViewProvider.bindWebView()).
+     */
+    private final ServiceConnection webview = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            Logger.log(ConnectionService.this, "WebView is ready");
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {}
+    };
+
     public void onHandleIntent(Intent intent) {
         if (lock.tryLock()) {
             Logger.log(this, "Broadcast | ConnectionService (RUNNING = true)");
@@ -326,6 +430,11 @@ public class ConnectionService extends IntentService {
             Logger.log(getString(R.string.version, Version.getFormattedVersion()));
             Logger.log(getString(R.string.auth_connecting, SSID));
 
+            boolean webview_bound = settings.getBoolean("pref_mosmetro_v2_wv", false)
+                    && bindService(new Intent(this, WebViewService.class), webview, BIND_AUTO_CREATE);
+
+            monitor = new NetworkMonitor(this).start();
+
             running.set(true);
             boolean first_iteration = true;
             while (running.get()) {
@@ -337,6 +446,15 @@ public class ConnectionService extends IntentService {
 
                 main();
             }
+
+            monitor.stop();
+            roaming = false;
+            handler.removeCallbacks(roaming_timeout);
+
+            if (webview_bound) {
+                unbindService(webview);
+            }
+
             lock.unlock();
 
             notify.hide();
@@ -352,16 +470,12 @@ public class ConnectionService extends IntentService {
 
     private boolean ignore_midsession = false;
 
-    private boolean isConnected(Gen204 gen_204) {
-        return isConnected(gen_204, null);
+    private boolean isConnected(Gen204 gen_204, boolean quick) {
+        Logger.log(this, "Checking internet connection" + (quick ? " (quick)" : ""));
+        return isConnected(gen_204, quick ? gen_204.quickCheck() : gen_204.check());
     }
 
     private boolean isConnected(Gen204 gen_204, Gen204Result res_204) {
-        if (res_204 == null) {
-            Logger.log(this, "Checking internet connection");
-            res_204 = gen_204.check();
-        }
-
         if (!res_204.isConnected()) {
             return false;
         }
@@ -392,7 +506,7 @@ public class ConnectionService extends IntentService {
 
                 try {
                     HttpResponse res = res_204.getFalseNegative();
-                    Logger.log(Logger.LEVEL.DEBUG, res.toString());
+                    Logger.log(Logger.LEVEL.DEBUG, res.dump());
 
                     String next_redirect = res.parseAnyRedirect();
 
@@ -402,7 +516,7 @@ public class ConnectionService extends IntentService {
                         );
 
                         res = client.get(next_redirect).retry().execute();
-                        Logger.log(Logger.LEVEL.DEBUG, res.toString());
+                        Logger.log(Logger.LEVEL.DEBUG, res.dump());
 
                         next_redirect = res.parseAnyRedirect();
                     }
@@ -452,8 +566,11 @@ public class ConnectionService extends IntentService {
             return;
         }
 
-        // Apply random delay
-        if (!from_shortcut && !settings.getBoolean("pref_delay_always", false)) {
+        // Apply random delay (not needed after roaming, the network is already known)
+        boolean after_roaming = roaming_failed;
+        roaming_failed = false;
+
+        if (!from_shortcut && !after_roaming && !settings.getBoolean("pref_delay_always", false)) {
             Logger.log(getString(R.string.notification_progress_waiting));
             notify.title(getString(R.string.notification_progress_waiting))
                     .progress(0, true)
@@ -469,6 +586,8 @@ public class ConnectionService extends IntentService {
                 .progress(0, true)
                 .show();
 
+        EventLog.Span session = EventLog.startSession(SSID);
+        Recording recording = Preferences.get(this).debug_record ? Recording.start() : null;
         Gen204 gen_204 = new Gen204(this, running);
 
         Provider provider = Provider.find(this, running)
@@ -491,6 +610,17 @@ public class ConnectionService extends IntentService {
         // Try to connect
         Logger.log(getString(R.string.algorithm_name, provider.getName()));
         Provider.RESULT result = connect(provider);
+        EventLog.endSession(session,
+                result == Provider.RESULT.CONNECTED || result == Provider.RESULT.ALREADY_CONNECTED
+        );
+
+        if (recording != null) {
+            try {
+                recording.stop().save(this);
+            } catch (IOException ex) {
+                Logger.log(this, "Unable to save recording: " + ex.toString());
+            }
+        }
 
         // Notify user if not interrupted
         if (running.get()) {
@@ -523,13 +653,67 @@ public class ConnectionService extends IntentService {
         );
 
         // Wait while internet connection is available
-        int count = 0;
-        while (running.sleep(1000)) {
-            if (pref_internet_check && ++count == pref_internet_check_interval) {
-                count = 0;
-                if (!isConnected(gen_204)) break;
+        monitor.reset();
+        RecheckScheduler schedule = new RecheckScheduler(
+                pref_internet_check ? pref_internet_check_interval * 1000 : 0
+        );
+
+        monitoring = true;
+        while (running.get()) {
+            NetworkMonitor.EVENT event = monitor.await(schedule.timeout(), running);
+            long lost_at = System.nanoTime();
+
+            if (event == NetworkMonitor.EVENT.INTERRUPTED) break;
+
+            boolean handoff = event == NetworkMonitor.EVENT.LOST
+                    || event == NetworkMonitor.EVENT.ROAMING;
+
+            if (event == NetworkMonitor.EVENT.LOST) {
+                if (!awaitRoaming()) break;
+            } else if (!pref_internet_check) {
+                continue;
+            }
+
+            // Routine checks and handoffs use a single probe,
+            // other signals are verified by the full check
+            boolean urgent = event != NetworkMonitor.EVENT.TIMEOUT;
+            boolean quick = !urgent || handoff;
+
+            if (!urgent) {
+                if (schedule.isStalled()) {
+                    Logger.log(this, "Traffic stall detected");
+                    urgent = true;
+                    quick = false;
+                } else if (!schedule.isDue()) {
+                    continue;
+                }
             }
+
+            if (urgent) schedule.reset();
+
+            boolean connected = isConnected(gen_204, quick);
+
+            if (handoff) {
+                EventLog.roaming(wifi.getBSSID(), connected,
+                        (int) ((System.nanoTime() - lost_at) / 1000000));
+
+                if (!connected) {
+                    Logger.log(this, "Roaming | Session is lost, authenticating again");
+                    roaming_failed = true;
+                } else {
+                    Logger.log(this, "Roaming | Session is kept");
+                    roaming = false;
+                    handler.removeCallbacks(roaming_timeout);
+                    monitor.reset(); // events of the handoff itself
+                }
+            }
+
+            if (!connected) break;
+
+            int next = schedule.success();
+            Logger.log(Logger.LEVEL.DEBUG, "Next internet check in " + next / 1000 + " s");
         }
+        monitoring = false;
 
         Logger.log(this, "Broadcast | DISCONNECTED");
         sendBroadcast(new Intent(ACTION_EVENT_DISCONNECTED));
@@ -542,6 +726,24 @@ public class ConnectionService extends IntentService {
         }
 	}
 
+    /**
+     * Wait for the next access point after the Wi-Fi network is lost.
+     * The session, cookies and Gen204 client are kept meanwhile.
+     * @return true if the network is available again.
+     */
+    private boolean awaitRoaming() {
+        Logger.log(this, "Roaming | Network lost, waiting " + ROAMING_GRACE / 1000 + " s");
+
+        if (!monitor.awaitAddress(ROAMING_GRACE, running)) {
+            if (running.get()) {
+                Logger.log(this, "Roaming | Network is not available");
+            }
+            return false;
+        }
+
+        return true;
+    }
+
     public static boolean isRunning() {
         return running.get();
     }
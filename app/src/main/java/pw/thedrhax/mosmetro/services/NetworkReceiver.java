@@ -21,54 +21,51 @@ package pw.thedrhax.mosmetro.services;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.net.wifi.SupplicantState;
 import android.net.wifi.WifiManager;
-import android.preference.PreferenceManager;
 
 import java.util.Locale;
 
 import pw.thedrhax.util.Logger;
-import pw.thedrhax.util.WifiUtils;
+import pw.thedrhax.util.Preferences;
 
 /**
  * This BroadcastReceiver filters and sends Intents to the ConnectionService.
  *
  * There are two types of Intents accepted by the ConnectionService:
- *     1) Wi-Fi network is definitely connected (startService())
- *     2) No Wi-Fi networks are connected (stopService())
+ *     1) Wi-Fi network is definitely connected (CONNECTED)
+ *     2) No Wi-Fi networks are connected (DISCONNECTED)
+ *
+ * Bursts of states are coalesced and duplicated Intents are dropped by
+ * WifiStateTracker, which is shared by static and dynamic receivers.
  *
  * NetworkReceiver doesn't take care of:
- *     1) Ignoring duplicated Intents
- *     2) Determining if current SSID is supported by the Provider
+ *     1) Determining if current SSID is supported by the Provider
  *
  * @see ConnectionService
+ * @see WifiStateTracker
  * @author Dmitry Karikh <the.dr.hax@gmail.com>
  */
 public class NetworkReceiver extends BroadcastReceiver implements Logger.Metadata {
-    private Context context;
-    private Intent intent;
     private boolean dynamic = false; 
 
     public void onReceive(Context context, Intent intent) {
-        this.context = context;
-        this.intent = intent;
-
         // Stop if Intent is empty
         if (intent == null || intent.getAction() == null)
             return;
 
+        WifiStateTracker tracker = WifiStateTracker.get(context);
+
         // If Wi-Fi is disabled, stop ConnectionService immediately
-        WifiUtils wifi = new WifiUtils(context);
-        if (!wifi.isEnabled()) {
+        if (!tracker.wifi.isEnabled()) {
             Logger.log(this, "Wi-Fi not enabled");
-            stopService();
+            tracker.onDisabled();
             return;
         }
 
         // Stop if automatic connection is disabled in settings
-        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
-        if (!settings.getBoolean("pref_autoconnect", true))
+        Preferences prefs = Preferences.get(context);
+        if (!prefs.autoconnect)
             return;
 
         SupplicantState state = null;
@@ -77,7 +74,7 @@ public class NetworkReceiver extends BroadcastReceiver implements Logger.Metadat
          * Listen to all Wi-Fi state changes and start ConnectionService if Wi-Fi is connected
          */
         if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(intent.getAction())) {
-            state = wifi.getWifiInfo(intent).getSupplicantState();
+            state = tracker.wifi.getWifiInfo(intent).getSupplicantState();
         }
 
         /**
@@ -93,18 +90,24 @@ public class NetworkReceiver extends BroadcastReceiver implements Logger.Metadat
                     intent.getAction(), state.name()
             ));
 
+            WifiStateTracker.STATE logical;
+
             switch (state) {
                 case COMPLETED:
                 case ASSOCIATED: // This appears randomly between multiple CONNECTED states
-                    startService();
+                    logical = WifiStateTracker.STATE.CONNECTED;
                     break;
                 case SCANNING: // Some devices do not report DISCONNECTED state so...
                 case DISCONNECTED:
-                    stopService();
+                    logical = WifiStateTracker.STATE.DISCONNECTED;
                     break;
                 default:
-                    break;
+                    return;
             }
+
+            // Keep the broadcast alive until the burst is committed
+            PendingResult result = prefs.receiver_debounce > 0 ? goAsync() : null;
+            tracker.onState(logical, intent, result, prefs.receiver_debounce);
         } else {
             Logger.log(this, "Unknown Intent: " + intent.getAction());
         }
@@ -115,26 +118,6 @@ public class NetworkReceiver extends BroadcastReceiver implements Logger.Metadat
         return this;
     }
 
-    /**
-     * Start ConnectionService and pass received Intent's content
-     */
-    private void startService() {
-        Intent service = new Intent(context, ConnectionService.class);
-        service.setAction(intent.getAction());
-        service.putExtras(intent);
-        context.startService(service);
-    }
-
-    /**
-     * Stop ConnectionService
-     */
-    private void stopService() {
-        context.startService(
-                new Intent(context, ConnectionService.class)
-                        .setAction(ConnectionService.ACTION_STOP)
-        );
-    }
-
     @Override
     public String tag() {
         return dynamic ? "dynamic" : "static";
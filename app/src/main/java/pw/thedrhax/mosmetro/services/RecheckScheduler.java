@@ -0,0 +1,137 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.services;
+
+import android.net.TrafficStats;
+import android.os.SystemClock;
+
+/**
+ * Schedule of internet checks while connected (see ConnectionService).
+ *
+ * The interval starts at pref_internet_check_interval and doubles after every
+ * successful check up to MAX_INTERVAL. Any failure or signal from the network
+ * resets it back. Between checks the traffic counters are sampled once per
+ * base interval without any requests: if something was sent, but nothing was
+ * received, the connection is probably stalled and should be checked now.
+ *
+ * Traffic counters of the whole device are used on purpose. This app doesn't
+ * send anything between checks, so a stall can only be noticed in the traffic
+ * of other apps.
+ */
+class RecheckScheduler {
+    private static final int MAX_INTERVAL = 10 * 60 * 1000;
+    private static final long STALL_TX_BYTES = 2 * 1024;
+
+    private final int base;
+    private int interval;
+    private long next_check;
+
+    private long last_tx;
+    private long last_rx;
+
+    // The last check was requested by reset()
+    private boolean urgent = false;
+
+    /**
+     * @param base Initial interval in ms, 0 disables checks
+     */
+    RecheckScheduler(int base) {
+        this.base = base;
+        this.interval = base;
+        this.next_check = now() + base;
+        isStalled(); // remember the current traffic counters
+    }
+
+    /**
+     * @return Time to wait for the next check or traffic sample in ms,
+     *         0 if checks are disabled.
+     */
+    int timeout() {
+        if (base <= 0) return 0;
+
+        long left = next_check - now();
+        return (int) Math.max(1, Math.min(left, base));
+    }
+
+    boolean isDue() {
+        return base > 0 && now() >= next_check;
+    }
+
+    /**
+     * @return true if data was sent, but nothing was received since the
+     *         previous call.
+     */
+    boolean isStalled() {
+        long[] traffic = traffic();
+        if (traffic == null) return false;
+
+        long tx = traffic[0];
+        long rx = traffic[1];
+
+        boolean stalled = tx - last_tx > STALL_TX_BYTES && rx == last_rx;
+
+        last_tx = tx;
+        last_rx = rx;
+
+        return stalled;
+    }
+
+    /**
+     * Return to the initial interval after a signal from the network.
+     */
+    void reset() {
+        interval = base;
+        urgent = true;
+    }
+
+    /**
+     * Schedule the next check after a successful one. The interval is not
+     * increased after an urgent check, so the next one comes after the
+     * initial interval.
+     * @return Time until the next check in ms
+     */
+    int success() {
+        if (!urgent) {
+            interval = (int) Math.min((long) interval * 2, Math.max(base, MAX_INTERVAL));
+        }
+        urgent = false;
+
+        next_check = now() + interval;
+        isStalled(); // don't count the traffic of the check itself
+        return interval;
+    }
+
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return Bytes sent and received by the device, null if not supported
+     */
+    long[] traffic() {
+        long tx = TrafficStats.getTotalTxBytes();
+        long rx = TrafficStats.getTotalRxBytes();
+
+        if (tx == TrafficStats.UNSUPPORTED || rx == TrafficStats.UNSUPPORTED) {
+            return null;
+        }
+
+        return new long[] {tx, rx};
+    }
+}
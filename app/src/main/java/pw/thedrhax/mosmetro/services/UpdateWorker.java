@@ -0,0 +1,169 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.services;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+
+import androidx.annotation.NonNull;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import pw.thedrhax.mosmetro.R;
+import pw.thedrhax.mosmetro.updater.UpdateDownloader;
+import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Notify;
+
+/**
+ * Downloads the update in background using UpdateDownloader.
+ *
+ * WorkManager restarts the download when network comes back, even after the
+ * app is killed, and UpdateDownloader continues it from the partial file.
+ */
+public class UpdateWorker extends Worker {
+    public static final String ACTION_DOWNLOADED = "pw.thedrhax.mosmetro.event.UpdateDownloaded";
+
+    private static final String EXTRA_URL = "url";
+    private static final String EXTRA_SHA256 = "sha256";
+    private static final String EXTRA_TITLE = "title";
+
+    /**
+     * Interrupted download is retried this number of times before giving up
+     */
+    private static final int MAX_ATTEMPTS = 20;
+
+    private final Context context;
+    private final Notify notify;
+
+    public UpdateWorker(Context context, WorkerParameters params) {
+        super(context, params);
+        this.context = context;
+        this.notify = new Notify(context).id(4)
+                .icon(R.drawable.ic_notification_message,
+                      R.drawable.ic_notification_message_colored);
+    }
+
+    @Override @NonNull
+    public Result doWork() {
+        String title = getInputData().getString(EXTRA_TITLE);
+
+        notify.title(context.getString(R.string.update_downloading))
+                .text(title != null ? title : "")
+                .progress(0, true)
+                .locked(true)
+                .show();
+
+        UpdateDownloader downloader = new UpdateDownloader(context,
+                getInputData().getString(EXTRA_URL),
+                getInputData().getString(EXTRA_SHA256)
+        ).setCallback(new UpdateDownloader.Callback() {
+            private int last_progress = -1;
+
+            @Override
+            public void onProgress(long done, long total) {
+                if (isStopped()) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                int progress = total > 0 ? (int) (done * 100 / total) : 0;
+                if (progress == last_progress) return;
+                last_progress = progress;
+
+                notify.progress(progress, total <= 0).show();
+            }
+        });
+
+        try {
+            downloader.download();
+        } catch (UpdateDownloader.ChecksumException ex) {
+            Logger.log(this, ex.getMessage());
+            failed();
+            return Result.failure();
+        } catch (IOException ex) {
+            Logger.log(this, "Download interrupted: " + ex.toString());
+
+            if (getRunAttemptCount() + 1 < MAX_ATTEMPTS) {
+                notify.progress(0, true).show();
+                return Result.retry();
+            }
+
+            failed();
+            return Result.failure();
+        }
+
+        notify.hideProgress()
+                .locked(false)
+                .title(context.getString(R.string.update_downloaded))
+                .text(context.getString(R.string.update_downloaded_message))
+                .onClick(PendingIntent.getActivity(context, 253,
+                        UpdateDownloader.getInstallIntent(context),
+                        PendingIntent.FLAG_UPDATE_CURRENT))
+                .cancelOnClick(true)
+                .show();
+
+        // Let UpdateChecker start the installation if the app is open
+        context.sendBroadcast(new Intent(ACTION_DOWNLOADED).setPackage(context.getPackageName()));
+
+        return Result.success();
+    }
+
+    private void failed() {
+        notify.hideProgress()
+                .locked(false)
+                .title(context.getString(R.string.update_download_failed))
+                .text(context.getString(R.string.update_download_failed_message))
+                .show();
+    }
+
+    /**
+     * @param sha256 Expected checksum of the file or null if it is unknown
+     */
+    public static void start(Context context, String url, String sha256, String title) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build();
+
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(UpdateWorker.class)
+                .setConstraints(constraints)
+                .setBackoffCriteria(BackoffPolicy.LINEAR, 30, TimeUnit.SECONDS)
+                .setInputData(new Data.Builder()
+                        .putString(EXTRA_URL, url)
+                        .putString(EXTRA_SHA256, sha256)
+                        .putString(EXTRA_TITLE, title)
+                        .build())
+                .addTag("UpdateWorker")
+                .build();
+
+        WorkManager.getInstance(context).enqueueUniqueWork(
+                "UpdateWorker", ExistingWorkPolicy.REPLACE, request
+        );
+    }
+}
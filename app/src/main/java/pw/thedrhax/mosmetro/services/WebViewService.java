@@ -22,42 +22,61 @@ import android.app.Service;
 import android.content.Intent;
 import android.graphics.PixelFormat;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import androidx.annotation.LayoutRes;
 import androidx.annotation.Nullable;
 
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
 import android.view.WindowManager;
+import android.webkit.WebStorage;
 import android.webkit.WebView;
 import android.widget.LinearLayout;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import pw.thedrhax.mosmetro.R;
 import pw.thedrhax.mosmetro.httpclient.Client;
 import pw.thedrhax.mosmetro.httpclient.InterceptedWebViewClient;
 import pw.thedrhax.mosmetro.httpclient.clients.OkHttp;
 import pw.thedrhax.util.Listener;
+import pw.thedrhax.util.Logger;
 
+/**
+ * Service that holds a single WebView instance in an invisible overlay window.
+ *
+ * ConnectionService keeps this service alive for the whole session, so WebView is
+ * created once. Providers attach to it right before WebView is needed and call
+ * reset() when they are done with it, so the same instance is reused.
+ *
+ * @see pw.thedrhax.mosmetro.authenticator.WebViewProvider
+ */
 public class WebViewService extends Service {
     private final Listener<Boolean> running = new Listener<Boolean>(true) {
         @Override
         public void onChange(Boolean new_value) {
             if (!new_value) {
-                stopSelf();
+                WebViewService.this.get("about:blank");
             }
         }
     };
 
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
     private ViewGroup view;
     private WindowManager wm;
     private WebView webview;
+    private Client client;
     private InterceptedWebViewClient webviewclient;
 
     @Override
     public void onCreate() {
         super.onCreate();
         setContentView(R.layout.webview_activity);
-        Client client = new OkHttp(this).setRunningListener(running);
+        client = new OkHttp(this).setRunningListener(running);
         webview = (WebView)view.findViewById(R.id.webview);
         webviewclient = new InterceptedWebViewClient(this, client, webview);
         webviewclient.setup();
@@ -111,12 +130,59 @@ public class WebViewService extends Service {
     }
 
     public void get(final String url) {
-        webview.getHandler().post(new Runnable() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (webview != null) {
+                    webview.loadUrl(url);
+                }
+            }
+        });
+    }
+
+    /**
+     * Bring WebView back to the initial state, so it can be reused by the next Provider.
+     * Clears history, cache, form data and Web Storage, unloads current page with all its
+     * scripts and detaches Client that was set by setClient().
+     *
+     * Cookies are shared with OkHttp through CookieManager and still belong to the
+     * current session, so they are only cleared when the WebView is created.
+     *
+     * This method blocks until WebView is reset or 5 seconds have passed, so it must
+     * not be called from the main thread.
+     */
+    public void reset() {
+        running.unsubscribe();
+        running.set(false);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        handler.post(new Runnable() {
             @Override
             public void run() {
-                webview.loadUrl(url);
+                if (webview != null) {
+                    webview.stopLoading();
+                    webview.loadUrl("about:blank");
+                    webview.clearFormData();
+                    webview.clearCache(true);
+                    webview.clearHistory();
+                    WebStorage.getInstance().deleteAllData();
+                    webviewclient.reset();
+                    webviewclient.setClient(client);
+                }
+                latch.countDown();
             }
         });
+
+        try {
+            if (!latch.await(5, TimeUnit.SECONDS)) {
+                Logger.log(this, "Timed out while resetting WebView");
+            }
+        } catch (InterruptedException ex) {
+            Logger.log(Logger.LEVEL.DEBUG, ex);
+        }
+
+        running.set(true);
     }
 
     public String getUrl() {
@@ -0,0 +1,228 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.services;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Metrics;
+import pw.thedrhax.util.WifiUtils;
+
+/**
+ * Coalesces bursts of supplicant states into logical Wi-Fi transitions.
+ *
+ * One connection produces several broadcasts (ASSOCIATED appears randomly
+ * between COMPLETED, SCANNING comes before DISCONNECTED on some devices) and
+ * every broadcast is received by both static and dynamic NetworkReceivers.
+ * The last state of a burst is committed after a quiet window, and only
+ * changes of the committed state are sent to ConnectionService.
+ *
+ * Shared by all NetworkReceivers. All methods are called on the main thread.
+ *
+ * @see NetworkReceiver
+ */
+class WifiStateTracker implements Logger.Metadata {
+    enum STATE { UNKNOWN, CONNECTED, DISCONNECTED }
+
+    // Broadcasts are kept alive by goAsync() for at most 10 seconds
+    private static final int MAX_WINDOW = 5000;
+
+    private static final Metrics.Histogram DELAY = Metrics.histogram("receiver.debounce");
+    private static final Metrics.Counter COALESCED = Metrics.counter("receiver.coalesced");
+    private static final Metrics.Counter SKIPPED = Metrics.counter("receiver.skipped");
+
+    private static WifiStateTracker instance = null;
+
+    static WifiStateTracker get(Context context) {
+        if (instance == null) {
+            instance = new WifiStateTracker(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    final WifiUtils wifi;
+
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<BroadcastReceiver.PendingResult> results = new LinkedList<>();
+
+    private STATE committed = STATE.UNKNOWN;
+    private long committed_at = 0;
+
+    // Current burst
+    private STATE pending = null;
+    private Intent pending_intent = null;
+    private long burst_start = 0;
+    private int burst_size = 0;
+
+    private WifiStateTracker(Context context) {
+        this.context = context;
+        this.wifi = new WifiUtils(context);
+    }
+
+    private final Runnable commit = new Runnable() {
+        @Override
+        public void run() {
+            commit();
+        }
+    };
+
+    /**
+     * Add a supplicant state to the current burst.
+     *
+     * @param state   Logical state of the received broadcast
+     * @param intent  Broadcast to be passed to ConnectionService
+     * @param result  Result of goAsync(), finished when the burst is committed
+     * @param window  Quiet time before the burst is committed in ms
+     */
+    void onState(STATE state, Intent intent, BroadcastReceiver.PendingResult result, int window) {
+        if (result != null) results.add(result);
+
+        long now = SystemClock.elapsedRealtime();
+
+        if (pending == null) {
+            burst_start = now;
+            burst_size = 0;
+        }
+
+        pending = state;
+        pending_intent = intent;
+        burst_size++;
+
+        handler.removeCallbacks(commit);
+
+        window = Math.min(window, MAX_WINDOW);
+        if (window <= 0 || now - burst_start + window > MAX_WINDOW) {
+            commit();
+        } else {
+            handler.postDelayed(commit, window);
+        }
+    }
+
+    /**
+     * Wi-Fi is disabled. Stop ConnectionService without waiting.
+     */
+    void onDisabled() {
+        boolean changed = committed != STATE.DISCONNECTED || pending != null;
+
+        handler.removeCallbacks(commit);
+        pending = null;
+        pending_intent = null;
+        finish();
+
+        if (changed || ConnectionService.isRunning()) {
+            transition(STATE.DISCONNECTED, 0);
+            stopService(false);
+        }
+    }
+
+    private void commit() {
+        STATE state = pending;
+        Intent intent = pending_intent;
+
+        pending = null;
+        pending_intent = null;
+        finish();
+
+        if (state == null) return;
+
+        if (burst_size > 1) COALESCED.add(burst_size - 1);
+
+        // ConnectionService ignores repeated start intents while it is running,
+        // but a new one is allowed to restart it after an error.
+        boolean duplicate = state == committed &&
+                (state == STATE.DISCONNECTED || ConnectionService.isRunning());
+
+        if (duplicate) {
+            Logger.log(this, "Skipping " + state.name() + " (" + burst_size + " events)");
+            SKIPPED.inc();
+            return;
+        }
+
+        transition(state, burst_size);
+
+        if (state == STATE.CONNECTED) {
+            startService(intent);
+        } else {
+            stopService(true);
+        }
+    }
+
+    private void transition(STATE state, int events) {
+        long now = SystemClock.elapsedRealtime();
+
+        if (events > 0) {
+            DELAY.record((now - burst_start) * 1000);
+        }
+
+        Logger.log(this, String.format(Locale.ENGLISH,
+                "Transition: %s -> %s (%d events in %d ms, previous state: %d s)",
+                committed.name(), state.name(), events,
+                events > 0 ? now - burst_start : 0,
+                committed_at > 0 ? (now - committed_at) / 1000 : 0
+        ));
+
+        committed = state;
+        committed_at = now;
+    }
+
+    private void finish() {
+        for (BroadcastReceiver.PendingResult result : results) {
+            result.finish();
+        }
+        results.clear();
+    }
+
+    /**
+     * Start ConnectionService and pass received Intent's content
+     */
+    private void startService(Intent intent) {
+        Intent service = new Intent(context, ConnectionService.class);
+        service.setAction(intent.getAction());
+        service.putExtras(intent);
+        context.startService(service);
+    }
+
+    /**
+     * Stop ConnectionService
+     * @param disconnected Wi-Fi is still enabled, ConnectionService may wait
+     *                     for the next access point of the same network
+     */
+    private void stopService(boolean disconnected) {
+        context.startService(
+                new Intent(context, ConnectionService.class)
+                        .setAction(ConnectionService.ACTION_STOP)
+                        .putExtra(ConnectionService.EXTRA_DISCONNECTED, disconnected)
+        );
+    }
+
+    @Override
+    public String tag() {
+        return "tracker";
+    }
+}
@@ -21,6 +21,7 @@ package pw.thedrhax.mosmetro.updater;
 import java.io.IOException;
 
 import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import android.app.PendingIntent;
@@ -33,6 +34,8 @@ import pw.thedrhax.mosmetro.BuildConfig;
 import pw.thedrhax.mosmetro.R;
 import pw.thedrhax.mosmetro.activities.SafeViewActivity;
 import pw.thedrhax.mosmetro.activities.SettingsActivity;
+import pw.thedrhax.mosmetro.httpclient.Blocklist;
+import pw.thedrhax.mosmetro.httpclient.CachedRetriever;
 import pw.thedrhax.mosmetro.httpclient.Client;
 import pw.thedrhax.mosmetro.httpclient.clients.OkHttp;
 import pw.thedrhax.util.Notify;
@@ -73,12 +76,29 @@ public class BackendRequest {
         return true;
     }
 
+    private boolean checkBlocklist() {
+        String rules = CachedRetriever.get(context)
+                .get(BuildConfig.BLOCKLIST_URL, null, CachedRetriever.Type.TEXT);
+
+        if (rules == null || rules.isEmpty())
+            return false;
+
+        return Blocklist.get(context).load(rules) > 0;
+    }
+
     private boolean checkNews() {
         JSONObject data;
 
+        // Always revalidated, so unchanged news cost only a 304 response
+        String content = CachedRetriever.get(context)
+                .get(BuildConfig.NEWS_URL, 0, null, CachedRetriever.Type.JSON);
+
+        if (content == null)
+            return false;
+
         try {
-            data = client.get(BuildConfig.NEWS_URL).execute().json();
-        } catch (IOException | ParseException ex) {
+            data = (JSONObject) new JSONParser().parse(content);
+        } catch (ParseException | ClassCastException ex) {
             return false;
         }
 
@@ -156,6 +176,7 @@ public class BackendRequest {
         settings.edit().putLong("pref_worker_timestamp", System.currentTimeMillis()).apply();
 
         checkBackendUrl();
+        checkBlocklist();
 
         if (settings.getBoolean("pref_notify_news", true)) {
             checkNews();
@@ -0,0 +1,287 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.updater;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import pw.thedrhax.mosmetro.BuildConfig;
+import pw.thedrhax.mosmetro.httpclient.Client;
+import pw.thedrhax.mosmetro.httpclient.Headers;
+import pw.thedrhax.mosmetro.httpclient.HttpRequest;
+import pw.thedrhax.mosmetro.httpclient.HttpResponse;
+import pw.thedrhax.mosmetro.httpclient.clients.OkHttp;
+import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Preferences;
+
+/**
+ * Persistent queue of statistics records (see ProviderMetrics).
+ *
+ * add() only appends a record to a file, so it is safe to call it from the
+ * Provider thread. Records are sent by BackendWorker with upload(): all
+ * queued records are moved to the batch file, which is deleted only after
+ * all of its records are accepted by the server. If the upload fails, the
+ * rest of the batch is sent again on the next attempt with the new records.
+ *
+ * File format: every record is a number of fields followed by pairs of
+ * strings written by DataOutputStream.writeUTF().
+ */
+public class StatisticsQueue {
+    private static final String QUEUE = "stats.queue";
+    private static final String BATCH = "stats.batch";
+
+    /**
+     * New records are dropped when the queue gets larger than this
+     */
+    private static final long MAX_SIZE = 256 * 1024;
+
+    /**
+     * Maximum number of records in one request
+     */
+    private static final int BATCH_SIZE = 100;
+
+    private static final Object lock = new Object();
+    private static final Object upload_lock = new Object();
+
+    private final Context context;
+    private final SharedPreferences settings;
+    private final File queue;
+    private final File batch;
+
+    public StatisticsQueue(Context context) {
+        this.context = context;
+        this.settings = Preferences.shared(context);
+        this.queue = new File(context.getFilesDir(), QUEUE);
+        this.batch = new File(context.getFilesDir(), BATCH);
+    }
+
+    public void add(Map<String,String> record) {
+        synchronized (lock) {
+            if (queue.length() > MAX_SIZE) {
+                Logger.log(this, "Queue is full, dropping record");
+                return;
+            }
+
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(queue, true)))) {
+                write(out, record);
+            } catch (IOException ex) {
+                Logger.log(Logger.LEVEL.DEBUG, ex);
+            }
+        }
+    }
+
+    private static List<Map<String,String>> read(File file) {
+        List<Map<String,String>> result = new LinkedList<>();
+        if (!file.exists()) return result;
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int count = in.readShort();
+                Map<String,String> record = new HashMap<>();
+
+                for (int i = 0; i < count; i++) {
+                    record.put(in.readUTF(), in.readUTF());
+                }
+
+                result.add(record);
+            }
+        } catch (EOFException ignored) {
+            // End of file or partially written record
+        } catch (IOException ex) {
+            Logger.log(Logger.LEVEL.DEBUG, ex);
+        }
+
+        return result;
+    }
+
+    private static void write(DataOutputStream out, Map<String,String> record) throws IOException {
+        out.writeShort(record.size());
+        for (Map.Entry<String,String> field : record.entrySet()) {
+            out.writeUTF(field.getKey());
+            out.writeUTF(field.getValue() != null ? field.getValue() : "");
+        }
+    }
+
+    private static void write(File file, List<Map<String,String>> records) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, false)))) {
+            for (Map<String,String> record : records) {
+                write(out, record);
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        synchronized (lock) {
+            return queue.length() == 0 && batch.length() == 0;
+        }
+    }
+
+    /**
+     * Send all queued records. Must not be called from the UI thread.
+     * @return true if the queue is empty now, false if upload should be retried
+     */
+    public boolean upload() {
+        synchronized (upload_lock) {
+            return uploadLocked();
+        }
+    }
+
+    private boolean uploadLocked() {
+        List<Map<String,String>> records;
+
+        synchronized (lock) {
+            records = read(batch);
+            records.addAll(read(queue));
+
+            try {
+                write(batch, records);
+            } catch (IOException ex) {
+                Logger.log(Logger.LEVEL.DEBUG, ex);
+                return false;
+            }
+
+            queue.delete();
+        }
+
+        if (records.isEmpty()) {
+            batch.delete();
+            return true;
+        }
+
+        String base_url = settings.getString(
+                BackendRequest.PREF_BACKEND_URL, BuildConfig.API_URL_DEFAULT
+        );
+
+        Client client = new OkHttp(context).setFollowRedirects(false);
+
+        while (!records.isEmpty()) {
+            List<Map<String,String>> chunk = records.subList(0, Math.min(BATCH_SIZE, records.size()));
+
+            boolean sent;
+
+            try {
+                sent = send(client, base_url, chunk);
+            } catch (IOException ex) {
+                Logger.log(this, "Upload failed: " + ex.toString());
+                sent = false;
+            }
+
+            if (sent) chunk.clear();
+
+            // Remember progress in case the next chunk fails. Part of a failed
+            // chunk could also be sent one by one (see send()).
+            synchronized (lock) {
+                try {
+                    write(batch, records);
+                } catch (IOException ignored) {}
+            }
+
+            if (!sent) break;
+        }
+
+        if (records.isEmpty()) {
+            batch.delete();
+            Logger.log(this, "All records uploaded");
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return Body of the batch request: gzipped JSON array of records
+     */
+    @SuppressWarnings("unchecked")
+    public static byte[] encode(List<Map<String,String>> records) throws IOException {
+        JSONArray data = new JSONArray();
+        for (Map<String,String> record : records) {
+            data.add(new JSONObject(record));
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
+            gzip.write(data.toJSONString().getBytes("UTF-8"));
+        }
+
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Send records in one gzipped JSON array. Backends without the batch API
+     * receive them one by one in the old form-encoded format. In this case
+     * every accepted record is removed from the list, so only the rest of
+     * them is sent again if one of the requests fails.
+     */
+    private boolean send(Client client, String base_url, List<Map<String,String>> records)
+            throws IOException {
+
+        HttpRequest request = client.post(
+                base_url + BuildConfig.API_REL_STATISTICS_BATCH,
+                encode(records), "application/json"
+        );
+        request.headers.setHeader(Headers.CONTENT_ENCODING, "gzip");
+
+        HttpResponse response = request.execute();
+
+        int code = response.getResponseCode();
+        Logger.log(this, "Batch of " + records.size() + " records | " + code);
+
+        if (code == 404 || code == 405 || code == 501) {
+            Iterator<Map<String,String>> iterator = records.iterator();
+
+            while (iterator.hasNext()) {
+                code = client.post(base_url + BuildConfig.API_REL_STATISTICS, iterator.next())
+                        .execute().getResponseCode();
+
+                if (code < 200 || code >= 300) {
+                    Logger.log(this, "Record rejected | " + code);
+                    return false;
+                }
+
+                iterator.remove();
+            }
+            return true;
+        }
+
+        return code >= 200 && code < 300;
+    }
+}
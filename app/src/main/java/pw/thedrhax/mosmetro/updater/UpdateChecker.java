@@ -19,22 +19,20 @@
 package pw.thedrhax.mosmetro.updater;
 
 import android.app.AlertDialog;
-import android.app.DownloadManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.net.Uri;
 import android.os.AsyncTask;
-import android.os.Build;
 import android.preference.PreferenceManager;
 
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -42,6 +40,7 @@ import pw.thedrhax.mosmetro.BuildConfig;
 import pw.thedrhax.mosmetro.R;
 import pw.thedrhax.mosmetro.activities.SafeViewActivity;
 import pw.thedrhax.mosmetro.httpclient.CachedRetriever;
+import pw.thedrhax.mosmetro.services.UpdateWorker;
 import pw.thedrhax.util.Logger;
 import pw.thedrhax.util.UUID;
 import pw.thedrhax.util.Version;
@@ -49,7 +48,6 @@ import pw.thedrhax.util.Version;
 public class UpdateChecker {
     // Info from the app
     private final Context context;
-    private final DownloadManager dm;
     private final SharedPreferences settings;
     private final CachedRetriever retriever;
 
@@ -57,42 +55,27 @@ public class UpdateChecker {
     private boolean update_failed = false;
     private boolean check_ignored = false;
     private boolean force_check = false;
-    private long last_download = 0;
+    private boolean download_started = false;
 
     public UpdateChecker(Context context) {
         this.context = context;
-        this.dm = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
         this.settings = PreferenceManager.getDefaultSharedPreferences(context);
-        this.retriever = new CachedRetriever(context);
+        this.retriever = CachedRetriever.get(context);
     }
 
     private final BroadcastReceiver onComplete = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
-            if (id != last_download) return;
+            if (!download_started) return;
+            download_started = false;
 
-            Uri uri = dm.getUriForDownloadedFile(id);
-
-            if (Build.VERSION.SDK_INT >= 24) {
-                intent = new Intent(Intent.ACTION_INSTALL_PACKAGE);
-                intent.setData(uri);
-                intent.setFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-            } else {
-                intent = new Intent(Intent.ACTION_VIEW);
-                intent.setDataAndType(uri, "application/vnd.android.package-archive");
-                intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            }
-
-            context.startActivity(intent);
+            context.startActivity(UpdateDownloader.getInstallIntent(context));
         }
     };
 
     public void init() {
         context.registerReceiver(onComplete,
-                new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
-        context.registerReceiver(onComplete,
-                new IntentFilter(DownloadManager.ACTION_NOTIFICATION_CLICKED));
+                new IntentFilter(UpdateWorker.ACTION_DOWNLOADED));
     }
 
     public void deinit() {
@@ -107,72 +90,91 @@ public class UpdateChecker {
     }
 
     /**
-     * Clear branch cache before checking for updates and force update notification even if
-     * there are no updates available.
+     * Revalidate branch cache before checking for updates and force update notification even
+     * if there are no updates available.
      */
     public UpdateChecker force(boolean force) {
         this.force_check = force; return this;
     }
 
-    public Result check() {
-        // Generate base URL
-        String UPDATE_INFO_URL = settings.getString(
-                BackendRequest.PREF_BACKEND_URL,
-                BuildConfig.API_URL_DEFAULT
-        ) + BuildConfig.API_REL_BRANCHES + "?uuid=" + UUID.get(context);
-
-        // Clear branch cache
-        if (force_check) retriever.remove(UPDATE_INFO_URL);
+    /**
+     * Parsed branches are cached until the server returns something else, so
+     * unchanged (revalidated) info is not parsed again.
+     */
+    private static String last_content = null;
+    private static Map<String, Branch> last_branches = null;
 
-        // Retrieve info from server
-        String content = retriever.get(UPDATE_INFO_URL, 60*60,
-                "{\"" + Version.getBranch() + "\":" +
-                "{\"url\":\"none\",\"by_build\":\"0\",\"version\":\"" + Version.getVersionCode() +
-                "\",\"message\":\"none\",\"description\":\"Connection error\",\"stable\":true}}",
-                CachedRetriever.Type.JSON
-        );
+    private static synchronized Map<String, Branch> parse(String content) {
+        if (content.equals(last_content)) {
+            return last_branches;
+        }
 
-        // Parse server answer
         JSONObject branches_json;
         try {
             branches_json = (JSONObject) new JSONParser().parse(content);
-        } catch (ParseException ex) {
-            update_failed = true;
+        } catch (ParseException | ClassCastException ex) {
             return null;
         }
 
         Map<String, Branch> branches = new HashMap<>();
-        Branch current_branch = null;
 
         for (Object key : branches_json.keySet()) {
-            Branch branch;
-
             try {
-                branch = new Branch((String) key, (JSONObject) branches_json.get(key));
-            } catch (NumberFormatException ex) {
+                Branch branch = new Branch((String) key, (JSONObject) branches_json.get(key));
+                branches.put(branch.name, branch);
+            } catch (NumberFormatException | ClassCastException | NullPointerException ex) {
                 Logger.log(Logger.LEVEL.DEBUG, ex);
-                continue;
             }
+        }
 
-            if (Version.getBranch().equals(branch.name)) {
-                current_branch = branch;
-            }
+        last_content = content;
+        last_branches = Collections.unmodifiableMap(branches);
+        return last_branches;
+    }
 
-            branches.put(branch.name, branch);
-        }
+    public static String branchesUrl(String base_url, String uuid) {
+        return base_url + BuildConfig.API_REL_BRANCHES + "?uuid=" + uuid;
+    }
+
+    public static String downloadUrl(String base_url, String branch, String uuid) {
+        return base_url + BuildConfig.API_REL_DOWNLOAD + "/" + branch + "?uuid=" + uuid;
+    }
 
-        if (branches.size() == 0) {
+    public Result check() {
+        // Generate base URL
+        String UPDATE_INFO_URL = branchesUrl(settings.getString(
+                BackendRequest.PREF_BACKEND_URL,
+                BuildConfig.API_URL_DEFAULT
+        ), UUID.get(context));
+
+        // Retrieve info from server. Forced check always asks the server (which costs
+        // only a 304 response if nothing changed), otherwise outdated info is returned
+        // immediately (up to a day) and refreshed in background.
+        String content = retriever.get(UPDATE_INFO_URL,
+                force_check ? 0 : 60*60,
+                force_check ? 0 : 24*60*60,
+                "{\"" + Version.getBranch() + "\":" +
+                "{\"url\":\"none\",\"by_build\":\"0\",\"version\":\"" + Version.getVersionCode() +
+                "\",\"message\":\"none\",\"description\":\"Connection error\",\"stable\":true}}",
+                CachedRetriever.Type.JSON
+        );
+
+        Map<String, Branch> branches = parse(content);
+
+        if (branches == null || branches.size() == 0) {
             update_failed = true;
             return null;
         }
 
+        Branch current_branch = branches.get(Version.getBranch());
+
         // Check if selected branch is deleted
         if (current_branch == null && !Version.getBranch().startsWith("_")) { // Fallback to master
             settings.edit().putInt("pref_updater_ignore", 0).apply();
 
             if (branches.containsKey("master")) {
                 current_branch = branches.get("master");
-                current_branch.ignore(false);
+                ignore(current_branch, false);
             } else {
                 update_failed = true;
                 return null;
@@ -185,7 +187,7 @@ public class UpdateChecker {
         }
 
         return new Result(
-            !update_failed && current_branch.hasUpdate(),
+            !update_failed && hasUpdate(current_branch),
             current_branch,
             branches
         );
@@ -233,6 +235,9 @@ public class UpdateChecker {
             return current_branch;
         }
 
+        /**
+         * @return Unmodifiable map of all branches, shared between checks
+         */
         public Map<String, Branch> getBranches() {
             return branches;
         }
@@ -241,7 +246,7 @@ public class UpdateChecker {
             AlertDialog.Builder dialog;
 
             if (hasUpdate()) {
-                dialog = current_branch.dialog_update();
+                dialog = dialog_update(current_branch);
             } else {
                 dialog = new AlertDialog.Builder(context)
                         .setTitle(context.getString(R.string.update_not_available))
@@ -255,13 +260,17 @@ public class UpdateChecker {
         }
     }
 
-    public class Branch {
+    /**
+     * Immutable branch info parsed from the server response.
+     */
+    public static class Branch {
         public final String name;
         public final String message;
         public final String description;
         public final boolean stable;
         public final String url;
         public final String filename;
+        public final String sha256; // Checksum of the APK (optional)
 
         private final int version;
         private final boolean by_build; // Check by build number instead of version code
@@ -275,6 +284,7 @@ public class UpdateChecker {
             this.stable = data.containsKey("stable") && (Boolean)data.get("stable");
             this.url = (String)data.get("url");
             this.filename = (String)data.get("filename");
+            this.sha256 = (String)data.get("sha256");
         }
 
         public String id() {
@@ -292,77 +302,76 @@ public class UpdateChecker {
                 return Version.getVersionCode();
             }
         }
+    }
 
-        public boolean hasUpdate() {
-            if (settings.getInt("pref_updater_ignore", 0) < version || check_ignored)
-                if (getVersion() < version) return true;
-
-            return false;
-        }
+    public boolean hasUpdate(Branch branch) {
+        if (settings.getInt("pref_updater_ignore", 0) < branch.version || check_ignored)
+            if (branch.getVersion() < branch.version) return true;
 
-        public void ignore(boolean ignore) {
-            settings.edit().putInt("pref_updater_ignore", ignore ? version : 0).apply();
-        }
+        return false;
+    }
 
-        public void install() {
-            Uri uri = Uri.parse(settings.getString(
-                    BackendRequest.PREF_BACKEND_URL,
-                    BuildConfig.API_URL_DEFAULT
-            ) + BuildConfig.API_REL_DOWNLOAD + "/" + name + "?uuid=" + UUID.get(context));
+    public void ignore(Branch branch, boolean ignore) {
+        settings.edit().putInt("pref_updater_ignore", ignore ? branch.version : 0).apply();
+    }
 
-            DownloadManager.Request req = new DownloadManager.Request(uri)
-                    .setTitle(filename)
-                    .setDestinationInExternalFilesDir(context, null, "update.apk")
-                    .setNotificationVisibility(DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED);
+    /**
+     * Download the update in background and install it when it's verified.
+     */
+    public void install(Branch branch) {
+        String url = downloadUrl(settings.getString(
+                BackendRequest.PREF_BACKEND_URL,
+                BuildConfig.API_URL_DEFAULT
+        ), branch.name, UUID.get(context));
 
-            last_download = dm.enqueue(req);
-        }
+        download_started = true;
+        UpdateWorker.start(context, url, branch.sha256, branch.filename);
+    }
 
-        public void download() {
-            context.startActivity(new Intent(context, SafeViewActivity.class).putExtra("data", url));
-        }
+    public void download(Branch branch) {
+        context.startActivity(new Intent(context, SafeViewActivity.class).putExtra("data", branch.url));
+    }
 
-        public AlertDialog.Builder dialog() {
-            return new AlertDialog.Builder(context)
-                    .setTitle(context.getString(R.string.update_available))
-                    .setMessage(message)
-                    .setNegativeButton(R.string.later, null)
-                    .setNeutralButton(R.string.download, new DialogInterface.OnClickListener() {
-                        @Override
-                        public void onClick(DialogInterface dialogInterface, int i) {
-                            download();
-                        }
-                    })
-                    .setPositiveButton(R.string.install, new DialogInterface.OnClickListener() {
-                        @Override
-                        public void onClick(DialogInterface dialog, int which) {
-                            install();
-                        }
-                    });
-        }
+    public AlertDialog.Builder dialog(final Branch branch) {
+        return new AlertDialog.Builder(context)
+                .setTitle(context.getString(R.string.update_available))
+                .setMessage(branch.message)
+                .setNegativeButton(R.string.later, null)
+                .setNeutralButton(R.string.download, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        download(branch);
+                    }
+                })
+                .setPositiveButton(R.string.install, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        install(branch);
+                    }
+                });
+    }
 
-        public AlertDialog.Builder dialog_update() {
-            return new AlertDialog.Builder(context)
-                    .setTitle(context.getString(R.string.update_available))
-                    .setMessage(message)
-                    .setPositiveButton(R.string.install, new DialogInterface.OnClickListener() {
-                        @Override
-                        public void onClick(DialogInterface dialog, int which) {
-                            install();
-                        }
-                    })
-                    .setNeutralButton(R.string.download, new DialogInterface.OnClickListener() {
-                        @Override
-                        public void onClick(DialogInterface dialogInterface, int i) {
-                            download();
-                        }
-                    })
-                    .setNegativeButton(R.string.ignore_short, new DialogInterface.OnClickListener() {
-                        @Override
-                        public void onClick(DialogInterface dialog, int which) {
-                            ignore(true);
-                        }
-                    });
-        }
+    public AlertDialog.Builder dialog_update(final Branch branch) {
+        return new AlertDialog.Builder(context)
+                .setTitle(context.getString(R.string.update_available))
+                .setMessage(branch.message)
+                .setPositiveButton(R.string.install, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        install(branch);
+                    }
+                })
+                .setNeutralButton(R.string.download, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        download(branch);
+                    }
+                })
+                .setNegativeButton(R.string.ignore_short, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        ignore(branch, true);
+                    }
+                });
     }
 }
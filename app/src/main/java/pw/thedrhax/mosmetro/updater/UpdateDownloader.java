@@ -0,0 +1,423 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.updater;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.Uri;
+import android.os.Build;
+
+import androidx.core.content.FileProvider;
+import androidx.core.net.ConnectivityManagerCompat;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.Locale;
+
+import pw.thedrhax.mosmetro.httpclient.Client;
+import pw.thedrhax.mosmetro.httpclient.Headers;
+import pw.thedrhax.mosmetro.httpclient.HttpRequest;
+import pw.thedrhax.mosmetro.httpclient.HttpResponse;
+import pw.thedrhax.mosmetro.httpclient.clients.OkHttp;
+import pw.thedrhax.util.Logger;
+
+/**
+ * Resumable download of the update APK.
+ *
+ * Data is appended to update.apk.part, which is kept between attempts along
+ * with update.apk.state (URL, expected checksum and validator of the
+ * response). Next attempt continues from the end of the partial file with a
+ * Range request. If-Range makes the server send the whole file again if it
+ * was changed in the meantime.
+ *
+ * SHA-256 is calculated while downloading and compared to the checksum from
+ * the branch metadata. The file is renamed to update.apk only if they match.
+ */
+public class UpdateDownloader {
+    private static final String FILE = "update.apk";
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Partial file is synced to disk after this number of bytes
+     */
+    private static final int SYNC_INTERVAL = 1024 * 1024;
+
+    /**
+     * Download speed limit in bytes per second on metered networks
+     */
+    private static final int METERED_RATE = 256 * 1024;
+
+    public interface Callback {
+        void onProgress(long done, long total);
+    }
+
+    /**
+     * Downloaded data doesn't match the expected checksum. The partial file
+     * is deleted, so there is no sense in retrying immediately.
+     */
+    public static class ChecksumException extends IOException {
+        public ChecksumException(String message) {
+            super(message);
+        }
+    }
+
+    private final Context context;
+    private final ConnectivityManager cm;
+    private final String url;
+    private final String sha256;
+
+    private final File file;
+    private final File part;
+    private final File state;
+
+    private Callback callback = null;
+    private String validator = "";
+
+    /**
+     * @param sha256 Expected checksum in hex or null if it is unknown
+     */
+    public UpdateDownloader(Context context, String url, String sha256) {
+        this.context = context;
+        this.cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.url = url;
+        this.sha256 = sha256 != null ? sha256.toLowerCase(Locale.ENGLISH) : "";
+
+        this.file = getFile(context);
+        this.part = new File(file.getPath() + ".part");
+        this.state = new File(file.getPath() + ".state");
+    }
+
+    public UpdateDownloader setCallback(Callback callback) {
+        this.callback = callback; return this;
+    }
+
+    /**
+     * Package installer can't read internal files on Android < 7.0, so the
+     * file is stored in the external files dir there (like DownloadManager did).
+     */
+    public static File getFile(Context context) {
+        File dir = null;
+
+        if (Build.VERSION.SDK_INT < 24) {
+            dir = context.getExternalFilesDir(null);
+        }
+
+        if (dir == null) {
+            dir = context.getFilesDir();
+        }
+
+        return new File(dir, FILE);
+    }
+
+    public static Intent getInstallIntent(Context context) {
+        File file = getFile(context);
+        Intent intent;
+
+        if (Build.VERSION.SDK_INT >= 24) {
+            intent = new Intent(Intent.ACTION_INSTALL_PACKAGE);
+            intent.setData(FileProvider.getUriForFile(context, "pw.thedrhax.mosmetro.provider", file));
+            intent.setFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_ACTIVITY_NEW_TASK);
+        } else {
+            intent = new Intent(Intent.ACTION_VIEW);
+            intent.setDataAndType(Uri.fromFile(file), "application/vnd.android.package-archive");
+            intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        }
+
+        return intent;
+    }
+
+    /*
+     * State of the partial download
+     */
+
+    private void readState() {
+        validator = "";
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(state))) {
+            if (url.equals(in.readUTF()) && sha256.equals(in.readUTF())) {
+                validator = in.readUTF();
+                return;
+            }
+        } catch (IOException ignored) {}
+
+        // Partial file belongs to another update
+        part.delete();
+    }
+
+    private void writeState() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(state))) {
+            out.writeUTF(url);
+            out.writeUTF(sha256);
+            out.writeUTF(validator);
+        }
+    }
+
+    private void reset() {
+        part.delete();
+        state.delete();
+        validator = "";
+    }
+
+    /*
+     * Download
+     */
+
+    private HttpResponse request(Client client, long offset) throws IOException {
+        String location = url;
+
+        // Redirects are followed here, because Client doesn't copy Range headers
+        for (int i = 0; i < 10; i++) {
+            HttpRequest request = client.get(location);
+
+            // Compressed ranges can't be appended to the file
+            request.headers.setHeader(Headers.ACCEPT_ENCODING, "identity");
+
+            if (offset > 0) {
+                request.headers.setHeader(Headers.RANGE, "bytes=" + offset + "-");
+                if (!validator.isEmpty()) {
+                    request.headers.setHeader(Headers.IF_RANGE, validator);
+                }
+            }
+
+            HttpResponse response = request.execute();
+
+            try {
+                location = response.get300Redirect();
+            } catch (ParseException ex) {
+                return response;
+            }
+
+            close(response);
+        }
+
+        throw new IOException("Too many redirects");
+    }
+
+    /**
+     * Release the connection of a response whose body is not going to be read.
+     */
+    private static void close(HttpResponse response) throws IOException {
+        if (response.isStream()) {
+            InputStream stream = response.getInputStream();
+            if (stream != null) stream.close();
+        }
+    }
+
+    private static String getValidator(HttpResponse response) {
+        String etag = response.headers.getFirst(Headers.ETAG);
+        if (etag != null && !etag.startsWith("W/")) return etag; // If-Range needs a strong ETag
+
+        String last_modified = response.headers.getFirst(Headers.LAST_MODIFIED);
+        return last_modified != null ? last_modified : "";
+    }
+
+    private static long parseLong(String value, long fallback) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException | NullPointerException ex) {
+            return fallback;
+        }
+    }
+
+    /**
+     * @return Total size from Content-Range or Content-Length headers, -1 if unknown
+     */
+    private static long getTotal(HttpResponse response, long offset) {
+        String range = response.headers.getFirst(Headers.CONTENT_RANGE);
+        if (range != null && range.contains("/")) {
+            return parseLong(range.substring(range.indexOf('/') + 1), -1);
+        }
+
+        long length = parseLong(response.headers.getFirst(Headers.CONTENT_LENGTH), -1);
+        return length != -1 ? offset + length : -1;
+    }
+
+    private boolean isMetered() {
+        return cm != null && ConnectivityManagerCompat.isActiveNetworkMetered(cm);
+    }
+
+    private static MessageDigest digest(File file, long length) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+
+        if (length == 0) return digest;
+
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            long left = length;
+            int count;
+
+            while (left > 0 && (count = in.read(buffer, 0, (int) Math.min(buffer.length, left))) != -1) {
+                digest.update(buffer, 0, count);
+                left -= count;
+            }
+        }
+
+        return digest;
+    }
+
+    private static String hex(byte[] data) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : data) {
+            result.append(String.format(Locale.ENGLISH, "%02x", b));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Download the update or continue the previous attempt. Must not be called
+     * from the UI thread.
+     *
+     * @return Verified file
+     * @throws ChecksumException if downloaded file is damaged
+     * @throws IOException if download is interrupted (it can be resumed later)
+     */
+    public File download() throws IOException {
+        readState();
+
+        long offset = part.length();
+        Client client = new OkHttp(context).setFollowRedirects(false);
+        HttpResponse response = request(client, offset);
+
+        switch (response.getResponseCode()) {
+            case 206: // Continue from the end of the partial file
+                Logger.log(this, "Resuming download from " + offset + " bytes");
+                break;
+
+            case 200: // Server doesn't support ranges or the file has changed
+                if (offset > 0) {
+                    Logger.log(this, "Unable to resume, starting from scratch");
+                }
+                offset = 0;
+                part.delete();
+                break;
+
+            case 416: // Partial file is already complete or invalid
+                close(response);
+                if (offset > 0) {
+                    return verify(digest(part, offset));
+                }
+                // fall through
+
+            default:
+                close(response);
+                throw new IOException("Invalid response: " + response.getResponseCode());
+        }
+
+        validator = getValidator(response);
+        writeState();
+
+        long total = getTotal(response, offset);
+        MessageDigest digest = digest(part, offset);
+        boolean metered = isMetered();
+
+        try (InputStream in = response.getInputStream();
+             FileOutputStream out = new FileOutputStream(part, true)) {
+
+            byte[] buffer = new byte[CHUNK_SIZE];
+            long done = offset;
+            long unsynced = 0;
+            long start = System.currentTimeMillis();
+            long received = 0;
+            int count;
+
+            if (callback != null) callback.onProgress(done, total);
+
+            while ((count = in.read(buffer)) != -1) {
+                if (Thread.interrupted()) throw new InterruptedIOException();
+
+                out.write(buffer, 0, count);
+                digest.update(buffer, 0, count);
+                done += count;
+                unsynced += count;
+                received += count;
+
+                if (unsynced >= SYNC_INTERVAL) {
+                    out.getFD().sync();
+                    unsynced = 0;
+
+                    // Network may change during the download
+                    if (metered != isMetered()) {
+                        metered = !metered;
+                        start = System.currentTimeMillis();
+                        received = 0;
+                    }
+
+                    if (callback != null) callback.onProgress(done, total);
+                }
+
+                if (metered) {
+                    long expected = received * 1000 / METERED_RATE;
+                    long elapsed = System.currentTimeMillis() - start;
+
+                    if (expected > elapsed) {
+                        try {
+                            Thread.sleep(expected - elapsed);
+                        } catch (InterruptedException ex) {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                }
+            }
+
+            out.getFD().sync();
+            if (callback != null) callback.onProgress(done, total);
+
+            if (total != -1 && done < total) {
+                throw new IOException("Connection closed at " + done + " of " + total + " bytes");
+            }
+        }
+
+        return verify(digest);
+    }
+
+    private File verify(MessageDigest digest) throws IOException {
+        String actual = hex(digest.digest());
+
+        if (sha256.isEmpty()) {
+            Logger.log(this, "No checksum in branch metadata, SHA-256: " + actual);
+        } else if (!sha256.equals(actual)) {
+            reset();
+            throw new ChecksumException("Checksum mismatch: " + actual + " != " + sha256);
+        }
+
+        file.delete();
+        if (!part.renameTo(file)) {
+            throw new IOException("Unable to rename " + part.getName());
+        }
+
+        state.delete();
+        Logger.log(this, "Update downloaded: " + file.length() + " bytes");
+        return file;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.util;
+
+/**
+ * Immutable point in time until which an operation must finish.
+ *
+ * Deadlines are passed down from ConnectionService to Provider, Tasks and
+ * Client requests. Each level can only make the deadline earlier:
+ *
+ *   Deadline task = attempt.within(30 * 1000);
+ */
+public final class Deadline {
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    private final long at; // System.nanoTime()
+
+    private Deadline(long at) {
+        this.at = at;
+    }
+
+    /**
+     * @param ms Time from now in ms
+     */
+    public static Deadline in(long ms) {
+        return new Deadline(System.nanoTime() + ms * 1000000);
+    }
+
+    public boolean isSet() {
+        return at != Long.MAX_VALUE;
+    }
+
+    /**
+     * @return Time left in ms, 0 if expired, Long.MAX_VALUE if not set
+     */
+    public long remaining() {
+        if (!isSet()) return Long.MAX_VALUE;
+        return Math.max(0, (at - System.nanoTime()) / 1000000);
+    }
+
+    public boolean isExpired() {
+        return isSet() && at - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @return The earliest of this deadline and the one in ms from now
+     */
+    public Deadline within(long ms) {
+        return min(in(ms));
+    }
+
+    public Deadline min(Deadline other) {
+        if (!isSet()) return other;
+        if (!other.isSet()) return this;
+        return other.at - at < 0 ? other : this;
+    }
+
+    @Override
+    public String toString() {
+        return isSet() ? remaining() + " ms" : "none";
+    }
+}
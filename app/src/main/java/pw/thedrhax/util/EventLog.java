@@ -0,0 +1,470 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Typed diagnostic events stored next to the text logs.
+ *
+ * Text logs are meant for humans, while these events are meant for queries:
+ * every HTTP request, Task, Provider switch, Gen204 check and access point
+ * handoff is recorded with its duration, so a latency breakdown of a connection
+ * attempt can be built without parsing the text. Events are kept in a small LogStore, which
+ * deletes the oldest segments when it's full.
+ *
+ * Events are grouped by sessions, one session per ConnectionService run.
+ *
+ * Like Logger, inputs only add events to a queue. Events are encoded and
+ * written by the Logger's writer thread (see drain()).
+ */
+public class EventLog {
+    public enum TYPE {
+        SESSION_START, SESSION_END,
+        REQUEST_START, REQUEST_END,
+        TASK_START, TASK_END,
+        PROVIDER_SWITCH,
+        GEN204,
+        ROAMING
+    }
+
+    private static LogStore store = null;
+    private static volatile int session = 0;
+    private static final AtomicInteger last_id = new AtomicInteger(0);
+
+    /**
+     * Last used session id. Ids are increasing even if several sessions are
+     * started in the same second or the clock goes back.
+     */
+    private static final AtomicInteger last_session = new AtomicInteger(0);
+
+    private static final RingBuffer<Event> queue = new RingBuffer<>(1024);
+
+    public static synchronized void configure(Context context) {
+        if (store != null) return;
+
+        try {
+            store = new LogStore(new File(context.getFilesDir(), "events"), 32 * 1024, 8);
+        } catch (IOException ex) {
+            Log.e("pw.thedrhax.mosmetro", "Unable to open event log", ex);
+            return;
+        }
+
+        // Continue after the sessions of the previous runs
+        int size = store.size();
+        try {
+            for (byte[] record : store.readBytes(Math.max(size - 64, 0), size)) {
+                try {
+                    int id = Event.decode(record).session;
+                    if (id > last_session.get()) last_session.set(id);
+                } catch (IOException | ArrayIndexOutOfBoundsException ignored) {}
+            }
+        } catch (IOException ignored) {}
+    }
+
+    private static void add(Event event) {
+        queue.offer(event);
+    }
+
+    /**
+     * Write queued events to the store. Called periodically by the writer
+     * thread of Logger and before reading the store.
+     * @param flush Also write buffered events to disk.
+     */
+    static synchronized void drain(boolean flush) {
+        if (store == null) return;
+
+        try {
+            Event event;
+            while ((event = queue.poll()) != null) {
+                store.add(event.encode());
+            }
+
+            if (flush) store.flush();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Write all queued events to disk.
+     */
+    public static void flush() {
+        drain(true);
+    }
+
+    /**
+     * @return Next session id: current time in seconds, but always greater
+     *         than the previous one
+     */
+    static int nextSession(int now) {
+        while (true) {
+            int last = last_session.get();
+            int next = Math.max(now, last + 1);
+            if (last_session.compareAndSet(last, next)) return next;
+        }
+    }
+
+    /*
+     * Inputs
+     */
+
+    /**
+     * Event with a duration. Start event is written immediately, end event is
+     * written by end() with the same id.
+     */
+    public static class Span {
+        private final TYPE type;
+        private final int id;
+        private final String text;
+        private final long start = System.nanoTime();
+
+        private Span(TYPE type, String text) {
+            this.type = type;
+            this.id = last_id.incrementAndGet();
+            this.text = text;
+            add(new Event(type, System.currentTimeMillis(), session, id, 0, 0, 0, text));
+        }
+
+        /**
+         * @param code   Result of the operation (HTTP status, 1 = success, 0 = failure)
+         * @param bytes  Size of received data
+         */
+        public void end(int code, int bytes) {
+            int duration = (int) ((System.nanoTime() - start) / 1000000);
+            add(new Event(
+                    TYPE.values()[type.ordinal() + 1], System.currentTimeMillis(),
+                    session, id, code, duration, bytes, text
+            ));
+        }
+    }
+
+    /**
+     * Start a new session. All events are attributed to it until endSession().
+     */
+    public static Span startSession(String name) {
+        session = nextSession((int) (System.currentTimeMillis() / 1000));
+        return new Span(TYPE.SESSION_START, name);
+    }
+
+    public static void endSession(Span span, boolean connected) {
+        span.end(connected ? 1 : 0, 0);
+        session = 0;
+    }
+
+    public static Span request(String url) {
+        return new Span(TYPE.REQUEST_START, url);
+    }
+
+    public static Span task(String name) {
+        return new Span(TYPE.TASK_START, name);
+    }
+
+    public static void providerSwitch(String name) {
+        add(new Event(TYPE.PROVIDER_SWITCH, System.currentTimeMillis(), session,
+                last_id.incrementAndGet(), 0, 0, 0, name));
+    }
+
+    /**
+     * @param code      Response code of the Gen204 result
+     * @param verdict   Short description of the result
+     * @param duration  Time spent on all requests in ms
+     */
+    public static void gen204(int code, String verdict, int duration) {
+        add(new Event(TYPE.GEN204, System.currentTimeMillis(), session,
+                last_id.incrementAndGet(), code, duration, 0, verdict));
+    }
+
+    /**
+     * @param bssid     Access point after the handoff
+     * @param kept      true if the session survived without authentication
+     * @param duration  Time from disconnection to the verified connection in ms
+     */
+    public static void roaming(String bssid, boolean kept, int duration) {
+        add(new Event(TYPE.ROAMING, System.currentTimeMillis(), session,
+                last_id.incrementAndGet(), kept ? 1 : 0, duration, 0,
+                bssid != null ? bssid : ""));
+    }
+
+    /*
+     * Queries
+     */
+
+    /**
+     * @return All stored events in chronological order
+     */
+    public static synchronized List<Event> read() {
+        List<Event> result = new LinkedList<>();
+        if (store == null) return result;
+
+        drain(false);
+
+        try {
+            for (byte[] record : store.readBytes(0, store.size())) {
+                try {
+                    result.add(Event.decode(record));
+                } catch (IOException | ArrayIndexOutOfBoundsException ignored) {}
+            }
+        } catch (IOException ignored) {}
+
+        return result;
+    }
+
+    /**
+     * @return Ids of stored sessions in chronological order
+     */
+    public static List<Integer> sessions() {
+        return new LinkedList<>(group(read()).keySet());
+    }
+
+    /**
+     * @return Events of each session with SESSION_START, in chronological order
+     */
+    private static Map<Integer,List<Event>> group(List<Event> events) {
+        Map<Integer,List<Event>> result = new LinkedHashMap<>();
+
+        for (Event event : events) {
+            List<Event> session = result.get(event.session);
+
+            if (session == null) {
+                if (event.type != TYPE.SESSION_START) continue;
+                session = new LinkedList<>();
+                result.put(event.session, session);
+            }
+
+            session.add(event);
+        }
+
+        return result;
+    }
+
+    /**
+     * Build a latency breakdown of one session.
+     *
+     * Contains the list of tasks, requests and Gen204 checks with durations,
+     * total time spent on requests to each host and the slowest requests.
+     */
+    public static JSONObject report(int session) {
+        List<Event> events = group(read()).get(session);
+        return report(session, events != null ? events : new LinkedList<Event>());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject report(int session, List<Event> events) {
+        JSONObject result = new JSONObject();
+        JSONArray tasks = new JSONArray();
+        JSONArray requests = new JSONArray();
+        JSONArray checks = new JSONArray();
+        JSONArray providers = new JSONArray();
+        JSONArray handoffs = new JSONArray();
+        Map<String,long[]> hosts = new LinkedHashMap<>();
+        List<Event> slowest = new ArrayList<>();
+
+        result.put("session", session);
+
+        for (Event event : events) {
+            switch (event.type) {
+                case SESSION_START:
+                    result.put("name", event.text);
+                    result.put("start", event.time);
+                    break;
+
+                case SESSION_END:
+                    result.put("duration", event.duration);
+                    result.put("connected", event.code == 1);
+                    break;
+
+                case TASK_END:
+                    tasks.add(event.toJSON());
+                    break;
+
+                case REQUEST_END:
+                    requests.add(event.toJSON());
+                    slowest.add(event);
+
+                    String host = Uri.parse(event.text).getHost();
+                    if (host == null) host = "";
+
+                    long[] stats = hosts.get(host);
+                    if (stats == null) {
+                        stats = new long[3];
+                        hosts.put(host, stats);
+                    }
+                    stats[0]++; stats[1] += event.duration; stats[2] += event.bytes;
+                    break;
+
+                case GEN204:
+                    checks.add(event.toJSON());
+                    break;
+
+                case PROVIDER_SWITCH:
+                    providers.add(event.text);
+                    break;
+
+                case ROAMING:
+                    handoffs.add(event.toJSON());
+                    break;
+            }
+        }
+
+        JSONObject by_host = new JSONObject();
+        for (Map.Entry<String,long[]> entry : hosts.entrySet()) {
+            JSONObject stats = new JSONObject();
+            stats.put("requests", entry.getValue()[0]);
+            stats.put("duration", entry.getValue()[1]);
+            stats.put("bytes", entry.getValue()[2]);
+            by_host.put(entry.getKey(), stats);
+        }
+
+        Collections.sort(slowest, new Comparator<Event>() {
+            @Override
+            public int compare(Event a, Event b) {
+                return b.duration - a.duration;
+            }
+        });
+
+        JSONArray top = new JSONArray();
+        for (Event event : slowest.subList(0, Math.min(5, slowest.size()))) {
+            top.add(event.toJSON());
+        }
+
+        result.put("providers", providers);
+        result.put("tasks", tasks);
+        result.put("requests", requests);
+        result.put("gen204", checks);
+        result.put("roaming", handoffs);
+        result.put("hosts", by_host);
+        result.put("slowest", top);
+
+        return result;
+    }
+
+    /**
+     * @return Reports of the last sessions as a JSON array
+     */
+    @SuppressWarnings("unchecked")
+    public static String export(int count) {
+        Map<Integer,List<Event>> sessions = group(read());
+        List<Integer> ids = new ArrayList<>(sessions.keySet());
+        JSONArray result = new JSONArray();
+
+        for (int id : ids.subList(Math.max(ids.size() - count, 0), ids.size())) {
+            result.add(report(id, sessions.get(id)));
+        }
+
+        return result.toJSONString();
+    }
+
+    public static synchronized void wipe() {
+        if (store == null) return;
+
+        while (queue.poll() != null);
+
+        try {
+            store.clear();
+        } catch (IOException ignored) {}
+    }
+
+    public static class Event {
+        public final TYPE type;
+        public final long time;
+        public final int session;
+        public final int id;
+        public final int code;
+        public final int duration;
+        public final int bytes;
+        public final String text;
+
+        Event(TYPE type, long time, int session, int id,
+              int code, int duration, int bytes, String text) {
+            this.type = type;
+            this.time = time;
+            this.session = session;
+            this.id = id;
+            this.code = code;
+            this.duration = duration;
+            this.bytes = bytes;
+            this.text = text != null ? text : "";
+        }
+
+        byte[] encode() {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(32 + text.length());
+            DataOutputStream out = new DataOutputStream(buffer);
+
+            try {
+                out.writeByte(type.ordinal());
+                out.writeLong(time);
+                out.writeInt(session);
+                out.writeInt(id);
+                out.writeInt(code);
+                out.writeInt(duration);
+                out.writeInt(bytes);
+                out.writeUTF(text.length() > 1024 ? text.substring(0, 1024) : text);
+            } catch (IOException ignored) {} // not possible with ByteArrayOutputStream
+
+            return buffer.toByteArray();
+        }
+
+        static Event decode(byte[] data) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+            return new Event(
+                    TYPE.values()[in.readByte()],
+                    in.readLong(), in.readInt(), in.readInt(),
+                    in.readInt(), in.readInt(), in.readInt(),
+                    in.readUTF()
+            );
+        }
+
+        @SuppressWarnings("unchecked")
+        public JSONObject toJSON() {
+            JSONObject result = new JSONObject();
+            result.put("type", type.name().toLowerCase());
+            result.put("time", time);
+            result.put("text", text);
+            result.put("code", code);
+            result.put("duration", duration);
+            if (bytes > 0) result.put("bytes", bytes);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return toJSON().toJSONString();
+        }
+    }
+}
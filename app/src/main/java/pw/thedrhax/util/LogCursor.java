@@ -0,0 +1,233 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Snapshot of the stored messages of one Logger.LEVEL for list views.
+ *
+ * The snapshot is changed only by update(), so size() and get() always agree
+ * with each other between updates even if new messages are being logged.
+ * Since the log is append-only, update() can describe the difference with
+ * the previous snapshot as a number of messages removed from the beginning
+ * (rotated out) and added to the end.
+ *
+ * Messages are loaded by pages, and only a few pages are kept in memory.
+ * Snapshots are taken and pages are read by the background Executor, so
+ * the UI thread never waits for Logger or disk. All public methods and
+ * Observer callbacks are called on the UI thread.
+ */
+public class LogCursor {
+    private static final int PAGE_SIZE = 64;
+    private static final int MAX_PAGES = 8;
+
+    private final Logger.LEVEL level;
+    private final Executor background;
+    private final Executor ui;
+
+    private LogStore.Snapshot snapshot = null;
+    private boolean updating = false;
+    private boolean update_pending = false;
+
+    // Position of the first message in the snapshot (see LogStore.first())
+    private long first = 0;
+    private int count = 0;
+
+    private final Map<Long,List<String>> pages =
+            new LinkedHashMap<Long,List<String>>(MAX_PAGES + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long,List<String>> eldest) {
+                    return size() > MAX_PAGES;
+                }
+            };
+
+    private final Set<Long> loading = new HashSet<>();
+
+    private Observer observer = null;
+    private boolean closed = false;
+
+    /**
+     * @param background  Executor for snapshots and disk reads
+     * @param ui          Executor of the UI thread
+     */
+    public LogCursor(Logger.LEVEL level, Executor background, Executor ui) {
+        this.level = level;
+        this.background = background;
+        this.ui = ui;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return Message at this position of the snapshot or empty string if
+     *         its page is not loaded yet (Observer.onChanged() is called
+     *         when it is loaded)
+     */
+    public String get(int position) {
+        long index = first + position;
+        long page = index / PAGE_SIZE;
+        int offset = (int) (index % PAGE_SIZE);
+
+        List<String> messages = pages.get(page);
+
+        // The last page is loaded again when it gets new messages
+        if (messages == null || offset >= messages.size()) {
+            load(page);
+        }
+
+        return messages != null && offset < messages.size() ? messages.get(offset) : "";
+    }
+
+    private void load(final long page) {
+        final LogStore.Snapshot snapshot = this.snapshot;
+        if (snapshot == null || !loading.add(page)) return;
+
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long start = page * PAGE_SIZE;
+                final List<String> messages = new ArrayList<>();
+
+                // Messages deleted by rotation are missing from the beginning
+                long missing = Math.min(Math.max(snapshot.first() - start, 0), PAGE_SIZE);
+                for (int i = 0; i < missing; i++) {
+                    messages.add("");
+                }
+
+                int from = (int) Math.max(start - snapshot.first(), 0);
+                int to = (int) Math.max(start + PAGE_SIZE - snapshot.first(), 0);
+                messages.addAll(snapshot.read(from, to));
+
+                ui.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        loading.remove(page);
+                        if (closed) return;
+                        if (!snapshot.sameStore(LogCursor.this.snapshot)) return;
+
+                        pages.put(page, messages);
+
+                        // Notify about the part of the page that is inside of the snapshot
+                        long from = Math.max(start, first);
+                        long to = Math.min(start + messages.size(), first + count);
+                        if (observer != null && to > from) {
+                            observer.onChanged((int) (from - first), (int) (to - from));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Move the snapshot to the current state of the log. Changes are applied
+     * asynchronously, after the new snapshot is taken.
+     * @param observer Receives changes relative to the previous snapshot.
+     */
+    public void update(Observer observer) {
+        if (closed) return;
+
+        this.observer = observer;
+
+        if (updating) {
+            update_pending = true;
+            return;
+        }
+
+        updating = true;
+
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                final LogStore.Snapshot next = Logger.snapshot(level);
+
+                ui.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        updating = false;
+                        if (closed) return;
+                        if (next != null) apply(next);
+
+                        if (update_pending) {
+                            update_pending = false;
+                            update(LogCursor.this.observer);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void apply(LogStore.Snapshot next) {
+        long[] bounds = new long[] {next.first(), next.first() + next.size()};
+        long end = first + count;
+        boolean reopened = snapshot != null && !next.sameStore(snapshot);
+
+        snapshot = next;
+
+        if (reopened || bounds[1] < end) { // log was reopened by Logger.configure()
+            first = bounds[0];
+            count = (int) (bounds[1] - bounds[0]);
+            pages.clear();
+            observer.onReset();
+            return;
+        }
+
+        if (bounds[0] > first) {
+            int removed = (int) (Math.min(bounds[0], end) - first);
+            first = bounds[0];
+            count -= removed;
+            if (removed > 0) observer.onRemoved(removed);
+        }
+
+        if (bounds[1] > first + count) {
+            int start = count;
+            int added = (int) (bounds[1] - first - count);
+            count += added;
+            observer.onInserted(start, added);
+        }
+    }
+
+    /**
+     * Stop notifying the Observer. Pages and snapshots that are still being
+     * read are discarded, so positions of this cursor are never reported to
+     * an adapter that has switched to another one.
+     */
+    public void close() {
+        closed = true;
+        observer = null;
+        update_pending = false;
+    }
+
+    public interface Observer {
+        void onRemoved(int count);
+        void onInserted(int position, int count);
+        void onChanged(int position, int count);
+        void onReset();
+    }
+}
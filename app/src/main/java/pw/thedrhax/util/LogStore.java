@@ -0,0 +1,613 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Append-only log storage split into segments of a fixed size.
+ *
+ * Every record is stored as a 4-byte length followed by UTF-8 bytes. When the
+ * current segment is full, it is sealed, its number of records is written to
+ * the index file and a new segment is started. The oldest segments are deleted
+ * when there are more than max_segments of them.
+ *
+ * Opening the store costs one directory listing, one read of the small index
+ * file and a scan of the last segment (to find its end after a crash). Older
+ * segments are read only when their records are requested.
+ *
+ * This class doesn't depend on Android, so it can be used in JVM benchmarks.
+ */
+public class LogStore implements Closeable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SUFFIX = ".seg";
+    private static final String INDEX = "index";
+
+    private static class Segment {
+        final long id;
+        final File file;
+
+        /**
+         * Number of records or -1 if segment was not indexed yet
+         */
+        int count = -1;
+
+        /**
+         * Offsets of all records. Loaded lazily.
+         */
+        int[] offsets = null;
+
+        long size = 0;
+
+        Segment(File dir, long id) {
+            this.id = id;
+            this.file = new File(dir, String.format("%016x", id) + SUFFIX);
+        }
+    }
+
+    private final File dir;
+    private final int segment_size;
+    private final int max_segments;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment active = null;
+    private OutputStream out = null;
+    private int pending = 0;
+
+    /**
+     * Number of records deleted since the store was opened
+     */
+    private long removed = 0;
+
+    // Last loaded segment
+    private Segment cached = null;
+    private byte[] cached_data = null;
+    private int cached_count = 0;
+
+    /**
+     * @param dir           Directory for segment files. Will be created if doesn't exist.
+     * @param segment_size  Maximum size of one segment in bytes.
+     * @param max_segments  Maximum number of segments to keep.
+     */
+    public LogStore(File dir, int segment_size, int max_segments) throws IOException {
+        this.dir = dir;
+        this.segment_size = segment_size;
+        this.max_segments = max_segments;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+
+        File[] files = dir.listFiles();
+        if (files == null) files = new File[0];
+
+        long[] ids = new long[files.length];
+        int n = 0;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SUFFIX)) continue;
+
+            try {
+                ids[n++] = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16);
+            } catch (NumberFormatException ex) {
+                file.delete();
+            }
+        }
+
+        Arrays.sort(ids, 0, n);
+
+        for (int i = 0; i < n; i++) {
+            Segment segment = new Segment(dir, ids[i]);
+            segment.size = segment.file.length();
+            segments.add(segment);
+        }
+
+        readIndex();
+
+        if (segments.isEmpty()) {
+            segments.add(new Segment(dir, 0));
+        }
+
+        active = segments.get(segments.size() - 1);
+        recover(active);
+        out = new BufferedOutputStream(new FileOutputStream(active.file, true), 16 * 1024);
+    }
+
+    /**
+     * Read the number of records in sealed segments from the index file.
+     */
+    private void readIndex() {
+        File index = new File(dir, INDEX);
+        if (!index.exists()) return;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(index))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length != 2) continue;
+
+                long id = Long.parseLong(parts[0], 16);
+                int count = Integer.parseInt(parts[1]);
+
+                for (Segment segment : segments) {
+                    if (segment.id == id) {
+                        segment.count = count; break;
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {}
+    }
+
+    private void writeIndex() throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(dir, INDEX)))) {
+            for (Segment segment : segments) {
+                if (segment == active || segment.count < 0) continue;
+                writer.write(String.format("%016x", segment.id) + " " + segment.count + "\n");
+            }
+        }
+    }
+
+    /**
+     * Find all records in the segment and cut off a partially written one.
+     */
+    private void recover(Segment segment) throws IOException {
+        if (!segment.file.exists() || segment.file.length() == 0) {
+            segment.count = 0;
+            segment.offsets = new int[0];
+            segment.size = 0;
+            return;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(segment.file, "rw")) {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            int end = index(segment, buffer);
+
+            if (end < channel.size()) {
+                file.setLength(end);
+            }
+
+            segment.size = end;
+        }
+    }
+
+    /**
+     * Fill the list of record offsets.
+     * @return Position of the end of the last valid record
+     */
+    private static int index(Segment segment, ByteBuffer buffer) {
+        int[] offsets = new int[64];
+        int count = 0;
+        int pos = 0;
+        int limit = buffer.limit();
+
+        while (pos + 4 <= limit) {
+            int length = buffer.getInt(pos);
+            if (length < 0 || pos + 4 + length > limit) break;
+
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+
+            offsets[count++] = pos;
+            pos += 4 + length;
+        }
+
+        segment.offsets = Arrays.copyOf(offsets, count);
+        segment.count = count;
+        return pos;
+    }
+
+    private byte[] load(Segment segment) throws IOException {
+        // Active segment is still growing, check if there were no new records
+        if (segment == cached && (segment != active || cached_count == segment.count)) {
+            return cached_data;
+        }
+
+        if (segment == active) {
+            flush();
+        }
+
+        byte[] data = new byte[(int) segment.file.length()];
+
+        try (FileInputStream is = new FileInputStream(segment.file)) {
+            int pos = 0;
+            while (pos < data.length) {
+                int read = is.read(data, pos, data.length - pos);
+                if (read == -1) break;
+                pos += read;
+            }
+        }
+
+        if (segment.offsets == null || segment.offsets.length != segment.count || segment == active) {
+            index(segment, ByteBuffer.wrap(data));
+        }
+
+        cached = segment;
+        cached_data = data;
+        cached_count = segment.count;
+
+        return data;
+    }
+
+    private int count(Segment segment) {
+        if (segment.count < 0) {
+            try {
+                load(segment);
+            } catch (IOException ex) {
+                segment.count = 0;
+            }
+        }
+        return segment.count;
+    }
+
+    /*
+     * Writing
+     */
+
+    public void add(String message) throws IOException {
+        add(message.getBytes(UTF8));
+    }
+
+    public synchronized void add(byte[] data) throws IOException {
+        if (data.length > segment_size - 4) {
+            int end = segment_size - 4;
+
+            // Don't split a multi-byte UTF-8 character
+            while (end > 0 && (data[end] & 0xC0) == 0x80) end--;
+
+            data = Arrays.copyOf(data, end);
+        }
+
+        if (active.size + 4 + data.length > segment_size && active.count > 0) {
+            rotate();
+        }
+
+        out.write(data.length >>> 24);
+        out.write(data.length >>> 16);
+        out.write(data.length >>> 8);
+        out.write(data.length);
+        out.write(data);
+
+        active.size += 4 + data.length;
+        active.count++;
+        pending += 4 + data.length;
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+
+        if (cached == active && cached_count != active.count) {
+            cached = null; cached_data = null;
+        }
+
+        Segment next = new Segment(dir, active.id + 1);
+        segments.add(next);
+        active = next;
+        active.count = 0;
+
+        while (segments.size() > max_segments) {
+            Segment oldest = segments.remove(0);
+            removed += count(oldest);
+            oldest.file.delete();
+            if (cached == oldest) {
+                cached = null; cached_data = null;
+            }
+        }
+
+        writeIndex();
+
+        out = new BufferedOutputStream(new FileOutputStream(active.file, true), 16 * 1024);
+        pending = 0;
+    }
+
+    /**
+     * @return Number of bytes not written to disk yet
+     */
+    public synchronized int pending() {
+        return pending;
+    }
+
+    public synchronized void flush() throws IOException {
+        if (pending == 0) return;
+        out.flush();
+        pending = 0;
+    }
+
+    /**
+     * Delete all records.
+     */
+    public synchronized void clear() throws IOException {
+        out.close();
+
+        long next_id = active.id + 1;
+
+        for (Segment segment : segments) {
+            removed += count(segment);
+            segment.file.delete();
+        }
+        new File(dir, INDEX).delete();
+
+        segments.clear();
+        cached = null; cached_data = null;
+
+        active = new Segment(dir, next_id);
+        active.count = 0;
+        segments.add(active);
+
+        out = new BufferedOutputStream(new FileOutputStream(active.file, true), 16 * 1024);
+        pending = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /*
+     * Reading
+     */
+
+    /**
+     * @return Total number of stored records
+     */
+    public synchronized int size() {
+        int result = 0;
+        for (Segment segment : segments) {
+            result += count(segment);
+        }
+        return result;
+    }
+
+    /**
+     * Position of the first stored record counted from the moment the store was
+     * opened. Positions of records don't change when older ones are deleted, so
+     * first() + size() is the position of the next record.
+     */
+    public synchronized long first() {
+        return removed;
+    }
+
+    /**
+     * Read records in range [from, to).
+     */
+    public synchronized List<String> read(int from, int to) throws IOException {
+        final List<String> result = new LinkedList<>();
+
+        scan(from, to, new Visitor() {
+            @Override
+            public void visit(byte[] data, int offset, int length) {
+                result.add(new String(data, offset, length, UTF8));
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Read raw records in range [from, to).
+     */
+    public synchronized List<byte[]> readBytes(int from, int to) throws IOException {
+        final List<byte[]> result = new LinkedList<>();
+
+        scan(from, to, new Visitor() {
+            @Override
+            public void visit(byte[] data, int offset, int length) {
+                result.add(Arrays.copyOfRange(data, offset, offset + length));
+            }
+        });
+
+        return result;
+    }
+
+    private interface Visitor {
+        void visit(byte[] data, int offset, int length);
+    }
+
+    private void scan(int from, int to, Visitor visitor) throws IOException {
+        int start = 0;
+
+        for (Segment segment : segments) {
+            int count = count(segment);
+
+            if (start + count > from && start < to) {
+                byte[] data = load(segment);
+
+                int first = Math.max(from - start, 0);
+                int last = Math.min(to - start, segment.count);
+
+                for (int i = first; i < last; i++) {
+                    int offset = segment.offsets[i];
+                    int length = ByteBuffer.wrap(data, offset, 4).getInt();
+                    visitor.visit(data, offset + 4, length);
+                }
+            }
+
+            start += count;
+            if (start >= to) break;
+        }
+    }
+
+    /**
+     * Take an immutable view of the records stored so far. Only metadata is
+     * copied while the lock is held, records are read from disk by the
+     * returned Snapshot, so it can be used from any thread.
+     */
+    public synchronized Snapshot snapshot() throws IOException {
+        flush();
+
+        int n = segments.size();
+        File[] files = new File[n];
+        int[] counts = new int[n];
+        long[] sizes = new long[n];
+
+        for (int i = 0; i < n; i++) {
+            Segment segment = segments.get(i);
+            files[i] = segment.file;
+            counts[i] = count(segment);
+            sizes[i] = segment == active ? active.size : segment.file.length();
+        }
+
+        return new Snapshot(this, removed, files, counts, sizes);
+    }
+
+    /**
+     * Records of a LogStore at some moment. Segments deleted after the
+     * snapshot was taken are read as empty strings.
+     */
+    public static class Snapshot {
+        private final LogStore store;
+        private final long first;
+        private final File[] files;
+        private final int[] counts;
+        private final long[] sizes;
+        private final int size;
+
+        private Snapshot(LogStore store, long first, File[] files, int[] counts, long[] sizes) {
+            this.store = store;
+            this.first = first;
+            this.files = files;
+            this.counts = counts;
+            this.sizes = sizes;
+
+            int size = 0;
+            for (int count : counts) size += count;
+            this.size = size;
+        }
+
+        /**
+         * @return true if both snapshots were taken from the same LogStore
+         */
+        public boolean sameStore(Snapshot other) {
+            return other != null && other.store == store;
+        }
+
+        /**
+         * @see LogStore#first()
+         */
+        public long first() {
+            return first;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Read records in range [from, to). The result always has
+         * (to - from) elements if the range is inside of this snapshot.
+         */
+        public List<String> read(int from, int to) {
+            List<String> result = new ArrayList<>();
+            to = Math.min(to, size);
+            int start = 0;
+
+            for (int i = 0; i < files.length && start < to; i++) {
+                int count = counts[i];
+
+                if (start + count > from) {
+                    int first = Math.max(from - start, 0);
+                    int last = Math.min(to - start, count);
+
+                    byte[] data = null;
+                    try {
+                        data = read(files[i], sizes[i]);
+                    } catch (IOException ignored) {}
+
+                    int pos = 0, index = 0;
+                    while (index < last) {
+                        String record = "";
+
+                        if (data != null && pos + 4 <= data.length) {
+                            int length = ByteBuffer.wrap(data, pos, 4).getInt();
+
+                            if (length >= 0 && pos + 4 + length <= data.length) {
+                                if (index >= first) {
+                                    record = new String(data, pos + 4, length, UTF8);
+                                }
+                                pos += 4 + length;
+                            } else {
+                                data = null;
+                            }
+                        }
+
+                        if (index >= first) result.add(record);
+                        index++;
+                    }
+                }
+
+                start += count;
+            }
+
+            return result;
+        }
+
+        private static byte[] read(File file, long size) throws IOException {
+            byte[] data = new byte[(int) Math.min(size, file.length())];
+
+            try (FileInputStream is = new FileInputStream(file)) {
+                int pos = 0;
+                while (pos < data.length) {
+                    int read = is.read(data, pos, data.length - pos);
+                    if (read == -1) break;
+                    pos += read;
+                }
+                return pos < data.length ? Arrays.copyOf(data, pos) : data;
+            }
+        }
+    }
+
+    /**
+     * @return Record at this position
+     */
+    public synchronized String get(int index) throws IOException {
+        List<String> result = read(index, index + 1);
+        if (result.isEmpty()) throw new IndexOutOfBoundsException("" + index);
+        return result.get(0);
+    }
+
+    /**
+     * @return Last N records
+     */
+    public synchronized List<String> tail(int lines) throws IOException {
+        int size = size();
+        return read(Math.max(size - lines, 0), size);
+    }
+}
@@ -25,24 +25,30 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.preference.PreferenceManager;
+import android.os.SystemClock;
+import androidx.annotation.Nullable;
 import androidx.core.content.FileProvider;
 import android.util.Log;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.net.UnknownHostException;
 import java.text.DateFormat;
-import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IllegalFormatException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.acra.ACRA;
 
@@ -53,17 +59,86 @@ public class Logger {
 
     public enum LEVEL {INFO, DEBUG}
 
-    private static final Map<LEVEL,LogWriter> logs = new HashMap<LEVEL,LogWriter>() {{
-        for (LEVEL level : LEVEL.values()) {
-            put(level, new LogWriter());
+    /**
+     * Persistent history of each LEVEL. Can only be accessed while holding the lock
+     * on this object. The thread holding the lock is also the only consumer of the
+     * queue. Empty until configure() is called, all messages are kept in the queue
+     * until then.
+     */
+    private static final Map<LEVEL,LogStore> logs = new HashMap<>();
+
+    /**
+     * Plain text copy of the last DEBUG messages for ACRA (see MosMetroApp)
+     */
+    private static File acra_log = null;
+    private static final int ACRA_LOG_LINES = 1000;
+
+    private static volatile boolean configured = false;
+
+    /**
+     * Messages waiting to be processed by the writer thread. log() only adds a
+     * message to this queue, so it never waits for other threads or disk I/O.
+     */
+    private static final RingBuffer<Record> queue = new RingBuffer<>(4096);
+
+    private static final Metrics.Counter MESSAGES = Metrics.counter("logger.messages");
+    private static final Metrics.Counter DROPPED = Metrics.counter("logger.dropped");
+    private static final Metrics.Histogram DRAIN = Metrics.histogram("logger.drain"); // per batch
+
+    private static final class Record {
+        final LEVEL level;
+        final String message;
+        final Object[] args;
+        final Supplier dump;
+        final long time;
+
+        Record(LEVEL level, String message, Object[] args) {
+            this(level, message, args, null);
+        }
+
+        Record(LEVEL level, String message, Object[] args, Supplier dump) {
+            this.level = level;
+            this.message = message;
+            this.args = args;
+            this.dump = dump;
+            this.time = System.currentTimeMillis();
         }
-    }};
+
+        /**
+         * Format arguments and dumps are applied only by the writer thread.
+         */
+        String format() {
+            if (dump != null) {
+                String result;
+
+                try {
+                    result = dump.get();
+                } catch (RuntimeException ex) {
+                    result = "Unable to create dump: " + ex.toString();
+                }
+
+                return message != null ? message + result : result;
+            }
+
+            if (args == null) return message;
+
+            try {
+                return String.format(Locale.ENGLISH, message, args);
+            } catch (IllegalFormatException ex) {
+                StringBuilder result = new StringBuilder(message);
+                for (Object arg : args) {
+                    result.append(" | ").append(arg);
+                }
+                return result.toString();
+            }
+        }
+    }
 
     private static long last_timestamp = 0;
 
-    private static String timestamp() {
-        long diff = System.currentTimeMillis() - last_timestamp;
-        last_timestamp = System.currentTimeMillis();
+    private static String timestamp(long time) {
+        long diff = time - last_timestamp;
+        last_timestamp = time;
 
         if (diff > 99000) {
             return "[+>99s]";
@@ -80,47 +155,292 @@ public class Logger {
 
     private static boolean pref_debug_logcat = false;
     private static boolean pref_debug_testing = false;
+    private static volatile int pref_debug_dump_size = 2000;
+
+    private static final SharedPreferences.OnSharedPreferenceChangeListener pref_listener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences settings, String key) {
+                    if ("pref_debug_dump_size".equals(key)) {
+                        pref_debug_dump_size = Preferences.getInt(settings, key, 2000);
+                    }
+                }
+            };
 
     public static void configure(Context context) {
-        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences settings = Preferences.shared(context);
         pref_debug_logcat = settings.getBoolean("pref_debug_logcat", false);
         pref_debug_testing = settings.getBoolean("pref_debug_testing", false);
+        pref_debug_dump_size = Preferences.getInt(settings, "pref_debug_dump_size", 2000);
+        settings.registerOnSharedPreferenceChangeListener(pref_listener);
 
-        for (LEVEL level : LEVEL.values()) {
-            if (logs.containsKey(level)) {
-                logs.get(level).close();
-                logs.remove(level);
+        synchronized (logs) {
+            for (LogStore store : logs.values()) {
+                try {
+                    store.close();
+                } catch (IOException ignored) {}
             }
+            logs.clear();
 
-            LogWriter writer = new LogWriter(
-                context.getFilesDir(),
-                "log-" + level.toString().toLowerCase() + ".txt",
-                level == LEVEL.INFO ? 100 : 2000
-            );
+            File dir = context.getFilesDir();
+            acra_log = new File(dir, "log-debug.txt");
+
+            for (LEVEL level : LEVEL.values()) {
+                String name = "log-" + level.toString().toLowerCase();
+                LogStore store;
+
+                try {
+                    store = new LogStore(new File(dir, name),
+                            level == LEVEL.INFO ? 16 * 1024 : 128 * 1024,
+                            level == LEVEL.INFO ? 4 : 16
+                    );
+                } catch (IOException ex) {
+                    Log.e("pw.thedrhax.mosmetro", "Unable to open " + name, ex);
+                    continue;
+                }
+
+                migrate(store, new File(dir, name + ".txt"), level == LEVEL.INFO ? 100 : 2000);
+                logs.put(level, store);
+            }
+
+            configured = true;
+            drain();
+        }
 
-            logs.put(level, writer);
+        // Write all pending messages before ACRA reads log-debug.txt
+        final Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        if (!(handler instanceof FlushingExceptionHandler)) {
+            Thread.setDefaultUncaughtExceptionHandler(new FlushingExceptionHandler(handler));
         }
 
         log(LEVEL.DEBUG, CUT);
     }
 
+    /**
+     * Import last lines of the plain text log used by previous versions.
+     */
+    private static void migrate(LogStore store, File file, int lines) {
+        if (!file.exists() || store.size() > 0) return;
+
+        List<String> history = new LinkedList<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                history.add(line);
+                if (history.size() > lines) history.remove(0);
+            }
+
+            for (String message : history) {
+                store.add(message);
+            }
+            store.flush();
+        } catch (IOException ignored) {}
+
+        if (!file.equals(acra_log)) {
+            file.delete();
+        }
+    }
+
+    private static class FlushingExceptionHandler implements Thread.UncaughtExceptionHandler {
+        private final Thread.UncaughtExceptionHandler parent;
+
+        FlushingExceptionHandler(Thread.UncaughtExceptionHandler parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public void uncaughtException(Thread t, Throwable e) {
+            flush();
+
+            if (parent != null) {
+                parent.uncaughtException(t, e);
+            }
+        }
+    }
+
     /*
-     * Inputs
+     * Writer thread
      */
 
-    public static void log (LEVEL level, String message) {
-        synchronized (logs) {
-            if (level == LEVEL.DEBUG && message != CUT) {
+    /**
+     * Pending data is written to disk when it reaches this size...
+     */
+    private static final int FLUSH_SIZE = 8 * 1024;
+
+    /**
+     * ...or when this time has passed since the previous flush.
+     */
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    private static volatile boolean writer_sleeping = false;
+
+    private static final Thread writer_thread = new Thread("Logger") {
+        @Override
+        public void run() {
+            long last_flush = SystemClock.uptimeMillis();
+
+            while (true) {
+                boolean flush;
+
+                synchronized (logs) {
+                    drain();
+
+                    long now = SystemClock.uptimeMillis();
+                    flush = pending() >= FLUSH_SIZE || now - last_flush >= FLUSH_INTERVAL_MS;
+                    if (flush) {
+                        flushWriters();
+                        last_flush = now;
+                    }
+                }
+
+                EventLog.drain(flush);
+
+                writer_sleeping = true;
+                if (queue.isEmpty() || !configured) {
+                    LockSupport.parkNanos(FLUSH_INTERVAL_MS * 1000000);
+                }
+                writer_sleeping = false;
+            }
+        }
+    };
+
+    static {
+        writer_thread.setDaemon(true);
+        writer_thread.setPriority(Thread.MIN_PRIORITY);
+        writer_thread.start();
+    }
+
+    /**
+     * Move all queued messages to the in-memory history and file buffers.
+     * Must be called while holding the lock on logs.
+     */
+    private static void drain() {
+        if (logs.isEmpty() || queue.isEmpty()) return;
+
+        long start = System.nanoTime();
+        Record record;
+
+        while ((record = queue.poll()) != null) {
+            String message = record.format();
+
+            if (record.level == LEVEL.DEBUG && message != CUT) {
                 if (pref_debug_logcat) {
                     Log.d("pw.thedrhax.mosmetro", message);
                 }
-                message = timestamp() + " " + message;
-            }
-            if (logs.containsKey(level)) {
-                logs.get(level).add(message);
+                message = timestamp(record.time) + " " + message;
             }
+
+            add(record.level, message);
+
+            onUpdate(record.level, message);
+        }
+
+        long dropped = queue.resetDropped();
+        if (dropped > 0) {
+            String message = "Logger | Dropped " + dropped + " messages";
+            add(LEVEL.DEBUG, message);
+            onUpdate(LEVEL.DEBUG, message);
+            DROPPED.add(dropped);
+        }
+
+        DRAIN.since(start);
+    }
+
+    private static void add(LEVEL level, String message) {
+        LogStore store = logs.get(level);
+        if (store == null) return;
+
+        try {
+            store.add(message);
+        } catch (IOException ignored) {}
+    }
+
+    private static int pending() {
+        int result = 0;
+        for (LogStore store : logs.values()) {
+            result += store.pending();
+        }
+        return result;
+    }
+
+    private static void flushWriters() {
+        for (LogStore store : logs.values()) {
+            try {
+                store.flush();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Process all queued messages and write them to disk immediately.
+     * Also exports the last DEBUG messages to log-debug.txt and current
+     * metrics to custom data of ACRA.
+     * Blocks the calling thread, so it should be used only before the
+     * log files are read by someone else (crash reports, sharing).
+     */
+    public static void flush() {
+        ACRA.getErrorReporter().putCustomData("metrics", Metrics.snapshot());
+
+        EventLog.flush();
+
+        synchronized (logs) {
+            drain();
+            flushWriters();
+
+            LogStore store = logs.get(LEVEL.DEBUG);
+            if (store == null || acra_log == null) return;
+
+            try (Writer writer = new BufferedWriter(new FileWriter(acra_log, false))) {
+                for (String line : store.tail(ACRA_LOG_LINES)) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /*
+     * Inputs
+     */
+
+    private static void enqueue (Record record) {
+        queue.offer(record);
+        MESSAGES.inc();
+
+        if (writer_sleeping) {
+            LockSupport.unpark(writer_thread);
         }
-        onUpdate(level, message);
+    }
+
+    public static void log (LEVEL level, String message) {
+        enqueue(new Record(level, message, null));
+    }
+
+    /**
+     * Log a message built by String.format(). Formatting is done by the writer
+     * thread, so all arguments must be immutable (strings, numbers etc).
+     */
+    public static void log (LEVEL level, String format, Object... args) {
+        enqueue(new Record(level, format, args));
+    }
+
+    /**
+     * Log a dump of some object (like HTTP request or response). Supplier is
+     * called by the writer thread and only if dumps are enabled by
+     * pref_debug_dump_size, so it must not depend on state that can be
+     * changed after this call.
+     */
+    public static void log (LEVEL level, Supplier dump) {
+        log(level, null, dump);
+    }
+
+    private static void log (LEVEL level, String prefix, Supplier dump) {
+        if (pref_debug_dump_size <= 0) {
+            skipped_dumps.incrementAndGet();
+            return;
+        }
+        enqueue(new Record(level, prefix, null, dump));
     }
 
     public static void log (LEVEL level, Throwable ex) {
@@ -140,19 +460,72 @@ public class Logger {
 
     public static void log (Object obj, String message) {
         if (obj instanceof Metadata) {
-            log(LEVEL.DEBUG, String.format(Locale.ENGLISH, "%s (%d) [%s] | %s",
+            log(LEVEL.DEBUG, "%s (%d) [%s] | %s",
                     obj.getClass().getSimpleName(),
                     System.identityHashCode(obj),
                     ((Metadata)obj).tag(),
                     message
-            ));
+            );
         } else {
-            log(LEVEL.DEBUG, String.format(Locale.ENGLISH, "%s (%d) | %s",
+            log(LEVEL.DEBUG, "%s (%d) | %s",
                     obj.getClass().getSimpleName(),
                     System.identityHashCode(obj),
                     message
-            ));
+            );
+        }
+    }
+
+    /**
+     * Same as log(LEVEL, Supplier), but with the prefix of log(Object, String).
+     */
+    public static void log (Object obj, Supplier dump) {
+        String prefix = obj.getClass().getSimpleName() + " (" + System.identityHashCode(obj) + ")";
+
+        if (obj instanceof Metadata) {
+            prefix += " [" + ((Metadata)obj).tag() + "]";
         }
+
+        log(LEVEL.DEBUG, prefix + " | ", dump);
+    }
+
+    /*
+     * Dumps
+     */
+
+    private static final AtomicLong skipped_dumps = new AtomicLong(0);
+    private static final AtomicLong truncated_chars = new AtomicLong(0);
+
+    /**
+     * Cut the body of a dump to the size set in pref_debug_dump_size.
+     */
+    public static String truncate(String body) {
+        int limit = pref_debug_dump_size;
+
+        if (body.length() <= limit) {
+            return body;
+        }
+
+        int skipped = body.length() - Math.max(limit, 0);
+        truncated_chars.addAndGet(skipped);
+        return body.substring(0, Math.max(limit, 0)) + "\n<!-- " + skipped + " more characters -->";
+    }
+
+    /**
+     * Report and reset the number of skipped dumps and truncated characters.
+     * Used to show how much work was avoided during one connection attempt.
+     */
+    public static String resetDumpStats() {
+        return "Logger | Skipped dumps: " + skipped_dumps.getAndSet(0) +
+                ", truncated characters: " + truncated_chars.getAndSet(0);
+    }
+
+    /**
+     * Supplier interface
+     *
+     * Used to postpone creation of expensive log messages.
+     */
+    public interface Supplier {
+        String get();
     }
 
     /*
@@ -165,8 +538,16 @@ public class Logger {
 
     public static void wipe() {
         synchronized (logs) {
-            for (LogWriter writer : logs.values()) {
-                writer.clear();
+            while (queue.poll() != null);
+
+            for (LogStore store : logs.values()) {
+                try {
+                    store.clear();
+                } catch (IOException ignored) {}
+            }
+
+            if (acra_log != null) {
+                acra_log.delete();
             }
         }
     }
@@ -174,6 +555,7 @@ public class Logger {
     public static void report(String message) {
         if (!pref_debug_testing) return;
         Logger.log(LEVEL.DEBUG, "Sending automated report | " + message);
+        flush();
         ACRA.getErrorReporter().handleSilentException(new Exception(message));
     }
 
@@ -183,127 +565,65 @@ public class Logger {
 
     public static LinkedList<String> read(LEVEL level) {
         synchronized (logs) {
-            return new LinkedList<>(logs.get(level));
-        }
-    }
+            drain();
 
-    public static String toString(LEVEL level) {
-        StringBuilder result = new StringBuilder();
-        for (String message : read(level)) {
-            result.append(message).append("\n");
+            LogStore store = logs.get(level);
+            if (store == null) return new LinkedList<>();
+
+            try {
+                return new LinkedList<>(store.read(0, store.size()));
+            } catch (IOException ex) {
+                return new LinkedList<>();
+            }
         }
-        return result.toString();
     }
 
     /**
-     * Log file writer
+     * Take a snapshot of stored messages of this LEVEL. The lock is held only
+     * while metadata is copied, messages are read later by the snapshot itself.
+     * Positions don't change when old messages are deleted (see LogStore.first()),
+     * so snapshots can be compared to find added and deleted messages.
+     * Messages still waiting in the queue are not included.
+     * @return Snapshot or null if the log is not configured
      */
-
-    public static class LogWriter extends LinkedList<String> {
-        private File file;
-        private FileWriter writer = null;
-
-        private static List<String> tail(File file, int lines) {
-            List<String> history = new LinkedList<>();
-
-            if (!file.exists()) return history;
-
-            try (FileReader is = new FileReader(file)) {
-                BufferedReader reader = new BufferedReader(is);
-
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    history.add(line);
-                }
-            } catch (IOException ignored) {}
-
-            if (history.size() > lines) {
-                int start = history.size() - lines, end = history.size();
-                history = history.subList(start, end);
-            }
-
-            return history;
-        }
-
-        public LogWriter(File dir, String filename, int truncate) {
-            file = new File(dir, filename);
-
-            List<String> history = tail(file, truncate);
-
-            clear();
-
-            if (history.size() > 0) {
-                addAll(history);
-            }
-        }
-
-        public LogWriter() {
-            file = null;
-        }
-
-        @Override
-        public boolean add(String e) {
-            try {
-                if (writer != null) {
-                    writer.write(e + '\n');
-                    writer.flush();
-                }
-            } catch (IOException ignored) {}
-            return super.add(e);
-        }
-
-        @Override
-        public boolean addAll(Collection<? extends String> c) {
-            for (String line : c) {
-                try {
-                    if (writer != null) writer.write(line + '\n');
-                } catch (IOException ignored) {}
-            }
+    @Nullable
+    public static LogStore.Snapshot snapshot(LEVEL level) {
+        synchronized (logs) {
+            LogStore store = logs.get(level);
+            if (store == null) return null;
 
             try {
-                if (writer != null) writer.flush();
-            } catch (IOException ignored) {}            
-
-            return super.addAll(c);
-        }
-
-        @Override
-        public void clear() {
-            if (writer != null) {
-                try {
-                    writer.close();
-                } catch (IOException ignored) {}
-                writer = null;
-            }
-
-            if (file != null) {
-                try {
-                    writer = new FileWriter(file, false);
-                } catch (IOException ignored) {}
+                return store.snapshot();
+            } catch (IOException ex) {
+                return null;
             }
-
-            super.clear();
         }
+    }
 
-        public void close() {
-            try {
-                if (writer != null) {
-                    writer.close();
-                    writer = null;
-                }
-            } catch (IOException ignored) {}
+    public static String toString(LEVEL level) {
+        StringBuilder result = new StringBuilder();
+        for (String message : read(level)) {
+            result.append(message).append("\n");
         }
+        return result.toString();
     }
 
     /**
      * Log sharing routines
      */
 
+    private static final int EVENT_SESSIONS = 5;
+
     public static Uri writeToFile(Context context) throws IOException {
         File log_file = new File(context.getFilesDir(), "pw.thedrhax.mosmetro.txt");
 
         FileWriter writer = new FileWriter(log_file);
         writer.write(toString(Logger.LEVEL.DEBUG));
+
+        // Latency breakdown of the last connection attempts
+        writer.write(CUT + "\n");
+        writer.write(EventLog.export(EVENT_SESSIONS) + "\n");
+
         writer.flush(); writer.close();
 
         return FileProvider.getUriForFile(context, "pw.thedrhax.mosmetro.provider", log_file);
@@ -368,7 +688,7 @@ public class Logger {
         }
 
         /**
-         * This method is being called from another thread
+         * This method is being called from the writer thread
          * @param level One of values stored in LEVEL enum
          * @param message Text of the message being forwarded
          */
@@ -395,7 +715,7 @@ public class Logger {
     /**
      * Map of registered Callback objects
      */
-    private static Map<Object,Callback> callbacks = new HashMap<>();
+    private static final Map<Object,Callback> callbacks = new ConcurrentHashMap<>();
 
     /**
      * Register the Callback object in the Logger
@@ -0,0 +1,310 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.util;
+
+import org.json.simple.JSONObject;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process registry of counters, gauges and latency histograms.
+ *
+ * Metrics are created once and stored in static fields of instrumented
+ * classes, so recording a value is just a few atomic operations without
+ * allocations or locks:
+ *
+ *   private static final Metrics.Histogram LATENCY = Metrics.histogram("client.execute");
+ *   ...
+ *   long start = System.nanoTime();
+ *   ...
+ *   LATENCY.since(start);
+ *
+ * All values live only in memory. snapshot() is shown in DebugActivity and
+ * attached to crash reports by Logger.flush().
+ */
+public final class Metrics {
+    private static final Map<String,Metric> registry = new ConcurrentHashMap<>();
+
+    private Metrics() {}
+
+    private interface Metric {
+        void reset();
+        String format();
+        Object toJSON();
+    }
+
+    public static Counter counter(String name) {
+        Metric metric = registry.get(name);
+        if (metric != null) return (Counter) metric;
+
+        synchronized (registry) {
+            metric = registry.get(name);
+            if (metric == null) registry.put(name, metric = new Counter());
+            return (Counter) metric;
+        }
+    }
+
+    public static Gauge gauge(String name) {
+        Metric metric = registry.get(name);
+        if (metric != null) return (Gauge) metric;
+
+        synchronized (registry) {
+            metric = registry.get(name);
+            if (metric == null) registry.put(name, metric = new Gauge());
+            return (Gauge) metric;
+        }
+    }
+
+    public static Histogram histogram(String name) {
+        Metric metric = registry.get(name);
+        if (metric != null) return (Histogram) metric;
+
+        synchronized (registry) {
+            metric = registry.get(name);
+            if (metric == null) registry.put(name, metric = new Histogram());
+            return (Histogram) metric;
+        }
+    }
+
+    /**
+     * Number of events since the start of the process.
+     */
+    public static class Counter implements Metric {
+        private final AtomicLong value = new AtomicLong(0);
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        @Override
+        public void reset() {
+            value.set(0);
+        }
+
+        @Override
+        public String format() {
+            return "" + value.get();
+        }
+
+        @Override
+        public Object toJSON() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Last reported value of something.
+     */
+    public static class Gauge implements Metric {
+        private final AtomicLong value = new AtomicLong(0);
+
+        public void set(long value) {
+            this.value.set(value);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        @Override
+        public void reset() {
+            value.set(0);
+        }
+
+        @Override
+        public String format() {
+            return "" + value.get();
+        }
+
+        @Override
+        public Object toJSON() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Distribution of durations in microseconds.
+     *
+     * Values are counted in log-linear buckets like in HdrHistogram: every
+     * power of two is split into 16 buckets, so percentiles are accurate to
+     * about 6% for any value from 1 µs to more than 12 days.
+     */
+    public static class Histogram implements Metric {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int MAX_BITS = 40;
+        private static final int BUCKETS = (MAX_BITS - SUB_BITS + 2) * SUB_COUNT;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong(0);
+        private final AtomicLong sum = new AtomicLong(0);
+        private final AtomicLong max = new AtomicLong(0);
+
+        private static int index(long value) {
+            if (value < SUB_COUNT) return (int) Math.max(value, 0);
+
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            int index = (shift + 1) * SUB_COUNT + (int) ((value >>> shift) & (SUB_COUNT - 1));
+            return Math.min(index, BUCKETS - 1);
+        }
+
+        /**
+         * @return Lowest value counted in this bucket
+         */
+        private static long value(int index) {
+            if (index < SUB_COUNT) return index;
+
+            int shift = index / SUB_COUNT - 1;
+            return (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+        }
+
+        /**
+         * @param value Duration in microseconds
+         */
+        public void record(long value) {
+            counts.incrementAndGet(index(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+
+            long current;
+            while (value > (current = max.get())) {
+                if (max.compareAndSet(current, value)) break;
+            }
+        }
+
+        /**
+         * Record time passed since the moment returned by System.nanoTime().
+         */
+        public void since(long start) {
+            record((System.nanoTime() - start) / 1000);
+        }
+
+        public long count() {
+            return count.get();
+        }
+
+        /**
+         * @param percentile Any number between 0 and 100
+         * @return Upper bound of values in this percentile in microseconds
+         */
+        public long percentile(double percentile) {
+            long total = count.get();
+            if (total == 0) return 0;
+
+            long target = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= Math.max(target, 1)) {
+                    return Math.min(i < BUCKETS - 1 ? value(i + 1) - 1 : Long.MAX_VALUE, max.get());
+                }
+            }
+
+            return max.get();
+        }
+
+        @Override
+        public void reset() {
+            for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+            count.set(0); sum.set(0); max.set(0);
+        }
+
+        private static String ms(long us) {
+            return String.format(Locale.ENGLISH, "%.1f", us / 1000.0);
+        }
+
+        @Override
+        public String format() {
+            long total = count.get();
+            if (total == 0) return "n=0";
+
+            return "n=" + total +
+                    " avg=" + ms(sum.get() / total) +
+                    " p50=" + ms(percentile(50)) +
+                    " p95=" + ms(percentile(95)) +
+                    " p99=" + ms(percentile(99)) +
+                    " max=" + ms(max.get()) + " ms";
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object toJSON() {
+            JSONObject result = new JSONObject();
+            long total = count.get();
+
+            result.put("count", total);
+            if (total > 0) {
+                result.put("avg_us", sum.get() / total);
+                result.put("p50_us", percentile(50));
+                result.put("p95_us", percentile(95));
+                result.put("p99_us", percentile(99));
+                result.put("max_us", max.get());
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * @return Human-readable values of all metrics sorted by name
+     */
+    public static String snapshot() {
+        StringBuilder result = new StringBuilder();
+
+        for (Map.Entry<String,Metric> entry : new TreeMap<>(registry).entrySet()) {
+            result.append(entry.getKey())
+                    .append(": ")
+                    .append(entry.getValue().format())
+                    .append('\n');
+        }
+
+        return result.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static JSONObject toJSON() {
+        JSONObject result = new JSONObject();
+
+        for (Map.Entry<String,Metric> entry : registry.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toJSON());
+        }
+
+        return result;
+    }
+
+    public static void reset() {
+        for (Metric metric : registry.values()) {
+            metric.reset();
+        }
+    }
+}
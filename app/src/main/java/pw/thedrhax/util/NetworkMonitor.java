@@ -0,0 +1,337 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.util;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.os.SystemClock;
+
+import java.net.Inet4Address;
+
+/**
+ * Event-driven state of the Wi-Fi network based on NetworkCallback (API 21+).
+ *
+ * Signal strength and access point changes are received from WifiManager
+ * broadcasts on all API levels.
+ *
+ * Waiting methods block the calling thread without periodic wakeups and
+ * return as soon as the network state or the running Listener changes.
+ * On older devices awaitAddress() falls back to polling WifiManager.
+ */
+public class NetworkMonitor {
+    public enum EVENT {
+        TIMEOUT,        // nothing happened during the timeout
+        INTERRUPTED,    // running Listener is set to false
+        LOST,           // Wi-Fi network is disconnected
+        PORTAL,         // Android detected captive portal or lost internet access
+        SIGNAL,         // signal strength dropped below RSSI_WEAK
+        ROAMING         // connected to another access point (BSSID)
+    }
+
+    private static final int RSSI_WEAK = -80; // dBm
+
+    private final Object lock = new Object();
+    private final Context context;
+    private final WifiUtils wifi;
+    private final ConnectivityManager cm;
+
+    private Object callback = null; // NetworkCallback is not available before API 21
+    private BroadcastReceiver receiver = null;
+
+    private Network network = null;
+    private boolean has_address = false;
+    private boolean captive = false;
+    private boolean validated = false;
+    private int rssi;
+    private String bssid;
+    private EVENT pending = null;
+
+    public NetworkMonitor(Context context) {
+        this.context = context;
+        this.wifi = new WifiUtils(context);
+        this.cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= 21;
+    }
+
+    public NetworkMonitor start() {
+        if (receiver == null) {
+            WifiInfo info = wifi.getWifiInfo(null);
+            rssi = info.getRssi();
+            bssid = info.getBSSID();
+
+            receiver = new Receiver();
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(WifiManager.RSSI_CHANGED_ACTION);
+            filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+            context.registerReceiver(receiver, filter);
+        }
+
+        if (!isSupported() || callback != null) return this;
+
+        ConnectivityManager.NetworkCallback callback = new Callback();
+
+        try {
+            cm.registerNetworkCallback(
+                    new NetworkRequest.Builder()
+                            .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                            .build(),
+                    callback
+            );
+            this.callback = callback;
+        } catch (RuntimeException ex) { // SecurityException on some Android 6.0 devices
+            Logger.log(this, "Unable to register NetworkCallback: " + ex.toString());
+        }
+
+        return this;
+    }
+
+    public void stop() {
+        if (receiver != null) {
+            try {
+                context.unregisterReceiver(receiver);
+            } catch (IllegalArgumentException ignored) {}
+            receiver = null;
+        }
+
+        if (callback == null) return;
+
+        try {
+            cm.unregisterNetworkCallback((ConnectivityManager.NetworkCallback) callback);
+        } catch (IllegalArgumentException ignored) {}
+
+        callback = null;
+    }
+
+    @TargetApi(21)
+    private class Callback extends ConnectivityManager.NetworkCallback {
+        @Override
+        public void onAvailable(Network network) {
+            LinkProperties props = cm.getLinkProperties(network);
+
+            synchronized (lock) {
+                NetworkMonitor.this.network = network;
+                has_address = props != null && hasAddress(props);
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onLinkPropertiesChanged(Network network, LinkProperties props) {
+            synchronized (lock) {
+                if (!network.equals(NetworkMonitor.this.network)) return;
+                has_address = hasAddress(props);
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities caps) {
+            if (Build.VERSION.SDK_INT < 23) return;
+
+            boolean new_captive = caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_CAPTIVE_PORTAL);
+            boolean new_validated = caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+
+            synchronized (lock) {
+                if (!network.equals(NetworkMonitor.this.network)) return;
+
+                if ((new_captive && !captive) || (validated && !new_validated)) {
+                    signal(EVENT.PORTAL, "Captive portal: " + new_captive +
+                            " | Validated: " + new_validated);
+                }
+
+                captive = new_captive;
+                validated = new_validated;
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            synchronized (lock) {
+                if (!network.equals(NetworkMonitor.this.network)) return;
+
+                NetworkMonitor.this.network = null;
+                has_address = false;
+                captive = false;
+                validated = false;
+                signal(EVENT.LOST, "Network lost");
+            }
+        }
+    }
+
+    private class Receiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (WifiManager.RSSI_CHANGED_ACTION.equals(intent.getAction())) {
+                int new_rssi = intent.getIntExtra(WifiManager.EXTRA_NEW_RSSI, rssi);
+
+                synchronized (lock) {
+                    if (rssi > RSSI_WEAK && new_rssi <= RSSI_WEAK) {
+                        signal(EVENT.SIGNAL, "Weak signal: " + new_rssi + " dBm");
+                    }
+                    rssi = new_rssi;
+                }
+            } else if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(intent.getAction())) {
+                String new_bssid = intent.getStringExtra(WifiManager.EXTRA_BSSID);
+                if (new_bssid == null) return;
+
+                synchronized (lock) {
+                    if (bssid != null && !bssid.equalsIgnoreCase(new_bssid)) {
+                        signal(EVENT.ROAMING, "Roaming: " + bssid + " -> " + new_bssid);
+                    }
+                    bssid = new_bssid;
+                }
+            }
+        }
+    }
+
+    /**
+     * Store the event for await(). LOST is never replaced by other events.
+     * Must be called with the lock held.
+     */
+    private void signal(EVENT event, String message) {
+        Logger.log(this, message);
+
+        if (pending != EVENT.LOST) {
+            pending = event;
+        }
+
+        lock.notifyAll();
+    }
+
+    @TargetApi(21)
+    private static boolean hasAddress(LinkProperties props) {
+        for (LinkAddress address : props.getLinkAddresses()) {
+            if (address.getAddress() instanceof Inet4Address) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forget events received before this moment.
+     */
+    public void reset() {
+        synchronized (lock) {
+            pending = null;
+        }
+    }
+
+    /**
+     * Wake up waiting threads when the running Listener changes.
+     */
+    private Listener<Boolean> watch(Listener<Boolean> running) {
+        Listener<Boolean> watcher = new Listener<Boolean>(true) {
+            @Override
+            public void onChange(Boolean new_value) {
+                synchronized (lock) {
+                    lock.notifyAll();
+                }
+            }
+        };
+        watcher.subscribe(running);
+        return watcher;
+    }
+
+    /**
+     * Wait until Wi-Fi network gets an IPv4 address.
+     *
+     * @param timeout Maximum time to wait in ms, 0 means no limit.
+     * @return true if address is available, false on timeout or interruption.
+     */
+    public boolean awaitAddress(int timeout, Listener<Boolean> running) {
+        if (callback == null) {
+            long start = SystemClock.elapsedRealtime();
+
+            while (wifi.getIP() == 0) {
+                if (timeout != 0 && SystemClock.elapsedRealtime() - start >= timeout) return false;
+                if (!running.sleep(1000)) return false;
+            }
+
+            return true;
+        }
+
+        long deadline = SystemClock.elapsedRealtime() + timeout;
+        Listener<Boolean> watcher = watch(running);
+
+        try {
+            synchronized (lock) {
+                // WifiManager may still report the old address right after the loss
+                while (!has_address) {
+                    if (!running.get()) return false;
+
+                    long left = deadline - SystemClock.elapsedRealtime();
+                    if (timeout != 0 && left <= 0) return false;
+
+                    lock.wait(timeout != 0 ? left : 0);
+                }
+
+                return true;
+            }
+        } catch (InterruptedException ex) {
+            return false;
+        } finally {
+            watcher.unsubscribe();
+        }
+    }
+
+    /**
+     * Wait for the next event.
+     *
+     * @param timeout Maximum time to wait in ms, 0 means no limit.
+     */
+    public EVENT await(int timeout, Listener<Boolean> running) {
+        long deadline = SystemClock.elapsedRealtime() + timeout;
+        Listener<Boolean> watcher = watch(running);
+
+        try {
+            synchronized (lock) {
+                while (pending == null) {
+                    if (!running.get()) return EVENT.INTERRUPTED;
+
+                    long left = deadline - SystemClock.elapsedRealtime();
+                    if (timeout != 0 && left <= 0) return EVENT.TIMEOUT;
+
+                    lock.wait(timeout != 0 ? left : 0);
+                }
+
+                EVENT result = pending;
+                pending = null;
+                return result;
+            }
+        } catch (InterruptedException ex) {
+            return EVENT.INTERRUPTED;
+        } finally {
+            watcher.unsubscribe();
+        }
+    }
+}
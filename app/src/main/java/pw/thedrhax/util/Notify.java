@@ -25,7 +25,6 @@ import android.app.Service;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Build;
-import android.preference.PreferenceManager;
 import androidx.core.app.NotificationCompat;
 
 public class Notify extends NotificationCompat.Builder {
@@ -42,9 +41,9 @@ public class Notify extends NotificationCompat.Builder {
         super(context);
         this.context = context;
         this.nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-        this.settings = PreferenceManager.getDefaultSharedPreferences(context);
+        this.settings = Preferences.shared(context);
 
-        priority(Util.getIntPreference(context, "pref_notify_priority", 0));
+        priority(Preferences.get(context).notify_priority);
     }
 
     public Notify title(String title) {
@@ -77,7 +76,7 @@ public class Notify extends NotificationCompat.Builder {
 
     public Notify icon(int colored, int white) {
         boolean pref_colored = (Build.VERSION.SDK_INT <= 20) ^
-                settings.getBoolean("pref_notify_alternative", false);
+                Preferences.get(context).notify_alternative;
 
         setSmallIcon(pref_colored ? colored : white); return this;
     }
@@ -0,0 +1,172 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+/**
+ * Typed snapshot of the preferences used by the connection logic.
+ *
+ * The snapshot is built on the first call of get() and reused until any
+ * preference is changed, so reading a value in a loop costs a field access
+ * instead of a map lookup and parsing:
+ *
+ *   int delay = Preferences.get(context).retry_delay;
+ *
+ * Numbers entered in EditTextPreferences used to be stored as strings. They
+ * are converted to ints once by migrate() and edited by IntEditTextPreference.
+ */
+public final class Preferences {
+    private static final String PREF_VERSION = "pref_preferences_version";
+    private static final int VERSION = 1;
+
+    /**
+     * Preferences that were stored as strings before VERSION 1
+     */
+    private static final String[] INT_KEYS = {
+            "pref_retry_count", "pref_retry_delay", "pref_ip_wait",
+            "pref_internet_check_interval", "pref_timeout",
+            "pref_random_delay_min", "pref_random_delay_max",
+            "pref_notify_priority", "pref_debug_dump_size",
+            "pref_backend_freshness"
+    };
+
+    private static SharedPreferences settings = null;
+    private static volatile Preferences snapshot = null;
+
+    // SharedPreferences keeps only weak references to listeners
+    private static final SharedPreferences.OnSharedPreferenceChangeListener listener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences settings, String key) {
+                    synchronized (Preferences.class) {
+                        snapshot = null;
+                    }
+                }
+            };
+
+    /**
+     * @return Default SharedPreferences with migrated values
+     */
+    public static synchronized SharedPreferences shared(Context context) {
+        if (settings == null) {
+            settings = PreferenceManager.getDefaultSharedPreferences(context);
+            migrate(settings);
+            settings.registerOnSharedPreferenceChangeListener(listener);
+        }
+        return settings;
+    }
+
+    public static Preferences get(Context context) {
+        Preferences result = snapshot;
+        if (result != null) return result;
+
+        SharedPreferences settings = shared(context);
+
+        synchronized (Preferences.class) {
+            if (snapshot == null) snapshot = new Preferences(settings);
+            return snapshot;
+        }
+    }
+
+    /**
+     * Read an integer stored either as int or as string (not migrated yet).
+     */
+    public static int getInt(SharedPreferences settings, String name, int def_value) {
+        try {
+            return settings.getInt(name, def_value);
+        } catch (ClassCastException ignored) {}
+
+        try {
+            return Integer.parseInt(settings.getString(name, "" + def_value));
+        } catch (NumberFormatException | ClassCastException ignored) {}
+
+        return def_value;
+    }
+
+    private static void migrate(SharedPreferences settings) {
+        if (settings.getInt(PREF_VERSION, 0) >= VERSION) return;
+
+        SharedPreferences.Editor editor = settings.edit();
+
+        for (String key : INT_KEYS) {
+            if (!settings.contains(key)) continue;
+
+            try {
+                editor.putInt(key, Integer.parseInt(settings.getString(key, "")));
+            } catch (NumberFormatException ex) {
+                editor.remove(key); // fall back to the default value
+            } catch (ClassCastException ignored) {} // already an int
+        }
+
+        editor.putInt(PREF_VERSION, VERSION).apply();
+    }
+
+    /*
+     * Values
+     */
+
+    public final int retry_count;
+    public final int retry_delay;
+    public final int ip_wait;
+    public final int timeout;
+    public final int random_delay_min;
+    public final int random_delay_max;
+    public final int notify_priority;
+    public final int debug_dump_size;
+    public final int backend_freshness;
+    public final int receiver_debounce;
+    public final int login_budget;
+
+    public final boolean internet_check;
+    public final boolean internet_midsession;
+    public final int internet_check_interval;
+
+    public final boolean autoconnect;
+    public final boolean delay_always;
+    public final boolean notify_alternative;
+    public final boolean debug_record;
+    public final String user_agent;
+
+    private Preferences(SharedPreferences settings) {
+        retry_count = getInt(settings, "pref_retry_count", 3);
+        retry_delay = getInt(settings, "pref_retry_delay", 5);
+        ip_wait = getInt(settings, "pref_ip_wait", 0);
+        timeout = getInt(settings, "pref_timeout", 5);
+        random_delay_min = getInt(settings, "pref_random_delay_min", 5);
+        random_delay_max = getInt(settings, "pref_random_delay_max", 10);
+        notify_priority = getInt(settings, "pref_notify_priority", 0);
+        debug_dump_size = getInt(settings, "pref_debug_dump_size", 2000);
+        backend_freshness = getInt(settings, "pref_backend_freshness", 6);
+        receiver_debounce = getInt(settings, "pref_receiver_debounce", 1000);
+        login_budget = getInt(settings, "pref_login_budget", 300);
+
+        internet_check = settings.getBoolean("pref_internet_check", true);
+        internet_midsession = settings.getBoolean("pref_internet_midsession", false);
+        internet_check_interval = getInt(settings, "pref_internet_check_interval", 10);
+
+        autoconnect = settings.getBoolean("pref_autoconnect", true);
+        delay_always = settings.getBoolean("pref_delay_always", false);
+        notify_alternative = settings.getBoolean("pref_notify_alternative", false);
+        debug_record = settings.getBoolean("pref_debug_record", false);
+        user_agent = settings.getString("pref_user_agent", "unset");
+    }
+}
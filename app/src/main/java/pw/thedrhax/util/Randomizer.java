@@ -20,8 +20,6 @@ package pw.thedrhax.util;
 
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 
 import java.security.SecureRandom;
 
@@ -38,8 +36,9 @@ public class Randomizer {
     public Randomizer(Context context) {
         this.context = context;
 
-        delay_min = Util.getIntPreference(context, "pref_random_delay_min", 5);
-        delay_max = Util.getIntPreference(context, "pref_random_delay_max", 10);
+        Preferences prefs = Preferences.get(context);
+        delay_min = prefs.random_delay_min;
+        delay_max = prefs.random_delay_max;
         if (delay_min > delay_max) { // User tries to break everything again...
             int temp = delay_max;
             delay_max = delay_min;
@@ -54,6 +53,13 @@ public class Randomizer {
         return running.sleep(delay);
     }
 
+    /**
+     * @return Random value between 0.5 and 1.5 of the given one
+     */
+    public int jitter(int value) {
+        return value / 2 + random.nextInt(Math.max(value, 1));
+    }
+
     // grep download.php access.log | grep -Eo '(Mozilla|Opera)[^"]*' | \
     //     sed 's/(.*) \(Gecko\|AppleWebKit\)/(DEVICE) \1/g' | \
     //     sort -u | grep DEVICE | sed 's/^.*$/"\0",/'
@@ -117,14 +123,15 @@ public class Randomizer {
     }
 
     public String cached_useragent() {
-        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+        String cached = Preferences.get(context).user_agent;
+        if (!"unset".equals(cached)) return cached;
 
-        if ("unset".equals(settings.getString("pref_user_agent", "unset")))
-            settings.edit()
-                    .putString("pref_user_agent", useragent())
-                    .apply();
+        String result = useragent();
+        Preferences.shared(context).edit()
+                .putString("pref_user_agent", result)
+                .apply();
 
-        return settings.getString("pref_user_agent", useragent());
+        return result;
     }
 
     public String string(String chars, int length) {
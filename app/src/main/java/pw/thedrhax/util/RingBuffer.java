@@ -0,0 +1,126 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer single-consumer queue.
+ *
+ * Every slot has a sequence number which tells producers and the consumer
+ * whether this slot is free or contains a published item, so producers only
+ * compete for the tail counter. Items are dropped (and counted) when the queue
+ * is full, producers never wait for the consumer.
+ *
+ * Based on the bounded MPMC queue by Dmitry Vyukov:
+ * http://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue
+ *
+ * @param <T> type of the stored items
+ */
+public class RingBuffer<T> {
+    private final int mask;
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequence;
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    /**
+     * Position of the consumer. poll() must never be called by
+     * two threads at the same time, so it doesn't need to be atomic.
+     */
+    private long head = 0;
+
+    /**
+     * @param capacity Maximum number of items. Must be a power of two.
+     */
+    public RingBuffer(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+
+        mask = capacity - 1;
+        items = new AtomicReferenceArray<>(capacity);
+        sequence = new AtomicLongArray(capacity);
+
+        for (int i = 0; i < capacity; i++) {
+            sequence.set(i, i);
+        }
+    }
+
+    /**
+     * Add item to the queue. Can be called from any thread.
+     * @return true on success, false if the queue is full
+     */
+    public boolean offer(T item) {
+        long pos = tail.get();
+        int index;
+
+        while (true) {
+            index = (int) (pos & mask);
+            long diff = sequence.get(index) - pos;
+
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) break;
+                pos = tail.get();
+            } else if (diff < 0) {
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+
+        items.set(index, item);
+        sequence.set(index, pos + 1); // publish
+        return true;
+    }
+
+    /**
+     * Remove the oldest item from the queue. Must be called by a single
+     * thread at a time.
+     * @return the oldest item or null if the queue is empty
+     */
+    public T poll() {
+        int index = (int) (head & mask);
+
+        if (sequence.get(index) != head + 1) {
+            return null;
+        }
+
+        T item = items.get(index);
+        items.set(index, null);
+        sequence.set(index, head + mask + 1); // release the slot
+        head++;
+
+        return item;
+    }
+
+    public boolean isEmpty() {
+        return sequence.get((int) (head & mask)) != head + 1;
+    }
+
+    /**
+     * @return Number of items dropped since the previous call
+     */
+    public long resetDropped() {
+        return dropped.getAndSet(0);
+    }
+}
@@ -19,8 +19,6 @@
 package pw.thedrhax.util;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -40,18 +38,11 @@ public final class Util {
         return reader.getLineNumber();
     }
 
-    // TODO: Store Integers instead of Strings in SharedPreferences
+    /**
+     * @see Preferences#get(Context) for frequently used preferences
+     */
     public static int getIntPreference (Context context, String name, int def_value) {
-        final SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
-        try {
-            return Integer.parseInt(settings.getString(name, Integer.valueOf(def_value).toString()));
-        } catch (NumberFormatException|ClassCastException ignored) {}
-
-        try {
-            return settings.getInt(name, def_value);
-        } catch (ClassCastException ignored) {}
-
-        return def_value;
+        return Preferences.getInt(Preferences.shared(context), name, def_value);
     }
 
     // Source: https://stackoverflow.com/a/34836992
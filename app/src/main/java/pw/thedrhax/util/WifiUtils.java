@@ -33,7 +33,6 @@ import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Build;
-import android.preference.PreferenceManager;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
@@ -46,7 +45,7 @@ public class WifiUtils {
     private final WifiManager wm;
 
     public WifiUtils(@NonNull Context context) {
-        this.settings = PreferenceManager.getDefaultSharedPreferences(context);
+        this.settings = Preferences.shared(context);
         this.cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
         this.wm = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
     }
@@ -86,6 +85,12 @@ public class WifiUtils {
         return getSSID(null);
     }
 
+    // Get BSSID of the current access point (hidden without location permission on Android 8+)
+    @Nullable
+    public String getBSSID() {
+        return wm.getConnectionInfo().getBSSID();
+    }
+
     // Get current IP from WifiManager
     public int getIP() {
         return wm.getConnectionInfo().getIpAddress();
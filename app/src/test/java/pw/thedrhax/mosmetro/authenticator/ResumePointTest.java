@@ -0,0 +1,151 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pw.thedrhax.mosmetro.authenticator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResumePointTest {
+    private ResumePoint resume;
+    private List<Task> tasks;
+    private Task setup, page, form, check;
+
+    private static class TestTask implements Task {
+        private final String name;
+        boolean success = true;
+
+        TestTask(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean run(HashMap<String, Object> vars) {
+            vars.put(name, true);
+            return success;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        resume = new ResumePoint();
+        setup = new TestTask("setup");
+        page = new TestTask("page");
+        form = new TestTask("form");
+        check = new TestTask("check");
+        tasks = Arrays.asList(setup, page, form, check);
+        resume.markSkippable(page);
+    }
+
+    /**
+     * Simplified loop of Provider.start()
+     * @return Names of Tasks that were run
+     */
+    private List<Task> start(HashMap<String,Object> vars) {
+        List<Task> result = new LinkedList<>();
+        boolean resumed = resume.begin(tasks, vars);
+
+        for (Task task : tasks) {
+            if (resumed && resume.skip(task)) continue;
+
+            HashMap<String,Object> before = new HashMap<>(vars);
+            result.add(task);
+
+            if (!task.run(vars)) {
+                resume.fail(tasks, task, before);
+                break;
+            }
+        }
+
+        return result;
+    }
+
+    @Test
+    public void onlyMarkedTasksAreSkipped() {
+        ((TestTask) form).success = false;
+        assertEquals(Arrays.asList(setup, page, form), start(new HashMap<String, Object>()));
+
+        ((TestTask) form).success = true;
+        assertEquals(Arrays.asList(setup, form, check), start(new HashMap<String, Object>()));
+    }
+
+    @Test
+    public void varsAreRestoredFromBeforeTheFailure() {
+        ((TestTask) form).success = false;
+        start(new HashMap<String, Object>());
+
+        HashMap<String,Object> vars = new HashMap<>();
+        assertTrue(resume.begin(tasks, vars));
+        assertTrue(vars.containsKey("page"));
+        assertFalse(vars.containsKey("form"));
+    }
+
+    @Test
+    public void notResumedTwiceFromTheSameTask() {
+        ((TestTask) form).success = false;
+        start(new HashMap<String, Object>());
+        start(new HashMap<String, Object>());
+
+        assertEquals(Arrays.asList(setup, page, form), start(new HashMap<String, Object>()));
+    }
+
+    @Test
+    public void notResumedWithoutSkippableTasks() {
+        ((TestTask) page).success = false;
+        start(new HashMap<String, Object>());
+
+        assertFalse(resume.begin(tasks, new HashMap<String, Object>()));
+    }
+
+    @Test
+    public void markedTasksAfterTheFailedOneAreNotSkipped() {
+        Task late = new TestTask("late");
+        resume.markSkippable(late);
+        tasks = Arrays.asList(setup, page, form, late, check);
+
+        ((TestTask) form).success = false;
+        start(new HashMap<String, Object>());
+
+        ((TestTask) form).success = true;
+        assertEquals(Arrays.asList(setup, form, late, check), start(new HashMap<String, Object>()));
+    }
+
+    @Test
+    public void notResumedIfTaskIsGone() {
+        ((TestTask) form).success = false;
+        start(new HashMap<String, Object>());
+
+        tasks = Arrays.asList(setup, page, check);
+        assertFalse(resume.begin(tasks, new HashMap<String, Object>()));
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pw.thedrhax.mosmetro.authenticator;
+
+import org.junit.Test;
+
+import pw.thedrhax.util.Deadline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TaskBudgetTest {
+    @Test
+    public void requestsIncludeRetriesAndDelays() {
+        assertEquals(20000, TaskBudget.requests(5, 0));
+        assertEquals(20000, TaskBudget.requests(1, 0)); // timeout is at least 5 s
+        assertEquals(35000, TaskBudget.requests(10, 0));
+        assertEquals(29000, TaskBudget.requests(5, 3));
+        assertEquals(35000, TaskBudget.requests(0, 0)); // default timeout of OkHttp
+    }
+
+    @Test
+    public void waitingIsLimitedByTimeout() {
+        assertEquals(20000, TaskBudget.waiting(20000, 1000));
+        assertEquals(60000 + 20000 / 3, TaskBudget.waiting(20000, 60000));
+        assertEquals(0, TaskBudget.waiting(20000, 0));
+    }
+
+    @Test
+    public void taskDeadlineIsWithinProviderDeadline() {
+        Deadline provider = Deadline.in(5000);
+
+        assertSame(provider, TaskBudget.deadline(provider, 20000));
+        assertTrue(TaskBudget.deadline(provider, 1000).remaining() <= 1000);
+    }
+
+    @Test
+    public void unlimitedTaskGetsProviderDeadline() {
+        Deadline provider = Deadline.in(5000);
+
+        assertSame(provider, TaskBudget.deadline(provider, 0));
+        assertSame(Deadline.NONE, TaskBudget.deadline(Deadline.NONE, 0));
+    }
+
+    @Test
+    public void nestedProviderDoesNotOutliveOuterTask() {
+        Deadline attempt = Deadline.in(60000);
+        Deadline outer = TaskBudget.deadline(attempt, 0); // unlimited Task
+        Deadline inner = TaskBudget.deadline(outer, 20000); // Task of the nested Provider
+
+        assertTrue(inner.remaining() <= outer.remaining());
+        assertSame(outer, TaskBudget.deadline(outer, 120000));
+    }
+}
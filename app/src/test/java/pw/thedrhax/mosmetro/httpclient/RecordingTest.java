@@ -0,0 +1,62 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.httpclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RecordingTest {
+    @Test
+    public void redactsPrivateHeaders() {
+        Headers headers = new Headers()
+                .setHeader("cookie", "session=secret")
+                .setHeader("Set-Cookie", "session=secret; Path=/")
+                .setHeader("Authorization", "Bearer secret")
+                .setHeader(Headers.USER_AGENT, "Mozilla/5.0");
+
+        Headers result = Recording.redact(headers);
+
+        assertEquals(Recording.REDACTED, result.getFirst("Cookie"));
+        assertEquals(Recording.REDACTED, result.getFirst("Set-Cookie"));
+        assertEquals(Recording.REDACTED, result.getFirst("Authorization"));
+        assertEquals("Mozilla/5.0", result.getFirst(Headers.USER_AGENT));
+
+        // Original headers are not changed
+        assertEquals("session=secret", headers.getFirst("Cookie"));
+    }
+
+    @Test
+    public void redactsFormValues() {
+        assertEquals(
+                "login=" + Recording.REDACTED + "&password=" + Recording.REDACTED + "&remember",
+                Recording.redact("login=user&password=secret&remember",
+                        "application/x-www-form-urlencoded")
+        );
+        assertEquals(Recording.REDACTED,
+                Recording.redact("--boundary\r\n...", "multipart/form-data"));
+    }
+
+    @Test
+    public void keepsOtherBodies() {
+        assertEquals("{\"mode\":0}", Recording.redact("{\"mode\":0}", "application/json"));
+        assertNull(Recording.redact(null, "application/x-www-form-urlencoded"));
+    }
+}
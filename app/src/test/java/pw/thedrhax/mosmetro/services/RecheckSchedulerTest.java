@@ -0,0 +1,114 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.services;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecheckSchedulerTest {
+    private static long time;
+    private static long tx;
+    private static long rx;
+
+    private static class TestScheduler extends RecheckScheduler {
+        TestScheduler(int base) {
+            super(base);
+        }
+
+        @Override
+        long now() {
+            return time;
+        }
+
+        @Override
+        long[] traffic() {
+            return new long[] {tx, rx};
+        }
+    }
+
+    @Before
+    public void setUp() {
+        time = 1000000; tx = 0; rx = 0;
+    }
+
+    @Test
+    public void intervalDoublesAfterSuccess() {
+        RecheckScheduler schedule = new TestScheduler(10000);
+
+        assertEquals(20000, schedule.success());
+        assertEquals(40000, schedule.success());
+    }
+
+    @Test
+    public void intervalIsLimited() {
+        RecheckScheduler schedule = new TestScheduler(10000);
+
+        for (int i = 0; i < 20; i++) schedule.success();
+
+        assertEquals(10 * 60 * 1000, schedule.success());
+    }
+
+    @Test
+    public void intervalIsNotIncreasedAfterReset() {
+        RecheckScheduler schedule = new TestScheduler(10000);
+        schedule.success();
+        schedule.success();
+
+        schedule.reset();
+        assertEquals(10000, schedule.success());
+        assertEquals(20000, schedule.success());
+    }
+
+    @Test
+    public void checkIsDueAfterInterval() {
+        RecheckScheduler schedule = new TestScheduler(10000);
+        assertFalse(schedule.isDue());
+
+        time += 10000;
+        assertTrue(schedule.isDue());
+
+        schedule.success();
+        assertFalse(schedule.isDue());
+        assertEquals(10000, schedule.timeout()); // sampled once per base interval
+    }
+
+    @Test
+    public void disabledWithZeroInterval() {
+        RecheckScheduler schedule = new TestScheduler(0);
+
+        time += 60000;
+        assertFalse(schedule.isDue());
+        assertEquals(0, schedule.timeout());
+    }
+
+    @Test
+    public void stallIsDetected() {
+        RecheckScheduler schedule = new TestScheduler(10000);
+
+        tx += 10 * 1024;
+        assertTrue(schedule.isStalled());
+
+        tx += 10 * 1024; rx += 100;
+        assertFalse(schedule.isStalled());
+    }
+}
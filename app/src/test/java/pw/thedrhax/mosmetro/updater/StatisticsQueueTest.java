@@ -0,0 +1,59 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.updater;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class StatisticsQueueTest {
+    @Test
+    public void encodesRecordsAsGzippedJsonArray() throws IOException {
+        List<Map<String,String>> records = new LinkedList<>();
+
+        Map<String,String> record = new HashMap<>();
+        record.put("ssid", "MosMetro_Free");
+        record.put("provider", "МосМетроV2");
+        records.add(record);
+        records.add(new HashMap<String,String>());
+
+        byte[] body = StatisticsQueue.encode(records);
+
+        JSONArray result = (JSONArray) JSONValue.parse(new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(body)), "UTF-8"
+        ));
+
+        assertEquals(2, result.size());
+        assertEquals("MosMetro_Free", ((JSONObject) result.get(0)).get("ssid"));
+        assertEquals("МосМетроV2", ((JSONObject) result.get(0)).get("provider"));
+        assertEquals(0, ((JSONObject) result.get(1)).size());
+    }
+}
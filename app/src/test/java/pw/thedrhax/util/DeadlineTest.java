@@ -0,0 +1,66 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pw.thedrhax.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DeadlineTest {
+    @Test
+    public void noneIsNeverExpired() {
+        assertFalse(Deadline.NONE.isSet());
+        assertFalse(Deadline.NONE.isExpired());
+        assertEquals(Long.MAX_VALUE, Deadline.NONE.remaining());
+    }
+
+    @Test
+    public void expiresAfterTimeout() throws InterruptedException {
+        Deadline deadline = Deadline.in(20);
+        assertFalse(deadline.isExpired());
+
+        Thread.sleep(40);
+        assertTrue(deadline.isExpired());
+        assertEquals(0, deadline.remaining());
+    }
+
+    @Test
+    public void minChoosesEarliest() {
+        Deadline early = Deadline.in(1000);
+        Deadline late = Deadline.in(60000);
+
+        assertSame(early, early.min(late));
+        assertSame(early, late.min(early));
+        assertSame(early, Deadline.NONE.min(early));
+        assertSame(early, early.min(Deadline.NONE));
+    }
+
+    @Test
+    public void withinNeverExtends() {
+        Deadline outer = Deadline.in(1000);
+
+        assertSame(outer, outer.within(60000));
+        assertTrue(outer.within(10).remaining() <= 10);
+        assertTrue(Deadline.NONE.within(1000).isSet());
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventLogTest {
+    @Test
+    public void sessionsInTheSameSecondAreUnique() {
+        int first = EventLog.nextSession(1000000);
+        int second = EventLog.nextSession(1000000);
+
+        assertTrue(second > first);
+    }
+
+    @Test
+    public void sessionsAreIncreasingIfClockGoesBack() {
+        int first = EventLog.nextSession(2000000);
+        int second = EventLog.nextSession(1000000);
+
+        assertEquals(first + 1, second);
+    }
+
+    @Test
+    public void eventIsDecoded() throws IOException {
+        EventLog.Event event = new EventLog.Event(
+                EventLog.TYPE.REQUEST_END, 1234567890123L, 42, 7, 200, 150, 1024, "http://example.com/"
+        );
+
+        EventLog.Event result = EventLog.Event.decode(event.encode());
+
+        assertEquals(event.type, result.type);
+        assertEquals(event.time, result.time);
+        assertEquals(event.session, result.session);
+        assertEquals(event.id, result.id);
+        assertEquals(event.code, result.code);
+        assertEquals(event.duration, result.duration);
+        assertEquals(event.bytes, result.bytes);
+        assertEquals(event.text, result.text);
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogStoreTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File dir;
+    private LogStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("logstore", "");
+        dir.delete();
+        store = new LogStore(dir, 64, 4);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+
+        File[] files = dir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void readsRecordsBack() throws IOException {
+        store.add("first");
+        store.add("second");
+        store.flush();
+
+        assertEquals(Arrays.asList("first", "second"), store.tail(2));
+    }
+
+    @Test
+    public void truncatesOnCharacterBoundary() throws IOException {
+        char[] text = new char[40];
+        Arrays.fill(text, 'ж'); // 2 bytes each
+        String message = "a" + new String(text);
+
+        store.add(message);
+        store.flush();
+
+        String result = store.get(0);
+        assertTrue(message.startsWith(result));
+        assertTrue(result.getBytes(UTF8).length <= 60);
+        assertEquals(59, result.getBytes(UTF8).length);
+    }
+
+    @Test
+    public void dropsOldSegments() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            store.add("message " + i);
+        }
+        store.flush();
+
+        assertTrue(store.size() < 100);
+        assertEquals("message 99", store.get(store.size() - 1));
+    }
+
+    @Test
+    public void snapshotIsNotAffectedByNewRecords() throws IOException {
+        store.add("first");
+        store.add("second");
+
+        LogStore.Snapshot snapshot = store.snapshot();
+        store.add("third");
+        store.flush();
+
+        assertEquals(2, snapshot.size());
+        assertEquals(Arrays.asList("first", "second"), snapshot.read(0, 10));
+        assertEquals(3, store.snapshot().size());
+    }
+
+    @Test
+    public void snapshotReadsDeletedSegmentsAsEmpty() throws IOException {
+        store.add("old");
+        LogStore.Snapshot snapshot = store.snapshot();
+
+        for (int i = 0; i < 100; i++) {
+            store.add("message " + i);
+        }
+        store.flush();
+
+        assertEquals(Arrays.asList(""), snapshot.read(0, 1));
+        assertTrue(store.snapshot().first() > snapshot.first());
+    }
+}
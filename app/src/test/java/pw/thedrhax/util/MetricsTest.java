@@ -0,0 +1,80 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pw.thedrhax.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+    @Test
+    public void emptyHistogram() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(50));
+        assertEquals("n=0", histogram.format());
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (int i = 1; i <= 10; i++) histogram.record(i);
+
+        assertEquals(5, histogram.percentile(50));
+        assertEquals(9, histogram.percentile(90));
+        assertEquals(10, histogram.percentile(100));
+    }
+
+    @Test
+    public void percentilesAreAccurate() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (int i = 1; i <= 100000; i++) histogram.record(i * 10);
+
+        assertNear(500000, histogram.percentile(50));
+        assertNear(950000, histogram.percentile(95));
+        assertNear(990000, histogram.percentile(99));
+    }
+
+    @Test
+    public void percentileDoesNotExceedMax() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        histogram.record(1000);
+        histogram.record(1001);
+
+        assertEquals(1001, histogram.percentile(100));
+    }
+
+    @Test
+    public void resetClearsValues() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        histogram.record(1000);
+        histogram.reset();
+
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(99));
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue(actual + " is not close to " + expected,
+                Math.abs(actual - expected) <= expected * 0.07);
+    }
+}
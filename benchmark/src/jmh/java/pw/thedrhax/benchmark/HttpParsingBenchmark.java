@@ -0,0 +1,169 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.benchmark;
+
+import org.json.simple.JSONObject;
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import pw.thedrhax.mosmetro.httpclient.Client;
+import pw.thedrhax.mosmetro.httpclient.Headers;
+import pw.thedrhax.mosmetro.httpclient.HttpRequest;
+import pw.thedrhax.mosmetro.httpclient.HttpResponse;
+
+/**
+ * Parsers used by the providers on already received responses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HttpParsingBenchmark {
+    private static final String REDIRECT = "http://auth.wi-fi.ru/?segment=metro&client_mac=aa-bb-cc-dd-ee-ff";
+
+    private HttpResponse auth_page;
+    private HttpResponse meta_redirect;
+    private HttpResponse location_redirect;
+    private HttpResponse gapi_start;
+    private Element login_form;
+    private Map<String, List<String>> raw_headers;
+
+    @Setup
+    public void setup() throws IOException {
+        HttpRequest gen204 = new HttpRequest(null, Client.METHOD.GET,
+                "http://connectivitycheck.gstatic.com/generate_204");
+
+        auth_page = new HttpResponse(
+                new HttpRequest(null, Client.METHOD.GET, "https://auth.wi-fi.ru/new?segment=metro"),
+                Pages.load("auth.wi-fi.ru.html")
+        );
+
+        meta_redirect = new HttpResponse(gen204,
+                "<html><head><meta http-equiv=\"refresh\" content=\"0; URL=" + REDIRECT + "\">" +
+                "</head><body></body></html>");
+
+        Headers location = new Headers();
+        location.setHeader(Headers.LOCATION, "http://auth.wi-fi.ru?segment=metro&client_mac=aa-bb-cc-dd-ee-ff");
+        location.setHeader(Headers.CONTENT_TYPE, "text/html");
+        location_redirect = new HttpResponse(gen204, "", 302, "Found", location);
+
+        gapi_start = new HttpResponse(
+                new HttpRequest(null, Client.METHOD.GET, "https://auth.wi-fi.ru/gapi/auth/start?segment=metro"),
+                Pages.load("gapi-auth-start.json"), "application/json; charset=utf-8"
+        );
+
+        login_form = new HttpResponse(
+                new HttpRequest(null, Client.METHOD.GET, "http://login.wi-fi.ru/am/UI/Login"),
+                Pages.load("login.wi-fi.ru.html")
+        ).getPageContent().getElementsByTag("form").first();
+
+        raw_headers = okhttp3.Headers.of(
+                "Server", "nginx",
+                "Date", "Mon, 01 Mar 2021 10:00:00 GMT",
+                "Content-Type", "text/html; charset=utf-8",
+                "Connection", "keep-alive",
+                "Cache-Control", "no-cache, no-store",
+                "Set-Cookie", "_session=0123456789abcdef; path=/; HttpOnly",
+                "Set-Cookie", "_mts=0:abcdefgh:0123456789a~0123456789abcdefghij; path=/",
+                "X-Frame-Options", "SAMEORIGIN"
+        ).toMultimap();
+    }
+
+    /*
+     * HTML
+     */
+
+    @Benchmark
+    public String parseCsrfToken() throws ParseException {
+        return auth_page.parseMetaContent("csrf-token");
+    }
+
+    @Benchmark
+    public String parseMetaRedirect() throws ParseException {
+        return meta_redirect.parseMetaRedirect();
+    }
+
+    @Benchmark
+    public String get300Redirect() throws ParseException {
+        return location_redirect.get300Redirect();
+    }
+
+    @Benchmark
+    public Map<String, String> parseForm() {
+        return HttpResponse.parseForm(login_form);
+    }
+
+    /*
+     * URLs
+     */
+
+    @Benchmark
+    public String absolutePathToUrl() throws ParseException {
+        return HttpResponse.absolutePathToUrl(REDIRECT, "/gapi/auth/start?segment=metro");
+    }
+
+    @Benchmark
+    public String removePathFromUrl() {
+        return HttpResponse.removePathFromUrl(REDIRECT);
+    }
+
+    /*
+     * JSON
+     */
+
+    @Benchmark
+    public String jsonpath() {
+        return gapi_start.jsonpath().read("$.data.segmentParams.common.redirectUrl.afterAuth");
+    }
+
+    @Benchmark
+    public JSONObject json() throws org.json.simple.parser.ParseException {
+        return gapi_start.json();
+    }
+
+    /*
+     * Headers
+     */
+
+    @Benchmark
+    public Headers headersFromOkHttp() {
+        Headers headers = new Headers();
+        headers.putAll(raw_headers);
+        return headers;
+    }
+
+    @Benchmark
+    public String headersMimeType() {
+        Headers headers = new Headers();
+        headers.setHeader(Headers.CONTENT_TYPE, "text/html; charset=utf-8");
+        headers.addHeader(Headers.ACCEPT_LANGUAGE, "ru-RU,ru;q=0.9");
+        return headers.getMimeType() + headers.getEncoding() + headers.getFirst(Headers.ACCEPT_LANGUAGE);
+    }
+}
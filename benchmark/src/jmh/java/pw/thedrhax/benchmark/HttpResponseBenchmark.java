@@ -0,0 +1,101 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import pw.thedrhax.mosmetro.httpclient.Client;
+import pw.thedrhax.mosmetro.httpclient.Headers;
+import pw.thedrhax.mosmetro.httpclient.HttpRequest;
+import pw.thedrhax.mosmetro.httpclient.HttpResponse;
+
+/**
+ * Construction of HttpResponse from portal pages. Every response is parsed
+ * by Jsoup if it is HTML, which is the most expensive part of a request
+ * after the network itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HttpResponseBenchmark {
+    private static final MediaType HTML = MediaType.parse("text/html; charset=utf-8");
+
+    @Param({"auth.wi-fi.ru", "welcome.wi-fi.ru", "login.wi-fi.ru"})
+    public String page;
+
+    private String body;
+    private HttpRequest request;
+    private Request okhttp_request;
+    private HttpResponse response;
+
+    @Setup
+    public void setup() throws IOException {
+        body = Pages.load(page + ".html");
+
+        String url = "http://" + page + "/";
+        request = new HttpRequest(null, Client.METHOD.GET, url);
+        okhttp_request = new Request.Builder().url(url).build();
+        response = new HttpResponse(request, body);
+    }
+
+    /**
+     * Path of every response received by OkHttp client
+     */
+    @Benchmark
+    public HttpResponse fromOkHttp() throws IOException {
+        Response raw = new Response.Builder()
+                .request(okhttp_request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(200).message("OK")
+                .header(Headers.CONTENT_TYPE, HTML.toString())
+                .header("Server", "nginx")
+                .header("Cache-Control", "no-cache, no-store")
+                .header("Set-Cookie", "_session=0123456789abcdef; path=/; HttpOnly")
+                .body(ResponseBody.create(HTML, body))
+                .build();
+
+        return new HttpResponse(request, raw);
+    }
+
+    @Benchmark
+    public HttpResponse fromString() {
+        return new HttpResponse(request, body);
+    }
+
+    @Benchmark
+    public String parseMetaContent() throws ParseException {
+        return response.parseMetaContent("viewport");
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import pw.thedrhax.util.LogStore;
+
+/**
+ * Time spent by Logger.configure() on the DEBUG log at process start.
+ *
+ * legacyTextLog reproduces the old LogWriter: read the whole log-debug.txt,
+ * keep the last 2000 lines and write them back. logStore* open the segmented
+ * store with the same settings as Logger.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LogStoreBenchmark {
+    private static final String LINE =
+            "[+0042] OkHttp (123456789) | GET https://auth.wi-fi.ru/gapi/auth/check?segment=metro";
+
+    /**
+     * Number of lines written during the previous session
+     */
+    @Param({"2000", "20000"})
+    public int lines;
+
+    private File dir;
+    private File text;
+    private File store_dir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("logstore").toFile();
+        store_dir = new File(dir, "log-debug");
+        text = new File(dir, "log-debug.txt");
+
+        LogStore store = new LogStore(store_dir, 128 * 1024, 16);
+        for (int i = 0; i < lines; i++) {
+            store.add(LINE + " " + i);
+        }
+        store.close();
+    }
+
+    /**
+     * Old implementation truncates the file, so it must be recreated every time
+     */
+    @Setup(Level.Invocation)
+    public void setupText() throws IOException {
+        try (FileWriter writer = new FileWriter(text, false)) {
+            for (int i = 0; i < lines; i++) {
+                writer.write(LINE + " " + i + "\n");
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        delete(dir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        file.delete();
+    }
+
+    @Benchmark
+    public List<String> legacyTextLog() throws IOException {
+        List<String> history = new LinkedList<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(text))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                history.add(line);
+            }
+        }
+
+        if (history.size() > 2000) {
+            history = history.subList(history.size() - 2000, history.size());
+        }
+
+        try (FileWriter writer = new FileWriter(text, false)) {
+            for (String line : history) {
+                writer.write(line + '\n');
+            }
+            writer.flush();
+        }
+
+        return history;
+    }
+
+    @Benchmark
+    public int logStoreOpen() throws IOException {
+        LogStore store = new LogStore(store_dir, 128 * 1024, 16);
+        int size = store.size();
+        store.close();
+        return size;
+    }
+
+    /**
+     * Open the store and read the first screen of DebugActivity
+     */
+    @Benchmark
+    public List<String> logStoreOpenAndTail() throws IOException {
+        LogStore store = new LogStore(store_dir, 128 * 1024, 16);
+        List<String> result = store.tail(100);
+        store.close();
+        return result;
+    }
+}
@@ -0,0 +1,380 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.benchmark.load;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.FormBody;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Okio;
+import pw.thedrhax.mosmetro.BuildConfig;
+import pw.thedrhax.mosmetro.authenticator.ProviderMetrics;
+import pw.thedrhax.mosmetro.updater.StatisticsQueue;
+import pw.thedrhax.mosmetro.updater.UpdateChecker;
+import pw.thedrhax.util.Metrics;
+
+/**
+ * Load generator for the statistics backend. Requests are built by the same
+ * code as in the app (ProviderMetrics.params(), StatisticsQueue.encode(),
+ * UpdateChecker URLs) and sent at fixed rates regardless of response time
+ * (open model), so a slow server can't reduce the load it receives.
+ * Latency is measured from the moment the request was due, including the
+ * time spent waiting for a free thread.
+ *
+ * Usage: ./gradlew -Pbenchmark :benchmark:loadtest -Pargs="--rate batch=50,branches=20 --duration 60"
+ *
+ *   --url URL          backend to test, local BackendStub by default
+ *   --rate E=N,...     requests per second for each endpoint (see Endpoint)
+ *   --duration S       test duration in seconds (30)
+ *   --threads N        maximum number of requests in flight (64)
+ *   --batch N          maximum records in one batch request (3)
+ *   --users N          number of distinct uuids (10000)
+ *   --stub-delay MS    processing time of BackendStub (0)
+ *   --stub-apk KB      size of the file served by BackendStub (5000)
+ *   --out FILE         save final metrics as JSON
+ */
+public class BackendLoad {
+    /**
+     * Requests made by the app. Default rates roughly follow the real
+     * traffic: every login is one batch of usually one record, update
+     * checks are mostly revalidated, downloads are rare.
+     */
+    enum Endpoint {
+        BATCH(20), STATS(0), BRANCHES(5), DOWNLOAD(0.05);
+
+        final double rate;
+        final Metrics.Histogram latency;
+        final Metrics.Counter errors;
+
+        Endpoint(double rate) {
+            this.rate = rate;
+            this.latency = Metrics.histogram("load." + name().toLowerCase(Locale.ENGLISH));
+            this.errors = Metrics.counter("load." + name().toLowerCase(Locale.ENGLISH) + ".errors");
+        }
+    }
+
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    private static final String[] PROVIDERS = {
+            "MosMetroV2", "MosMetroV3", "MosMetroV2WV", "MosMetroV2mcc", "MosMetroV1", "MAInet"
+    };
+    private static final String[] SEGMENTS = {"metro", "mcd", "mcc", "mgt"};
+    private static final String[] BRANCHES = {"metro", "metro-ruckus", "default", "spb"};
+
+    private final Map<Endpoint, Double> rates = new LinkedHashMap<>();
+    private final String[] users;
+    private final int threads;
+    private final int batch;
+    private final String base_url;
+    private final OkHttpClient client;
+
+    private BackendLoad(String base_url, Map<Endpoint, Double> rates,
+                        int threads, int users, int batch) {
+        this.base_url = base_url;
+        for (Map.Entry<Endpoint, Double> entry : rates.entrySet()) {
+            if (entry.getValue() > 0) {
+                this.rates.put(entry.getKey(), entry.getValue());
+            }
+        }
+        this.batch = batch;
+
+        this.users = new String[users];
+        for (int i = 0; i < users; i++) {
+            this.users[i] = UUID.randomUUID().toString();
+        }
+
+        this.threads = threads;
+
+        client = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(threads, 1, TimeUnit.MINUTES))
+                .connectTimeout(10, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .followRedirects(false)
+                .build();
+    }
+
+    /*
+     * Requests
+     */
+
+    private String user() {
+        return users[ThreadLocalRandom.current().nextInt(users.length)];
+    }
+
+    private static <T> T choose(T[] values) {
+        return values[ThreadLocalRandom.current().nextInt(values.length)];
+    }
+
+    private HashMap<String, String> record() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        HashMap<String, Object> vars = new HashMap<>();
+
+        String provider = choose(PROVIDERS);
+        if (provider.startsWith("MosMetroV2")) {
+            vars.put("segment", choose(SEGMENTS));
+            vars.put("branch", choose(BRANCHES));
+        }
+        if (random.nextInt(10) == 0) vars.put("switch", choose(PROVIDERS));
+        if (random.nextInt(20) == 0) vars.put("midsession", true);
+
+        // Login time is log-normal with median around 4 seconds
+        long duration = (long) Math.exp(8.3 + 0.6 * random.nextGaussian());
+
+        return ProviderMetrics.params(
+                user(), 21 + random.nextInt(10), "MosMetro_Free", provider,
+                random.nextInt(5) != 0, duration, vars
+        );
+    }
+
+    private Request request(Endpoint endpoint) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        switch (endpoint) {
+            case BATCH:
+                List<Map<String, String>> records = new ArrayList<>();
+                int count = 1 + random.nextInt(batch);
+                for (int i = 0; i < count; i++) {
+                    records.add(record());
+                }
+
+                return new Request.Builder()
+                        .url(base_url + BuildConfig.API_REL_STATISTICS_BATCH)
+                        .header("Content-Encoding", "gzip")
+                        .post(RequestBody.create(JSON, StatisticsQueue.encode(records)))
+                        .build();
+
+            case STATS:
+                FormBody.Builder form = new FormBody.Builder();
+                for (Map.Entry<String, String> field : record().entrySet()) {
+                    form.add(field.getKey(), field.getValue());
+                }
+
+                return new Request.Builder()
+                        .url(base_url + BuildConfig.API_REL_STATISTICS)
+                        .post(form.build())
+                        .build();
+
+            case BRANCHES:
+                Request.Builder builder = new Request.Builder()
+                        .url(UpdateChecker.branchesUrl(base_url, user()));
+
+                // Most checks revalidate the cached list (see CachedRetriever)
+                if (random.nextInt(10) != 0) {
+                    builder.header("If-None-Match", BackendStub.BRANCHES_ETAG);
+                }
+
+                return builder.build();
+
+            case DOWNLOAD:
+                return new Request.Builder()
+                        .url(UpdateChecker.downloadUrl(base_url, "play", user()))
+                        .build();
+
+            default:
+                throw new IllegalArgumentException(endpoint.name());
+        }
+    }
+
+    private void send(Endpoint endpoint, long due) {
+        try (Response response = client.newCall(request(endpoint)).execute()) {
+            ResponseBody body = response.body();
+            if (body != null) {
+                body.source().readAll(Okio.blackhole());
+            }
+
+            if (response.code() >= 400) {
+                endpoint.errors.inc();
+            }
+        } catch (IOException | RuntimeException ex) {
+            endpoint.errors.inc();
+        } finally {
+            endpoint.latency.since(due);
+        }
+    }
+
+    /*
+     * Load
+     */
+
+    private void run(int seconds) throws InterruptedException {
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final ExecutorService workers = Executors.newFixedThreadPool(threads);
+        final long start = System.nanoTime();
+
+        for (final Map.Entry<Endpoint, Double> entry : rates.entrySet()) {
+            final long period = (long) (1e9 / entry.getValue());
+
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                private long sent = 0;
+
+                @Override
+                public void run() {
+                    // Late ticks are executed in a row, use the planned time
+                    final long due = start + period * sent++;
+
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            send(entry.getKey(), due);
+                        }
+                    });
+                }
+            }, 0, period, TimeUnit.NANOSECONDS);
+        }
+
+        Map<Endpoint, Long> last = new HashMap<>();
+
+        for (int elapsed = 0; elapsed < seconds; ) {
+            int step = Math.min(10, seconds - elapsed);
+            Thread.sleep(step * 1000L);
+            elapsed += step;
+
+            for (Endpoint endpoint : rates.keySet()) {
+                long count = endpoint.latency.count();
+                Long previous = last.put(endpoint, count);
+
+                System.out.println(String.format(Locale.ENGLISH, "[%3ds] %-8s %7.1f req/s | %s",
+                        elapsed, endpoint.name(),
+                        (count - (previous != null ? previous : 0)) / (double) step,
+                        endpoint.latency.format()
+                ));
+            }
+        }
+
+        scheduler.shutdownNow();
+        workers.shutdown();
+        workers.awaitTermination(30, TimeUnit.SECONDS);
+        client.connectionPool().evictAll();
+
+        double time = (System.nanoTime() - start) / 1e9;
+
+        System.out.println();
+        System.out.println(String.format(Locale.ENGLISH, "%-8s %10s %10s %8s %9s %9s %9s %9s %9s",
+                "", "target/s", "actual/s", "errors", "p50 ms", "p95 ms", "p99 ms", "p99.9 ms", "max ms"));
+
+        for (Endpoint endpoint : rates.keySet()) {
+            Metrics.Histogram h = endpoint.latency;
+
+            System.out.println(String.format(Locale.ENGLISH,
+                    "%-8s %10.2f %10.2f %8d %9.1f %9.1f %9.1f %9.1f %9.1f",
+                    endpoint.name(), rates.get(endpoint), h.count() / time,
+                    endpoint.errors.get(),
+                    h.percentile(50) / 1000.0, h.percentile(95) / 1000.0,
+                    h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0,
+                    h.percentile(100) / 1000.0
+            ));
+        }
+    }
+
+    private static Map<Endpoint, Double> parseRates(String value) {
+        Map<Endpoint, Double> result = new LinkedHashMap<>();
+
+        for (String pair : value.split(",")) {
+            String[] parts = pair.split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid rate: " + pair);
+            }
+
+            result.put(Endpoint.valueOf(parts[0].trim().toUpperCase(Locale.ENGLISH)),
+                    Double.parseDouble(parts[1]));
+        }
+
+        return result;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                System.err.println("Invalid argument: " + args[i]);
+                System.exit(1);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+
+        Map<Endpoint, Double> rates = new LinkedHashMap<>();
+        for (Endpoint endpoint : Endpoint.values()) {
+            rates.put(endpoint, endpoint.rate);
+        }
+        if (options.containsKey("rate")) {
+            rates.putAll(parseRates(options.get("rate")));
+        }
+
+        int threads = Integer.parseInt(get(options, "threads", "64"));
+
+        BackendStub stub = null;
+        String url = options.get("url");
+
+        if (url == null) {
+            stub = new BackendStub(threads,
+                    Integer.parseInt(get(options, "stub-delay", "0")),
+                    Integer.parseInt(get(options, "stub-apk", "5000")) * 1024
+            ).start();
+            url = stub.getUrl();
+        }
+
+        System.out.println("Backend: " + url + (stub != null ? " (stub)" : ""));
+
+        try {
+            new BackendLoad(url, rates, threads,
+                    Integer.parseInt(get(options, "users", "10000")),
+                    Math.max(1, Integer.parseInt(get(options, "batch", "3")))
+            ).run(Integer.parseInt(get(options, "duration", "30")));
+        } finally {
+            if (stub != null) {
+                System.out.println();
+                System.out.println("Stub: " + stub.getRecords() + " records accepted, " +
+                        stub.getRejected() + " requests rejected");
+                stub.stop();
+            }
+        }
+
+        if (options.containsKey("out")) {
+            try (OutputStream out = new FileOutputStream(options.get("out"))) {
+                out.write(Metrics.toJSON().toJSONString().getBytes("UTF-8"));
+            }
+        }
+    }
+
+    private static String get(Map<String, String> options, String name, String fallback) {
+        String value = options.get(name);
+        return value != null ? value : fallback;
+    }
+}
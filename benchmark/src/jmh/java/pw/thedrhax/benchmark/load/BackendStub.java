@@ -0,0 +1,221 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.benchmark.load;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.simple.JSONArray;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import pw.thedrhax.mosmetro.BuildConfig;
+
+/**
+ * Minimal local implementation of the statistics backend. It checks that the
+ * requests are well-formed and answers like the real server, so the load
+ * generator can be tested without one.
+ */
+public class BackendStub {
+    static final String BRANCHES_ETAG = "\"stub-1\"";
+
+    private static final String BRANCHES =
+            "{\"play\":{\"by_build\":\"0\",\"version\":\"100\",\"message\":\"\"," +
+            "\"description\":\"Stub\",\"stable\":true,\"url\":\"\"," +
+            "\"filename\":\"app-play.apk\",\"sha256\":\"\"}}";
+
+    private final HttpServer server;
+    private final byte[] apk;
+    private final int delay;
+
+    private final AtomicLong records = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    /**
+     * @param threads   Number of handler threads
+     * @param delay     Processing time of every request in ms
+     * @param apk_size  Size of the file served by the download API in bytes
+     */
+    public BackendStub(int threads, int delay, int apk_size) throws IOException {
+        this.delay = delay;
+        this.apk = new byte[apk_size];
+
+        // Without TCP_NODELAY small responses wait for the delayed ACK (~40 ms)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+
+        server.createContext(BuildConfig.API_REL_STATISTICS_BATCH, new Handler() {
+            @Override
+            int handle(HttpExchange exchange, byte[] body) throws IOException {
+                if (!"POST".equals(exchange.getRequestMethod())) return 405;
+
+                InputStream in = new ByteArrayInputStream(body);
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    in = new GZIPInputStream(in);
+                }
+
+                try {
+                    Object data = new JSONParser().parse(new InputStreamReader(in, "UTF-8"));
+                    if (!(data instanceof JSONArray)) return 400;
+                    records.addAndGet(((JSONArray) data).size());
+                } catch (ParseException ex) {
+                    return 400;
+                }
+
+                return reply(exchange, 200, "text/plain", "ok".getBytes("UTF-8"));
+            }
+        });
+
+        // Registered after the batch API, the longest matching context wins
+        server.createContext(BuildConfig.API_REL_STATISTICS, new Handler() {
+            @Override
+            int handle(HttpExchange exchange, byte[] body) throws IOException {
+                if (!exchange.getRequestURI().getPath().equals(BuildConfig.API_REL_STATISTICS))
+                    return 404;
+                if (!"POST".equals(exchange.getRequestMethod())) return 405;
+
+                String form = new String(body, "UTF-8");
+                if (!form.contains("uuid=")) return 400;
+
+                records.incrementAndGet();
+                return reply(exchange, 200, "text/plain", "ok".getBytes("UTF-8"));
+            }
+        });
+
+        server.createContext(BuildConfig.API_REL_BRANCHES, new Handler() {
+            @Override
+            int handle(HttpExchange exchange, byte[] body) throws IOException {
+                String query = exchange.getRequestURI().getQuery();
+                if (query == null || !query.contains("uuid=")) return 400;
+
+                exchange.getResponseHeaders().set("ETag", BRANCHES_ETAG);
+
+                if (BRANCHES_ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return 304;
+                }
+
+                return reply(exchange, 200, "application/json", BRANCHES.getBytes("UTF-8"));
+            }
+        });
+
+        server.createContext(BuildConfig.API_REL_DOWNLOAD, new Handler() {
+            @Override
+            int handle(HttpExchange exchange, byte[] body) throws IOException {
+                return reply(exchange, 200, "application/vnd.android.package-archive", apk);
+            }
+        });
+    }
+
+    private abstract class Handler implements HttpHandler {
+        /**
+         * @return Response code. Codes >= 400 are sent by the caller.
+         */
+        abstract int handle(HttpExchange exchange, byte[] body) throws IOException;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] body = read(exchange.getRequestBody());
+
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ignored) {}
+            }
+
+            int code;
+            try {
+                code = handle(exchange, body);
+            } catch (IOException ex) {
+                code = 400;
+            }
+
+            if (code >= 400) {
+                rejected.incrementAndGet();
+                reply(exchange, code, "text/plain", new byte[0]);
+            }
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int count;
+
+        while ((count = in.read(chunk)) != -1) {
+            buffer.write(chunk, 0, count);
+        }
+
+        return buffer.toByteArray();
+    }
+
+    private static int reply(HttpExchange exchange, int code, String type, byte[] body)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(code, body.length > 0 ? body.length : -1);
+
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+
+        exchange.close();
+        return code;
+    }
+
+    public BackendStub start() {
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public long getRecords() {
+        return records.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+}